@@ -0,0 +1,119 @@
+package com.pei.filedownload;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.pei.filedownload.task.model.HostCapability;
+import com.pei.filedownload.task.model.ResourceInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class ResourceInfoCacheTest {
+    private static final String URL = "http://cache-test.com/file";
+    private static final String HOST = "cache-test.com";
+
+    private ResourceInfoCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new ResourceInfoCache(InstrumentationRegistry.getInstrumentation().getTargetContext());
+    }
+
+    @After
+    public void tearDown() {
+        mCache.invalidate(URL);
+    }
+
+    private static ResourceInfo newResourceInfo(long probeTime) {
+        ResourceInfo info = new ResourceInfo();
+        info.setUrl(URL);
+        info.setContentLength(1024);
+        info.setAcceptRanges("bytes");
+        info.setETag("\"abc\"");
+        info.setProbeTime(probeTime);
+        return info;
+    }
+
+    @Test
+    public void returnsInfoWithinTtl() {
+        mCache.put(newResourceInfo(0));
+        ResourceInfo info = mCache.get(URL);
+        assertNotNull(info);
+        assertEquals(1024, info.getContentLength());
+        assertTrue(info.getProbeTime() > 0);
+    }
+
+    @Test
+    public void expiredInfoIsIgnored() {
+        mCache.put(newResourceInfo(System.currentTimeMillis() - ResourceInfoCache.DEFAULT_TTL - 1000));
+        assertNull(mCache.get(URL));
+    }
+
+    @Test
+    public void infoIsReadBackFromDatabase() {
+        mCache.put(newResourceInfo(0));
+        ResourceInfoCache other = new ResourceInfoCache(InstrumentationRegistry.getInstrumentation().getTargetContext());
+        ResourceInfo info = other.get(URL);
+        assertNotNull(info);
+        assertEquals("\"abc\"", info.getETag());
+    }
+
+    @Test
+    public void invalidateRemovesInfo() {
+        mCache.put(newResourceInfo(0));
+        mCache.invalidate(URL);
+        assertNull(mCache.get(URL));
+        assertNull(new ResourceInfoCache(InstrumentationRegistry.getInstrumentation().getTargetContext()).get(URL));
+    }
+
+    @Test
+    public void zeroTtlDisablesCache() {
+        mCache.put(newResourceInfo(0));
+        mCache.setTtl(0);
+        assertNull(mCache.get(URL));
+    }
+
+    @Test
+    public void hostCapabilityIsMerged() {
+        mCache.updateHostCapability(HOST, true, false);
+        mCache.updateMaxConnections(HOST, 6);
+        HostCapability capability = mCache.getHostCapability(HOST);
+        assertNotNull(capability);
+        assertTrue(capability.isAcceptRanges());
+        assertEquals(6, capability.getMaxConnections());
+    }
+
+    @Test
+    public void resolvedUrlIsRemembered() {
+        mCache.putResolvedUrl(URL, "http://cdn.cache-test.com/file?sign=1");
+        assertEquals("http://cdn.cache-test.com/file?sign=1", mCache.getResolvedUrl(URL));
+
+        //没有重定向时不记录
+        mCache.putResolvedUrl(URL, URL);
+        assertNull(mCache.getResolvedUrl(URL));
+    }
+
+    @Test
+    public void onlyCurrentResolvedUrlIsInvalidated() {
+        mCache.putResolvedUrl(URL, "http://cdn.cache-test.com/file?sign=2");
+        //其他分片失败时使用的旧地址
+        mCache.invalidateResolvedUrl(URL, "http://cdn.cache-test.com/file?sign=1");
+        assertEquals("http://cdn.cache-test.com/file?sign=2", mCache.getResolvedUrl(URL));
+
+        mCache.invalidateResolvedUrl(URL, "http://cdn.cache-test.com/file?sign=2");
+        assertNull(mCache.getResolvedUrl(URL));
+    }
+
+    @Test
+    public void expiredResolvedUrlIsIgnored() {
+        mCache.putResolvedUrl(URL, "http://cdn.cache-test.com/file?sign=1");
+        mCache.setRedirectTtl(0);
+        assertNull(mCache.getResolvedUrl(URL));
+    }
+}
@@ -0,0 +1,124 @@
+package com.pei.filedownload.db;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.pei.filedownload.Task;
+import com.pei.filedownload.task.DownloadRequest;
+import com.pei.filedownload.task.model.DownloadTaskModel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class FileTransferDaoTest {
+
+    private FileTransferDao mDao;
+
+    @Before
+    public void setUp() {
+        mDao = FileTransferDao.get(InstrumentationRegistry.getInstrumentation().getTargetContext());
+    }
+
+    @After
+    public void tearDown() {
+        mDao.deleteDownloadTaskModel("dao-test-1");
+        mDao.deleteDownloadTaskModel("dao-test-2");
+        mDao.deleteDownloadJob("dao-test-job");
+    }
+
+    private static DownloadTaskModel newPlaceholder(String taskId) {
+        DownloadRequest request = new DownloadRequest.Builder()
+                .setUrl("http://a.com/" + taskId)
+                .setTarget("/sdcard/Download")
+                .setFileName(taskId)
+                .build();
+        DownloadTaskModel model = new DownloadTaskModel(taskId, request);
+        model.setStatus(Task.STATUS_ENQUEUE);
+        return model;
+    }
+
+    @Test
+    public void insertDownloadTasksWritesPlaceholders() {
+        mDao.insertDownloadTasks(Arrays.asList(newPlaceholder("dao-test-1"), newPlaceholder("dao-test-2")));
+
+        DownloadTaskModel model = mDao.findDownloadTask("dao-test-2");
+        assertNotNull(model);
+        assertEquals("http://a.com/dao-test-2", model.getUrl());
+        assertEquals(-1, model.getContentLength());
+        assertEquals(Task.STATUS_ENQUEUE, model.getStatus());
+    }
+
+    @Test
+    public void insertDownloadTasksKeepsExistingProgress() {
+        DownloadTaskModel existing = newPlaceholder("dao-test-1");
+        existing.setContentLength(1024);
+        existing.setStatus(Task.STATUS_PAUSED);
+        existing.setProgress(50);
+        mDao.insertDownloadTask(existing);
+
+        mDao.insertDownloadTasks(Arrays.asList(newPlaceholder("dao-test-1"), newPlaceholder("dao-test-2")));
+
+        DownloadTaskModel model = mDao.findDownloadTask("dao-test-1");
+        assertEquals(1024, model.getContentLength());
+        assertEquals(Task.STATUS_PAUSED, model.getStatus());
+        assertEquals(50, model.getProgress());
+        assertNotNull(mDao.findDownloadTask("dao-test-2"));
+    }
+
+    @Test
+    public void downloadJobKeepsRequestParameters() {
+        DownloadRequest request = new DownloadRequest.Builder()
+                .setRequestId("dao-test-1")
+                .setUrl("http://a.com/dao-test-1")
+                .setTarget("/sdcard/Download/dao-test-1")
+                .setHeaders(Collections.singletonMap("Cookie", "a=b"))
+                .setPriority(3)
+                .setDeadline(123456L, null)
+                .setRateLimit(1024)
+                .setWeight(5)
+                .setAdaptiveParallel(2, 6)
+                .setReuseProbeConnection(true)
+                .build();
+        mDao.insertDownloadJob("dao-test-job", Collections.singletonList(request));
+
+        List<DownloadRequest> requests = mDao.findDownloadJobRequests("dao-test-job");
+        assertEquals(1, requests.size());
+        DownloadRequest restored = requests.get(0);
+        assertEquals("dao-test-1", restored.getRequestId());
+        assertEquals("http://a.com/dao-test-1", restored.getUrl());
+        assertEquals("a=b", restored.getHeaders().get("Cookie"));
+        assertEquals(3, restored.getPriority());
+        assertEquals(123456L, restored.getDeadline());
+        assertEquals(1024, restored.getRateLimit());
+        assertEquals(5, restored.getWeight());
+        assertTrue(restored.isAdaptiveParallel());
+        assertEquals(2, restored.getMinParallelNum());
+        assertEquals(6, restored.getMaxParallelNum());
+        assertTrue(restored.isReuseProbeConnection());
+        //任务记录不存在时插入等待中的任务
+        assertEquals(Task.STATUS_ENQUEUE, mDao.findDownloadTask("dao-test-1").getStatus());
+    }
+
+    @Test
+    public void downloadJobSurvivesDeletedTaskRecord() {
+        DownloadRequest first = new DownloadRequest.Builder().setRequestId("dao-test-1").setUrl("http://a.com/1").setTarget("/sdcard/Download/1").build();
+        DownloadRequest second = new DownloadRequest.Builder().setRequestId("dao-test-2").setUrl("http://a.com/2").setTarget("/sdcard/Download/2").build();
+        mDao.insertDownloadJob("dao-test-job", Arrays.asList(first, second));
+        //清除本地数据或者取消后重新下载时任务记录被删除
+        mDao.deleteDownloadTaskModel("dao-test-1");
+
+        List<DownloadRequest> requests = mDao.findDownloadJobRequests("dao-test-job");
+        assertEquals(2, requests.size());
+        assertEquals("dao-test-1", requests.get(0).getRequestId());
+        assertEquals("dao-test-2", requests.get(1).getRequestId());
+    }
+}
@@ -0,0 +1,106 @@
+package com.pei.filedownload;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+/**
+ * 分片传输共用固定数量线程的传输引擎。
+ * 分片请求通过Call.enqueue发出，建立连接和等待响应头由固定数量的请求线程处理；
+ * 收到响应后由少量I/O线程轮流读取：每次最多读取sliceBytes或者sliceMillis，没读完的传输重新排到队尾。
+ * 写入的缓冲区不等待获取，缓冲池用完时传输稍后再开始或者继续读取，同时进行的传输数不超过缓冲池的缓冲区数。
+ * <p>
+ * 这不是非阻塞I/O：OkHttp 3的响应体只能阻塞读取，数据未到达时读取线程仍会等待。
+ * 单次读取等待超过readTimeoutMillis时连接被关闭，分片按失败重试，所以一个停滞的连接最多占用I/O线程这么久，
+ * 多个连接同时停滞时其他传输要排队等待。连接较多、网络稳定时使用，不能直接代替每个分片一个线程的方式
+ */
+public class AsyncTransferEngine {
+    public static final int DEFAULT_IO_THREADS = 4;
+    public static final int DEFAULT_CALL_THREADS = 16;
+    public static final long DEFAULT_SLICE_BYTES = 64 * 1024;
+    public static final long DEFAULT_SLICE_MILLIS = 100;
+    public static final long DEFAULT_READ_TIMEOUT_MILLIS = 5000;
+
+    private OkHttpClient mOkHttpClient;
+    private ThreadPoolExecutor mIoExecutor;
+    private ThreadPoolExecutor mCallExecutor;
+    private long mSliceBytes;
+    private long mSliceNanos;
+    private long mReadTimeoutMillis;
+
+    public AsyncTransferEngine(@NonNull OkHttpClient okHttpClient) {
+        this(okHttpClient, DEFAULT_IO_THREADS, DEFAULT_SLICE_BYTES);
+    }
+
+    public AsyncTransferEngine(@NonNull OkHttpClient okHttpClient, int ioThreads, long sliceBytes) {
+        this(okHttpClient, ioThreads, DEFAULT_CALL_THREADS, sliceBytes, DEFAULT_SLICE_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param ioThreads 读取响应的线程数
+     * @param callThreads 建立连接、等待响应头的线程数，超过时请求在OkHttp的Dispatcher中排队
+     * @param sliceBytes 每次轮到时最多读取的数据量
+     * @param sliceMillis 每次轮到时最多读取的时间，读取中途不会打断，到时间后读完当前一段再让出线程
+     * @param readTimeoutMillis 单次读取最长等待时间，超过后分片失败
+     */
+    public AsyncTransferEngine(@NonNull OkHttpClient okHttpClient, int ioThreads, int callThreads, long sliceBytes, long sliceMillis, long readTimeoutMillis) {
+        ioThreads = Math.max(1, ioThreads);
+        callThreads = Math.max(1, callThreads);
+        mSliceBytes = Math.max(8 * 1024, sliceBytes);
+        mSliceNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, sliceMillis));
+        mReadTimeoutMillis = Math.max(1, readTimeoutMillis);
+        //队列不限长度，未读完的传输需要能重新入队
+        mIoExecutor = new ThreadPoolExecutor(ioThreads, ioThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), TransferExecutors.newThreadFactory("AsyncTransfer-thread-"));
+        mIoExecutor.allowCoreThreadTimeOut(true);
+        //默认的Dispatcher线程数不限，这里最多callThreads个请求同时执行，其余的在Dispatcher中等待，不占用线程
+        mCallExecutor = new ThreadPoolExecutor(callThreads, callThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), TransferExecutors.newThreadFactory("AsyncCall-thread-"));
+        mCallExecutor.allowCoreThreadTimeOut(true);
+        //单独的Dispatcher，不受默认每个域名5个请求的限制，也不影响其他请求，请求总数由ConnectionBudget限制
+        Dispatcher dispatcher = new Dispatcher(mCallExecutor);
+        dispatcher.setMaxRequests(callThreads);
+        dispatcher.setMaxRequestsPerHost(callThreads);
+        mOkHttpClient = okHttpClient.newBuilder()
+                .dispatcher(dispatcher)
+                .build();
+    }
+
+    public OkHttpClient getOkHttpClient() {
+        return mOkHttpClient;
+    }
+
+    public long getSliceBytes() {
+        return mSliceBytes;
+    }
+
+    public long getSliceNanos() {
+        return mSliceNanos;
+    }
+
+    public long getReadTimeoutMillis() {
+        return mReadTimeoutMillis;
+    }
+
+    /**
+     * 在I/O线程中执行
+     */
+    public void execute(@NonNull Runnable runnable) {
+        mIoExecutor.execute(runnable);
+    }
+
+    public ExecutorService getIoExecutor() {
+        return mIoExecutor;
+    }
+
+    public void shutdown() {
+        mIoExecutor.shutdown();
+        mCallExecutor.shutdown();
+    }
+}
@@ -0,0 +1,96 @@
+package com.pei.filedownload;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 下载限速，分为全局、域名和单个请求三级，读取的数据需要同时满足三级的限制。
+ * 同一级的令牌由所有传输共用，没有限速的任务可以使用其他任务没有用完的带宽
+ */
+public class BandwidthController {
+
+    private RateLimiter mGlobalLimiter = new RateLimiter(0);
+    private ConcurrentHashMap<String, RateLimiter> mHostLimiters = new ConcurrentHashMap<>();
+    private WeightedFairShaper mFairShaper = new WeightedFairShaper(mGlobalLimiter);
+
+    /**
+     * @param bytesPerSecond 小于等于0时不限速
+     */
+    public void setGlobalRate(long bytesPerSecond) {
+        mGlobalLimiter.setRate(bytesPerSecond);
+    }
+
+    public long getGlobalRate() {
+        return mGlobalLimiter.getRate();
+    }
+
+    /**
+     * @param bytesPerSecond 小于等于0时取消该域名的限速
+     */
+    public void setHostRate(@NonNull String host, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            RateLimiter limiter = mHostLimiters.remove(host);
+            if (limiter != null) {
+                limiter.setRate(0);
+            }
+            return;
+        }
+        RateLimiter limiter = mHostLimiters.get(host);
+        if (limiter == null) {
+            limiter = new RateLimiter(bytesPerSecond);
+            RateLimiter previous = mHostLimiters.putIfAbsent(host, limiter);
+            if (previous == null) return;
+            limiter = previous;
+        }
+        limiter.setRate(bytesPerSecond);
+    }
+
+    public long getHostRate(@NonNull String host) {
+        RateLimiter limiter = mHostLimiters.get(host);
+        return limiter == null ? 0 : limiter.getRate();
+    }
+
+    /**
+     * 开启后正在下载的任务按权重分配带宽，权重高的任务获得更多带宽
+     */
+    public void setWeightedFair(boolean enabled) {
+        mFairShaper.setEnabled(enabled);
+    }
+
+    public boolean isWeightedFair() {
+        return mFairShaper.isEnabled();
+    }
+
+    public WeightedFairShaper getFairShaper() {
+        return mFairShaper;
+    }
+
+    public long reserve(@Nullable RateLimiter requestLimiter, @Nullable String host, long bytes) {
+        return reserve(requestLimiter, host, null, bytes);
+    }
+
+    /**
+     * 读取bytes数据后调用
+     * @param requestLimiter 请求自己的限速，可以为空
+     * @param flow 任务在按权重分配中的流，可以为空
+     * @return 需要等待的纳秒数
+     */
+    public long reserve(@Nullable RateLimiter requestLimiter, @Nullable String host, @Nullable WeightedFairShaper.Flow flow, long bytes) {
+        long wait = mGlobalLimiter.reserve(bytes);
+        if (flow != null) {
+            wait = Math.max(wait, mFairShaper.reserve(flow, bytes));
+        }
+        if (host != null && !mHostLimiters.isEmpty()) {
+            RateLimiter hostLimiter = mHostLimiters.get(host);
+            if (hostLimiter != null) {
+                wait = Math.max(wait, hostLimiter.reserve(bytes));
+            }
+        }
+        if (requestLimiter != null) {
+            wait = Math.max(wait, requestLimiter.reserve(bytes));
+        }
+        return wait;
+    }
+}
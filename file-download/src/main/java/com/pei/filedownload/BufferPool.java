@@ -0,0 +1,110 @@
+package com.pei.filedownload;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 读写缓冲区池，所有传输任务共用。
+ * 池中分配的总内存不超过上限，达到上限后acquire会等待其他任务释放
+ */
+public class BufferPool {
+    public static final int MIN_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    public static final long DEFAULT_MAX_POOL_BYTES = 32 * 1024 * 1024;
+
+    private final int mBufferSize;
+    private final long mMaxPoolBytes;
+    private final boolean mDirect;
+    private final Deque<ByteBuffer> mFreeBuffers = new ArrayDeque<>();
+    private long mAllocatedBytes;
+    private long mWaitNanos;
+
+    public BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOL_BYTES, true);
+    }
+
+    /**
+     * @param bufferSize 单个缓冲区大小，限制在64K到1M之间
+     * @param maxPoolBytes 池中分配的内存上限，至少可以分配一个缓冲区
+     * @param direct 是否使用direct buffer，写入FileChannel时不需要再拷贝一次
+     */
+    public BufferPool(int bufferSize, long maxPoolBytes, boolean direct) {
+        mBufferSize = Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, bufferSize));
+        mMaxPoolBytes = Math.max(maxPoolBytes, mBufferSize);
+        mDirect = direct;
+    }
+
+    /**
+     * 获取一个清空的缓冲区，使用完必须调用{@link #release(ByteBuffer)}归还
+     */
+    @NonNull
+    public synchronized ByteBuffer acquire() throws InterruptedIOException {
+        while (true) {
+            ByteBuffer buffer = tryAcquire();
+            if (buffer != null) {
+                return buffer;
+            }
+            long start = System.nanoTime();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Acquire buffer interrupted");
+            } finally {
+                mWaitNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * 不等待的acquire，池已满时返回null。共用线程的异步传输使用，不能阻塞线程等待其他传输归还
+     */
+    @Nullable
+    public synchronized ByteBuffer tryAcquire() {
+        ByteBuffer buffer = mFreeBuffers.pollFirst();
+        if (buffer != null) {
+            buffer.clear();
+            return buffer;
+        }
+        if (mAllocatedBytes + mBufferSize <= mMaxPoolBytes) {
+            mAllocatedBytes += mBufferSize;
+            return mDirect ? ByteBuffer.allocateDirect(mBufferSize) : ByteBuffer.allocate(mBufferSize);
+        }
+        return null;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != mBufferSize) return;
+        mFreeBuffers.offerFirst(buffer);
+        notify();
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public long getMaxPoolBytes() {
+        return mMaxPoolBytes;
+    }
+
+    public boolean isDirect() {
+        return mDirect;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * acquire因为池已满而等待的累计时间，纳秒
+     */
+    public synchronized long getWaitNanos() {
+        return mWaitNanos;
+    }
+}
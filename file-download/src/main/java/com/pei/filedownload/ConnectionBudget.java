@@ -0,0 +1,212 @@
+package com.pei.filedownload;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * 连接数限制，限制同时进行的HTTP传输总数和每个域名的传输数。
+ * 连接不足时申请方进入等待，有连接释放时通知等待的申请方重新申请；
+ * 空闲连接优先分配给截止时间早的申请方，然后是优先级高的申请方，都相同时分配给当前占用连接少的申请方。
+ * 通知在executor中执行，申请方可以在持有自己的锁时申请和释放
+ */
+public class ConnectionBudget {
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+
+    private Executor mNotifyExecutor;
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int mMaxConnectionsPerHost; //0表示不限制
+    private int mConnections;
+    private Map<String, Integer> mHostConnections = new HashMap<>();
+    private Map<Client, Integer> mClientConnections = new HashMap<>();
+    private Set<Client> mWaitingClients = new LinkedHashSet<>();
+
+    public ConnectionBudget(@NonNull Executor notifyExecutor) {
+        this.mNotifyExecutor = notifyExecutor;
+    }
+
+    /**
+     * 申请一个连接，失败时加入等待，有连接释放时回调{@link Client#onConnectionAvailable()}
+     */
+    public boolean tryAcquire(@NonNull Client client) {
+        List<Client> notifyClients = null;
+        boolean acquired;
+        synchronized (this) {
+            String host = client.getHost();
+            Client preferred = isAvailable(host) ? findPreferredClient(client) : null;
+            acquired = isAvailable(host) && preferred == null;
+            if (acquired) {
+                mWaitingClients.remove(client);
+                mConnections++;
+                increase(mHostConnections, host, 1);
+                increase(mClientConnections, client, 1);
+            } else {
+                mWaitingClients.add(client);
+                //有空闲连接但是需要让给其他申请方，只通知对方来申请，不通知自己，否则会反复申请
+                if (preferred != null) {
+                    notifyClients = Collections.singletonList(preferred);
+                }
+            }
+        }
+        notifyClients(notifyClients);
+        return acquired;
+    }
+
+    /**
+     * 释放一个连接，通知等待中的申请方
+     */
+    public void release(@NonNull Client client) {
+        List<Client> notifyClients;
+        synchronized (this) {
+            if (!mClientConnections.containsKey(client)) return;
+            mConnections--;
+            increase(mHostConnections, client.getHost(), -1);
+            increase(mClientConnections, client, -1);
+            notifyClients = findAvailableClients();
+        }
+        notifyClients(notifyClients);
+    }
+
+    /**
+     * 不再需要连接时取消等待，否则会一直占用优先分配的位置
+     */
+    public synchronized void cancelWaiting(@NonNull Client client) {
+        mWaitingClients.remove(client);
+    }
+
+    private boolean isAvailable(String host) {
+        if (mConnections >= mMaxConnections) return false;
+        if (mMaxConnectionsPerHost <= 0 || host == null) return true;
+        Integer connections = mHostConnections.get(host);
+        return connections == null || connections < mMaxConnectionsPerHost;
+    }
+
+    /**
+     * 查找比client更应该获得连接的等待者
+     */
+    @Nullable
+    private Client findPreferredClient(Client client) {
+        int connections = getConnections(client);
+        for (Client waiting : mWaitingClients) {
+            if (waiting == client || !isAvailable(waiting.getHost())) continue;
+            int result = compareUrgency(waiting, client);
+            if (result > 0 || (result == 0 && getConnections(waiting) < connections)) {
+                return waiting;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 有截止时间的更紧急，截止时间早的更紧急，然后比较优先级
+     * @return 大于0表示c1更紧急
+     */
+    private static int compareUrgency(Client c1, Client c2) {
+        long d1 = c1.getDeadline() > 0 ? c1.getDeadline() : Long.MAX_VALUE;
+        long d2 = c2.getDeadline() > 0 ? c2.getDeadline() : Long.MAX_VALUE;
+        if (d1 != d2) {
+            return d1 < d2 ? 1 : -1;
+        }
+        return Integer.compare(c1.getPriority(), c2.getPriority());
+    }
+
+    private List<Client> findAvailableClients() {
+        List<Client> clients = new ArrayList<>();
+        for (Client waiting : mWaitingClients) {
+            if (isAvailable(waiting.getHost())) {
+                clients.add(waiting);
+            }
+        }
+        return clients;
+    }
+
+    private int getConnections(Client client) {
+        Integer connections = mClientConnections.get(client);
+        return connections == null ? 0 : connections;
+    }
+
+    private static <K> void increase(Map<K, Integer> map, K key, int delta) {
+        if (key == null) return;
+        Integer value = map.get(key);
+        int result = (value == null ? 0 : value) + delta;
+        if (result <= 0) {
+            map.remove(key);
+        } else {
+            map.put(key, result);
+        }
+    }
+
+    /**
+     * 异步回调，申请方在回调中会再次申请
+     */
+    private void notifyClients(@Nullable final List<Client> clients) {
+        if (clients == null || clients.isEmpty()) return;
+        mNotifyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < clients.size(); i++) {
+                    clients.get(i).onConnectionAvailable();
+                }
+            }
+        });
+    }
+
+    public synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        List<Client> notifyClients;
+        synchronized (this) {
+            mMaxConnections = Math.max(1, maxConnections);
+            notifyClients = findAvailableClients();
+        }
+        notifyClients(notifyClients);
+    }
+
+    public synchronized int getMaxConnectionsPerHost() {
+        return mMaxConnectionsPerHost;
+    }
+
+    /**
+     * @param maxConnectionsPerHost 小于等于0时不限制
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        List<Client> notifyClients;
+        synchronized (this) {
+            mMaxConnectionsPerHost = Math.max(0, maxConnectionsPerHost);
+            notifyClients = findAvailableClients();
+        }
+        notifyClients(notifyClients);
+    }
+
+    public synchronized int getConnections() {
+        return mConnections;
+    }
+
+    public interface Client {
+
+        @Nullable
+        String getHost();
+
+        int getPriority();
+
+        /**
+         * 截止时间，毫秒时间戳，小于等于0时没有截止时间
+         */
+        long getDeadline();
+
+        /**
+         * 有连接释放，可以重新申请
+         */
+        void onConnectionAvailable();
+    }
+}
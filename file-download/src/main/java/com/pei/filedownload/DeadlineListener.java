@@ -0,0 +1,15 @@
+package com.pei.filedownload;
+
+/**
+ * 下载截止时间预警
+ */
+public interface DeadlineListener {
+
+    /**
+     * 按最近的下载速度估计无法在截止时间前完成时回调，恢复可以完成后再次无法完成时会再次回调。
+     * 在调度线程中回调，不要执行耗时操作
+     * @param deadline 截止时间，毫秒时间戳
+     * @param estimatedFinishTime 估计的完成时间，毫秒时间戳，没有速度时为Long.MAX_VALUE
+     */
+    void onDeadlineUnreachable(String taskId, long deadline, long estimatedFinishTime);
+}
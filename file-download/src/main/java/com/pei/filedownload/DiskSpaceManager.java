@@ -0,0 +1,46 @@
+package com.pei.filedownload;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 磁盘空间预留，同时开始的多个任务不会因为都通过了剩余空间检查而在下载过程中空间不足。
+ * 所有任务的预留空间合并计算，不区分所在的分区
+ */
+public class DiskSpaceManager {
+
+    private Map<String, Long> mReservations = new HashMap<>();
+    private long mReservedBytes;
+
+    /**
+     * 预留空间，同一个key重复预留时会替换之前的预留
+     * @param dir 文件所在的目录，用于计算剩余空间
+     * @return 剩余空间不足时返回false
+     */
+    public synchronized boolean reserve(@NonNull String key, @NonNull File dir, long bytes) {
+        release(key);
+        if (bytes <= 0) return true;
+        long freeDiskSpace = Utils.getFreeDiskSpace(dir);
+        if (freeDiskSpace != 0 && freeDiskSpace - mReservedBytes < bytes) {
+            FLog.w("No available space for " + key + ", require: " + bytes + ", free: " + freeDiskSpace + ", reserved: " + mReservedBytes);
+            return false;
+        }
+        mReservations.put(key, bytes);
+        mReservedBytes += bytes;
+        return true;
+    }
+
+    public synchronized void release(@NonNull String key) {
+        Long bytes = mReservations.remove(key);
+        if (bytes != null) {
+            mReservedBytes -= bytes;
+        }
+    }
+
+    public synchronized long getReservedBytes() {
+        return mReservedBytes;
+    }
+}
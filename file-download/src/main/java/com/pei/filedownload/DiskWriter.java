@@ -0,0 +1,181 @@
+package com.pei.filedownload;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 异步写入磁盘，网络读取线程把写满的缓冲区放入有界队列，由少量写入线程定位写入文件，
+ * 磁盘阻塞时不会影响网络读取。队列满时提交会阻塞，形成背压。
+ * 同一个写入者的请求由同一个线程按顺序写入
+ */
+public class DiskWriter {
+    private static final long SHUTDOWN_CHECK_INTERVAL = 100;
+
+    private BlockingQueue<WriteRequest>[] mQueues;
+    private Thread[] mThreads;
+    private AtomicInteger mNextQueue = new AtomicInteger();
+    private AtomicLong mWriteNanos = new AtomicLong();
+    private AtomicLong mBackpressureNanos = new AtomicLong();
+    private volatile boolean mShutdown;
+
+    /**
+     * @param writerThreads 写入线程数
+     * @param queueCapacity 所有写入线程的队列总长度
+     */
+    @SuppressWarnings("unchecked")
+    public DiskWriter(int writerThreads, int queueCapacity) {
+        writerThreads = Math.max(1, writerThreads);
+        int capacity = Math.max(1, queueCapacity / writerThreads);
+        mQueues = new BlockingQueue[writerThreads];
+        mThreads = new Thread[writerThreads];
+        for (int i = 0; i < writerThreads; i++) {
+            final BlockingQueue<WriteRequest> queue = new ArrayBlockingQueue<>(capacity);
+            mQueues[i] = queue;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain(queue);
+                }
+            });
+            thread.setName("DiskWriter-thread-" + i);
+            thread.setDaemon(true);
+            mThreads[i] = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * 为写入者分配一个写入线程，之后的请求都提交到这个线程
+     */
+    public int assignWriter() {
+        return (mNextQueue.getAndIncrement() & Integer.MAX_VALUE) % mQueues.length;
+    }
+
+    /**
+     * 提交写入请求，buffer中position到limit的数据写入channel的position位置，完成后回调callback
+     */
+    public void submit(int writer, @NonNull FileChannel channel, long position, @NonNull ByteBuffer buffer, @NonNull Callback callback) throws IOException {
+        if (mShutdown) throw new IOException("DiskWriter is shutdown");
+        WriteRequest request = new WriteRequest(channel, position, buffer, callback);
+        BlockingQueue<WriteRequest> queue = mQueues[writer];
+        if (!queue.offer(request)) {
+            long start = System.nanoTime();
+            try {
+                //写入线程退出后队列不会再变空，等待时检查是否已经关闭
+                while (!queue.offer(request, SHUTDOWN_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    if (mShutdown) throw new IOException("DiskWriter is shutdown");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Submit write request interrupted");
+            } finally {
+                mBackpressureNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+        //入队的同时被关闭，写入线程可能已经取完剩余的请求，请求还在队列中时由这里失败
+        if (mShutdown && queue.remove(request)) {
+            throw new IOException("DiskWriter is shutdown");
+        }
+    }
+
+    private void drain(BlockingQueue<WriteRequest> queue) {
+        while (!mShutdown) {
+            WriteRequest request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            ByteBuffer buffer = request.buffer;
+            int length = buffer.remaining();
+            long start = System.nanoTime();
+            try {
+                while (buffer.hasRemaining()) {
+                    int written = request.channel.write(buffer, request.position + length - buffer.remaining());
+                    if (written <= 0) {
+                        throw new IOException("Write to channel failed, position: " + request.position);
+                    }
+                }
+                mWriteNanos.addAndGet(System.nanoTime() - start);
+                request.callback.onWriteComplete(buffer, request.position, length);
+            } catch (IOException e) {
+                mWriteNanos.addAndGet(System.nanoTime() - start);
+                FLog.w("write failed", e);
+                request.callback.onWriteFailed(buffer, e);
+            } catch (RuntimeException e) {
+                //例如只读的channel，写入线程不能退出，否则写入者会一直等待
+                mWriteNanos.addAndGet(System.nanoTime() - start);
+                FLog.w("write failed", e);
+                request.callback.onWriteFailed(buffer, new IOException(e));
+            }
+        }
+
+        //关闭后剩余的请求直接失败，避免写入者一直等待
+        WriteRequest request;
+        while ((request = queue.poll()) != null) {
+            request.callback.onWriteFailed(request.buffer, new IOException("DiskWriter is shutdown"));
+        }
+    }
+
+    /**
+     * 队列中等待写入的请求数
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<WriteRequest> queue : mQueues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * 写入线程调用write的累计时间，不包括读取线程的等待
+     */
+    public long getWriteNanos() {
+        return mWriteNanos.get();
+    }
+
+    /**
+     * 网络读取线程因为队列已满而等待的累计时间，缓冲区不足的等待见{@link BufferPool#getWaitNanos()}
+     */
+    public long getBackpressureNanos() {
+        return mBackpressureNanos.get();
+    }
+
+    public void shutdown() {
+        mShutdown = true;
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+        }
+    }
+
+    public interface Callback {
+
+        void onWriteComplete(ByteBuffer buffer, long position, int length);
+
+        void onWriteFailed(ByteBuffer buffer, IOException e);
+    }
+
+    private static class WriteRequest {
+        final FileChannel channel;
+        final long position;
+        final ByteBuffer buffer;
+        final Callback callback;
+
+        WriteRequest(FileChannel channel, long position, ByteBuffer buffer, Callback callback) {
+            this.channel = channel;
+            this.position = position;
+            this.buffer = buffer;
+            this.callback = callback;
+        }
+    }
+}
@@ -3,10 +3,21 @@ package com.pei.filedownload;
 import android.content.Context;
 import android.text.TextUtils;
 
+import androidx.annotation.Nullable;
+
+import com.pei.filedownload.task.DownloadJob;
 import com.pei.filedownload.task.DownloadRequest;
+import com.pei.filedownload.db.FileTransferDao;
 import com.pei.filedownload.task.DownloadTask;
+import com.pei.filedownload.task.model.DownloadTaskModel;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.OkHttpClient;
@@ -22,6 +33,13 @@ public class FileDownloadManager {
     private Context mContext;
     private OkHttpClient mOkHttpClient;
     private TaskDispatcher mTaskDispatcher;
+    private DiskSpaceManager mDiskSpaceManager;
+    private BufferPool mBufferPool;
+    private volatile DiskWriter mDiskWriter;
+    private volatile AsyncTransferEngine mAsyncTransferEngine;
+    private BandwidthController mBandwidthController = new BandwidthController();
+    private ConcurrentMap<String, DownloadJob> mJobs = new ConcurrentHashMap<>();
+    private ResourceInfoCache mResourceInfoCache;
 
     public static FileDownloadManager getDefault(Context context) {
         if (sDefault == null) {
@@ -47,9 +65,19 @@ public class FileDownloadManager {
     }
 
     public FileDownloadManager(Context context, OkHttpClient okHttpClient, TaskDispatcher taskDispatcher) {
+        this(context, okHttpClient, taskDispatcher, new BufferPool());
+    }
+
+    /**
+     * @param bufferPool 所有下载任务共用的读写缓冲区
+     */
+    public FileDownloadManager(Context context, OkHttpClient okHttpClient, TaskDispatcher taskDispatcher, BufferPool bufferPool) {
         mContext = context.getApplicationContext();
         mOkHttpClient = okHttpClient;
         mTaskDispatcher = taskDispatcher;
+        mDiskSpaceManager = new DiskSpaceManager();
+        mBufferPool = bufferPool;
+        mResourceInfoCache = new ResourceInfoCache(mContext);
     }
 
     public DownloadRequest.Builder create(String url) {
@@ -79,7 +107,96 @@ public class FileDownloadManager {
         return downloadTask;
     }
 
-    private String makeDownloadTaskId(DownloadRequest request) {
+    /**
+     * 批量开始，所有新任务在一个事务中写入数据库，只获取一次调度的锁。
+     * 已经在下载或等待中的任务只添加回调。数据库写入在当前线程，任务多时建议在子线程调用
+     * @return 和requests顺序相同的任务
+     */
+    public List<DownloadTask> startAll(List<DownloadRequest> requests) {
+        FLog.i("start all: " + requests.size());
+        List<DownloadTask> result = new ArrayList<>(requests.size());
+        List<DownloadTask> newTasks = new ArrayList<>();
+        List<DownloadTaskModel> models = new ArrayList<>();
+        Map<String, DownloadTask> created = new HashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            DownloadRequest request = requests.get(i);
+            String id = makeDownloadTaskId(request);
+            Task<?> task = created.get(id);
+            if (task == null) {
+                task = mTaskDispatcher.findTask(id);
+            }
+            if (task instanceof DownloadTask) {
+                DownloadTask downloadTask = (DownloadTask) task;
+                Task.Callback<File> callback = request.getCallback();
+                if (downloadTask.getStatus() == Task.STATUS_RUNNING && callback != null) {
+                    callback.onStart();
+                }
+                downloadTask.addCallback(callback);
+                result.add(downloadTask);
+                continue;
+            }
+            DownloadTask downloadTask = new DownloadTask(this, request);
+            downloadTask.addCallback(request.getCallback());
+            downloadTask.setStatus(Task.STATUS_ENQUEUE);
+            DownloadTaskModel model = new DownloadTaskModel(id, request);
+            model.setStatus(Task.STATUS_ENQUEUE);
+            models.add(model);
+            newTasks.add(downloadTask);
+            created.put(id, downloadTask);
+            result.add(downloadTask);
+        }
+        FileTransferDao.get(mContext).insertDownloadTasks(models);
+        mTaskDispatcher.submitAll(newTasks);
+        return result;
+    }
+
+    /**
+     * 开始一组文件的下载作业，作业记录在数据库中，可以通过{@link #resumeJob(String, DownloadJob.Callback)}整体恢复。
+     * 相同id的作业已经存在时返回已有的作业
+     */
+    public DownloadJob startJob(String jobId, List<DownloadRequest> requests, @Nullable DownloadJob.Callback callback) {
+        DownloadJob job = mJobs.get(jobId);
+        if (job != null) return job;
+        job = new DownloadJob(this, jobId, requests, callback);
+        mJobs.put(jobId, job);
+        job.start();
+        return job;
+    }
+
+    /**
+     * 继续暂停或失败的作业，内存中没有时从数据库恢复
+     * @return 没有这个作业时返回null
+     */
+    @Nullable
+    public DownloadJob resumeJob(String jobId, @Nullable DownloadJob.Callback callback) {
+        DownloadJob job = mJobs.get(jobId);
+        if (job != null) {
+            job.resume();
+            return job;
+        }
+        job = DownloadJob.restore(this, jobId, callback);
+        if (job == null) return null;
+        mJobs.put(jobId, job);
+        job.start();
+        return job;
+    }
+
+    @Nullable
+    public DownloadJob findJob(String jobId) {
+        return mJobs.get(jobId);
+    }
+
+    /**
+     * 作业完成或取消后调用
+     */
+    public void finishJob(DownloadJob job) {
+        mJobs.remove(job.getJobId(), job);
+    }
+
+    /**
+     * 没有指定requestId时使用url的md5作为任务id
+     */
+    public String makeDownloadTaskId(DownloadRequest request) {
         if (!TextUtils.isEmpty(request.getRequestId())) {
             return request.getRequestId();
         }
@@ -96,6 +213,19 @@ public class FileDownloadManager {
         return mTaskDispatcher.cancel(taskId);
     }
 
+    /**
+     * 修改正在下载或等待中的任务的限速，立即生效
+     * @param bytesPerSecond 小于等于0时不限速
+     */
+    public boolean setRequestRate(String taskId, long bytesPerSecond) {
+        Task<?> task = mTaskDispatcher.findTask(taskId);
+        if (task instanceof DownloadTask) {
+            ((DownloadTask) task).getRateLimiter().setRate(bytesPerSecond);
+            return true;
+        }
+        return false;
+    }
+
     public Context getContext() {
         return mContext;
     }
@@ -107,4 +237,51 @@ public class FileDownloadManager {
     public TaskDispatcher getTaskDispatcher() {
         return mTaskDispatcher;
     }
+
+    public DiskSpaceManager getDiskSpaceManager() {
+        return mDiskSpaceManager;
+    }
+
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    @Nullable
+    public DiskWriter getDiskWriter() {
+        return mDiskWriter;
+    }
+
+    /**
+     * 设置后网络读取和磁盘写入在不同的线程进行，为空时读取线程直接写入，只影响之后开始的分片
+     */
+    public void setDiskWriter(@Nullable DiskWriter diskWriter) {
+        mDiskWriter = diskWriter;
+    }
+
+    /**
+     * 资源信息和域名能力的缓存
+     */
+    public ResourceInfoCache getResourceInfoCache() {
+        return mResourceInfoCache;
+    }
+
+    /**
+     * 全局和域名的限速
+     */
+    public BandwidthController getBandwidthController() {
+        return mBandwidthController;
+    }
+
+    @Nullable
+    public AsyncTransferEngine getAsyncTransferEngine() {
+        return mAsyncTransferEngine;
+    }
+
+    /**
+     * 设置后分片通过共用线程的引擎下载，为空时每个分片占用一个线程阻塞读取，只影响之后开始的分片。
+     * 引擎仍是阻塞读取，连接停滞时会占用它的I/O线程，限制见{@link AsyncTransferEngine}
+     */
+    public void setAsyncTransferEngine(@Nullable AsyncTransferEngine asyncTransferEngine) {
+        mAsyncTransferEngine = asyncTransferEngine;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,13 @@
+package com.pei.filedownload;
+
+/**
+ * 自适应并发数调整
+ */
+public interface ParallelismListener {
+
+    /**
+     * 在下载线程中回调，不要执行耗时操作
+     * @param throughput 最近一个统计窗口的下载速度，字节/秒
+     */
+    void onParallelismChanged(String taskId, int oldParallelNum, int newParallelNum, long throughput);
+}
@@ -0,0 +1,67 @@
+package com.pei.filedownload;
+
+/**
+ * 令牌桶限速，每秒产生bytesPerSecond个令牌，桶的容量为0.25秒的令牌数，至少64K。
+ * 读取后扣除令牌，允许透支，调用方按返回的时间等待后继续读取。
+ * 速度可以随时修改，小于等于0时不限速
+ */
+public class RateLimiter {
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+    private static final double BURST_SECONDS = 0.25;
+
+    private volatile long mBytesPerSecond;
+    private double mTokens;
+    private long mLastRefillNanos;
+
+    public RateLimiter(long bytesPerSecond) {
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+        mLastRefillNanos = System.nanoTime();
+        mTokens = capacity(mBytesPerSecond);
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        long now = System.nanoTime();
+        if (mBytesPerSecond > 0) {
+            refill(now, mBytesPerSecond);
+        }
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+        mLastRefillNanos = now;
+        mTokens = Math.min(mTokens, capacity(mBytesPerSecond));
+    }
+
+    public long getRate() {
+        return mBytesPerSecond;
+    }
+
+    public boolean isUnlimited() {
+        return mBytesPerSecond <= 0;
+    }
+
+    /**
+     * 扣除bytes个令牌
+     * @return 令牌恢复到不透支需要等待的纳秒数，不需要等待时返回0
+     */
+    public long reserve(long bytes) {
+        if (mBytesPerSecond <= 0) return 0;
+        synchronized (this) {
+            long rate = mBytesPerSecond;
+            if (rate <= 0) return 0;
+            refill(System.nanoTime(), rate);
+            mTokens -= bytes;
+            if (mTokens >= 0) return 0;
+            return (long) (-mTokens * 1e9 / rate);
+        }
+    }
+
+    private void refill(long now, long rate) {
+        long elapsed = now - mLastRefillNanos;
+        mLastRefillNanos = now;
+        if (elapsed > 0) {
+            mTokens = Math.min(capacity(rate), mTokens + elapsed * rate / 1e9);
+        }
+    }
+
+    private static double capacity(long rate) {
+        return Math.max(MIN_BURST_BYTES, rate * BURST_SECONDS);
+    }
+}
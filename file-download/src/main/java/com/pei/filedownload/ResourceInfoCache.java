@@ -0,0 +1,217 @@
+package com.pei.filedownload;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.pei.filedownload.db.FileTransferDao;
+import com.pei.filedownload.task.model.HostCapability;
+import com.pei.filedownload.task.model.ResourceInfo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 资源信息和域名能力的缓存，内存中按最近使用保留，同时写入数据库。
+ * 资源信息在ttl内有效，有效期内续传和重新开始不再请求服务器；域名能力一直有效，每次下载后更新。
+ * 重定向后的最终地址在redirectTtl内有效，分片请求直接使用，不再经过重定向。
+ * 数据库读写在调用的线程中执行，下载任务在子线程中调用
+ */
+public class ResourceInfoCache {
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+    public static final long DEFAULT_REDIRECT_TTL = 10 * 60 * 1000;
+    private static final int MAX_MEMORY_SIZE = 256;
+
+    private FileTransferDao mDao;
+    private volatile long mTtl = DEFAULT_TTL;
+    private volatile long mRedirectTtl = DEFAULT_REDIRECT_TTL;
+    private Map<String, ResourceInfo> mResourceInfos = new LinkedHashMap<String, ResourceInfo>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ResourceInfo> eldest) {
+            return size() > MAX_MEMORY_SIZE;
+        }
+    };
+    private Map<String, HostCapability> mHostCapabilities = new LinkedHashMap<String, HostCapability>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HostCapability> eldest) {
+            return size() > MAX_MEMORY_SIZE;
+        }
+    };
+
+    //重定向后的地址可能是有时效的签名地址，只保存在内存中
+    private Map<String, ResolvedUrl> mResolvedUrls = new LinkedHashMap<String, ResolvedUrl>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ResolvedUrl> eldest) {
+            return size() > MAX_MEMORY_SIZE;
+        }
+    };
+
+    public ResourceInfoCache(Context context) {
+        mDao = FileTransferDao.get(context);
+    }
+
+    /**
+     * @param ttl 毫秒，小于等于0时不使用缓存的资源信息
+     */
+    public void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    public long getTtl() {
+        return mTtl;
+    }
+
+    /**
+     * @return 没有缓存或者已经过期时返回null
+     */
+    @Nullable
+    public ResourceInfo get(@NonNull String url) {
+        long ttl = mTtl;
+        if (ttl <= 0) return null;
+        ResourceInfo info;
+        synchronized (this) {
+            info = mResourceInfos.get(url);
+        }
+        if (info == null) {
+            info = mDao.findResourceInfo(url);
+            if (info == null) return null;
+            synchronized (this) {
+                mResourceInfos.put(url, info);
+            }
+        }
+        if (System.currentTimeMillis() - info.getProbeTime() > ttl) return null;
+        return info;
+    }
+
+    public void put(@NonNull ResourceInfo info) {
+        if (info.getUrl() == null) return;
+        if (info.getProbeTime() <= 0) {
+            info.setProbeTime(System.currentTimeMillis());
+        }
+        synchronized (this) {
+            mResourceInfos.put(info.getUrl(), info);
+        }
+        mDao.insertResourceInfo(info);
+    }
+
+    /**
+     * 资源已经变化，下次重新请求
+     */
+    public void invalidate(@NonNull String url) {
+        synchronized (this) {
+            mResourceInfos.remove(url);
+        }
+        mDao.deleteResourceInfo(url);
+    }
+
+    /**
+     * @param redirectTtl 毫秒，小于等于0时分片请求都使用原地址
+     */
+    public void setRedirectTtl(long redirectTtl) {
+        mRedirectTtl = redirectTtl;
+    }
+
+    public long getRedirectTtl() {
+        return mRedirectTtl;
+    }
+
+    /**
+     * @return 原地址重定向后的最终地址，没有重定向或者已经过期时返回null
+     */
+    @Nullable
+    public synchronized String getResolvedUrl(@NonNull String url) {
+        ResolvedUrl resolvedUrl = mResolvedUrls.get(url);
+        if (resolvedUrl == null) return null;
+        if (mRedirectTtl <= 0 || System.currentTimeMillis() - resolvedUrl.resolveTime > mRedirectTtl) {
+            mResolvedUrls.remove(url);
+            return null;
+        }
+        return resolvedUrl.url;
+    }
+
+    public synchronized void putResolvedUrl(@NonNull String url, @NonNull String resolvedUrl) {
+        if (url.equals(resolvedUrl)) {
+            mResolvedUrls.remove(url);
+            return;
+        }
+        mResolvedUrls.put(url, new ResolvedUrl(resolvedUrl, System.currentTimeMillis()));
+    }
+
+    /**
+     * 最终地址已经失效，之后使用原地址重新重定向
+     */
+    public synchronized void invalidateResolvedUrl(@NonNull String url, @NonNull String resolvedUrl) {
+        ResolvedUrl current = mResolvedUrls.get(url);
+        if (current != null && current.url.equals(resolvedUrl)) {
+            mResolvedUrls.remove(url);
+        }
+    }
+
+    @Nullable
+    public HostCapability getHostCapability(@Nullable String host) {
+        if (host == null) return null;
+        HostCapability capability;
+        synchronized (this) {
+            capability = mHostCapabilities.get(host);
+        }
+        if (capability == null) {
+            capability = mDao.findHostCapability(host);
+            if (capability == null) return null;
+            synchronized (this) {
+                mHostCapabilities.put(host, capability);
+            }
+        }
+        return new HostCapability(capability);
+    }
+
+    /**
+     * 获取资源信息后记录服务器是否支持分片和HTTP/2
+     */
+    public void updateHostCapability(@Nullable String host, boolean acceptRanges, boolean http2) {
+        HostCapability capability = getOrCreate(host);
+        if (capability == null) return;
+        capability.setAcceptRanges(acceptRanges);
+        capability.setHttp2(http2);
+        save(capability);
+    }
+
+    /**
+     * 记录下载速度最快时的并发数，同一域名的新任务以它作为初始并发数
+     */
+    public void updateMaxConnections(@Nullable String host, int maxConnections) {
+        HostCapability capability = getOrCreate(host);
+        if (capability == null || maxConnections <= 0) return;
+        capability.setMaxConnections(maxConnections);
+        save(capability);
+    }
+
+    @Nullable
+    private HostCapability getOrCreate(@Nullable String host) {
+        if (host == null) return null;
+        HostCapability capability = getHostCapability(host);
+        if (capability == null) {
+            capability = new HostCapability();
+            capability.setHost(host);
+        }
+        return capability;
+    }
+
+    private void save(HostCapability capability) {
+        capability.setUpdateTime(System.currentTimeMillis());
+        synchronized (this) {
+            mHostCapabilities.put(capability.getHost(), capability);
+        }
+        mDao.insertHostCapability(capability);
+    }
+
+    private static class ResolvedUrl {
+        final String url;
+        final long resolveTime;
+
+        ResolvedUrl(String url, long resolveTime) {
+            this.url = url;
+            this.resolveTime = resolveTime;
+        }
+    }
+}
@@ -137,6 +137,13 @@ public abstract class Task<T> implements Runnable, Comparable<Task<?>> {
         this.mPriority = priority;
     }
 
+    /**
+     * 截止时间，毫秒时间戳，小于等于0时没有截止时间
+     */
+    public long getDeadline() {
+        return 0;
+    }
+
     @Override
     public int compareTo(Task<?> task) {
         return this.mPriority - task.mPriority;
@@ -146,6 +153,21 @@ public abstract class Task<T> implements Runnable, Comparable<Task<?>> {
 
     public abstract void cancel();
 
+    /**
+     * 是否可以被优先级更高的任务抢占
+     */
+    protected boolean isPreemptible() {
+        return false;
+    }
+
+    /**
+     * 被抢占时调用，暂停并保留进度，暂停完成后调用{@link TaskDispatcher#requeue(Task)}重新排队
+     * @return 不能抢占时返回false
+     */
+    protected boolean preempt() {
+        return false;
+    }
+
     public interface Callback<T> {
 
         void onStart();
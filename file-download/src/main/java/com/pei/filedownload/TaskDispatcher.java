@@ -1,109 +1,217 @@
 package com.pei.filedownload;
 
-import android.util.Log;
-
 import androidx.annotation.NonNull;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Objects;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * 任务调度，等待中的任务按优先级执行，同时执行的任务数不超过mMaxRunningTaskNum。
+ * 任务按id索引，查找、暂停、取消不需要获取调度的锁。
+ * 开启抢占后，没有空位时暂停优先级最低的运行中任务，被抢占的任务暂停完成后重新排队，有空位时继续下载。
+ * 等待中的任务按等待时间提前出队，低优先级的任务不会一直等待；老化不影响抢占，只有优先级更高的任务才能抢占
  * Created by peidongbiao on 2018/6/20.
  */
 public class TaskDispatcher {
     private static final String TAG = "TaskManager";
     private static final int DEFAULT_MAX_TASK_NUM = 5;
+    public static final long DEFAULT_AGING_INTERVAL = 60 * 1000;
 
     private ExecutorService mExecutor;
-    private Queue<Task<?>> mRunningTasks;
-    private Queue<Task<?>> mReadyTasks;
-    private int mMaxRunningTaskNum = DEFAULT_MAX_TASK_NUM;
+    private ExecutorService mTransferExecutor;
+    private ScheduledThreadPoolExecutor mTimer;
+    private Set<Task<?>> mRunningTasks;
+    private TaskQueue mReadyTasks;
+    private Set<Task<?>> mPreemptedTasks; //暂停中，还没有重新排队
+    private Task<?> mPreemptingTask; //正在抢占，成功前仍然占用运行的位置
+    private volatile boolean mPreemptive;
+    private ConcurrentMap<String, Task<?>> mTaskIndex = new ConcurrentHashMap<>(); //remove(key, value)在API 24以下需要ConcurrentMap
+    private volatile int mMaxRunningTaskNum = DEFAULT_MAX_TASK_NUM;
+    private ConnectionBudget mConnectionBudget;
 
     public TaskDispatcher() {
-        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
-            private AtomicInteger number = new AtomicInteger();
-            @Override
-            public Thread newThread(@NonNull Runnable r) {
-                Thread thread = new Thread(r);
-                thread.setName("TaskManager-thread-" + number.getAndIncrement());
-                thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
-                    @Override
-                    public void uncaughtException(Thread t, Throwable e) {
-                        Log.e(TAG, "uncaughtException,thread: " + t.getName(), e);
-                    }
-                });
-                return thread;
-            }
-        });
+        this(TransferExecutors.newDefaultExecutor());
+    }
 
-        mRunningTasks = new ArrayDeque<>();
-        mReadyTasks = new PriorityQueue<>(64, new Comparator<Task<?>>() {
-            @Override
-            public int compare(Task<?> task1, Task<?> task2) {
-                return -task1.compareTo(task2);
-            }
-        });
+    /**
+     * @param transferExecutor 执行分片等传输任务的线程池，可以使用{@link TransferExecutors}创建。
+     *                         等待分片完成的下载任务在单独的线程池中执行，数量不超过mMaxRunningTaskNum，
+     *                         不会占满传输线程池
+     */
+    public TaskDispatcher(@NonNull ExecutorService transferExecutor) {
+        mExecutor = Executors.newCachedThreadPool(TransferExecutors.newThreadFactory("TaskManager-thread-"));
+        mTransferExecutor = transferExecutor;
+        //没有定时任务时线程退出
+        mTimer = new ScheduledThreadPoolExecutor(1, TransferExecutors.newThreadFactory("TaskManager-timer-"));
+        mTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+        mTimer.setRemoveOnCancelPolicy(true);
+
+        mConnectionBudget = new ConnectionBudget(mExecutor);
+        mRunningTasks = Collections.newSetFromMap(new IdentityHashMap<Task<?>, Boolean>());
+        mPreemptedTasks = Collections.newSetFromMap(new IdentityHashMap<Task<?>, Boolean>());
+        mReadyTasks = new TaskQueue();
+        mReadyTasks.setAgingInterval(DEFAULT_AGING_INTERVAL);
     }
 
-    public synchronized void submit(Task<?> task, boolean silent) {
+    public void submit(Task<?> task, boolean silent) {
         if (silent) {
-            mExecutor.submit(task);
+            mTransferExecutor.execute(task);
             return;
         }
-        mReadyTasks.offer(task);
+        String taskId = task.getTaskId();
+        if (taskId != null) {
+            mTaskIndex.put(taskId, task);
+        }
+        synchronized (this) {
+            mReadyTasks.offer(task);
+        }
         promoteAndExecute();
     }
 
-    public synchronized void promoteAndExecute() {
-        List<Task<?>> executableTasks = new ArrayList<>();
-        Iterator<Task<?>> iterator = mReadyTasks.iterator();
-        while (iterator.hasNext()) {
-            Task<?> task = iterator.next();
-            if (mRunningTasks.size() >= mMaxRunningTaskNum) break;
-            iterator.remove();
-            executableTasks.add(task);
-            mRunningTasks.add(task);
+    /**
+     * 批量提交，只获取一次锁，提交后统一开始可以执行的任务
+     */
+    public void submitAll(List<? extends Task<?>> tasks) {
+        for (int i = 0; i < tasks.size(); i++) {
+            String taskId = tasks.get(i).getTaskId();
+            if (taskId != null) {
+                mTaskIndex.put(taskId, tasks.get(i));
+            }
+        }
+        synchronized (this) {
+            for (int i = 0; i < tasks.size(); i++) {
+                mReadyTasks.offer(tasks.get(i));
+            }
         }
+        promoteAndExecute();
+    }
 
+    /**
+     * 被抢占的任务暂停完成后调用，重新排队等待执行
+     */
+    public void requeue(Task<?> task) {
+        synchronized (this) {
+            //暂停期间已经被用户暂停或取消
+            if (!mPreemptedTasks.remove(task)) return;
+            //可能比promoteAndExecute中抢占成功的处理更早执行
+            mRunningTasks.remove(task);
+            mReadyTasks.offer(task);
+        }
+        promoteAndExecute();
+    }
+
+    /**
+     * 在锁外抢占和提交，被抢占的任务暂停时不持有调度的锁。
+     * 每次只抢占一个任务，抢占成功后才释放它的位置，再由下一次调用补充
+     */
+    public void promoteAndExecute() {
+        List<Task<?>> executableTasks = new ArrayList<>();
+        Task<?> victim = null;
+        synchronized (this) {
+            while (mRunningTasks.size() < mMaxRunningTaskNum && !mReadyTasks.isEmpty()) {
+                Task<?> task = mReadyTasks.poll();
+                executableTasks.add(task);
+                mRunningTasks.add(task);
+            }
+            if (mPreemptive && mPreemptingTask == null && !mReadyTasks.isEmpty()) {
+                victim = findPreemptionVictim(mReadyTasks.peekPriority());
+                if (victim != null) {
+                    mPreemptingTask = victim;
+                    //先加入，暂停完成后调用requeue时能找到
+                    mPreemptedTasks.add(victim);
+                }
+            }
+        }
         for (int i = 0; i < executableTasks.size(); i++) {
             mExecutor.submit(executableTasks.get(i));
         }
-    }
+        if (victim == null) return;
 
-    public synchronized Task<?> findTask(@NonNull String taskId) {
-        for (Task<?> task : mReadyTasks) {
-            if (Objects.equals(taskId, task.getTaskId())) {
-                return task;
+        boolean preempted = victim.preempt();
+        synchronized (this) {
+            mPreemptingTask = null;
+            if (preempted) {
+                mRunningTasks.remove(victim);
+            } else {
+                //已经结束，结束时会调用finishTask
+                mPreemptedTasks.remove(victim);
             }
         }
+        if (preempted) {
+            FLog.i("preempt task: " + victim.getTaskId());
+            promoteAndExecute();
+        }
+    }
 
+    /**
+     * 可以抢占并且优先级最低的运行中任务，优先级要严格低于等待中的任务
+     */
+    private Task<?> findPreemptionVictim(int priority) {
+        Task<?> victim = null;
         for (Task<?> task : mRunningTasks) {
-            if (Objects.equals(taskId, task.getTaskId())) {
-                return task;
+            if (task.getPriority() < priority && task.isPreemptible() && !mPreemptedTasks.contains(task)
+                    && (victim == null || task.getPriority() < victim.getPriority())) {
+                victim = task;
             }
         }
+        return victim;
+    }
+
+    /**
+     * 执行短时间的调度工作，例如分片结束后的状态转换
+     */
+    public void execute(@NonNull Runnable runnable) {
+        mExecutor.execute(runnable);
+    }
+
+    /**
+     * 延迟执行，例如失败分片的重试，不占用等待的线程
+     */
+    public void schedule(@NonNull final Runnable runnable, long delayMillis) {
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(runnable);
+            }
+        }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
 
-        return null;
+    /**
+     * 查找等待中或执行中的任务，不需要获取锁
+     */
+    public Task<?> findTask(@NonNull String taskId) {
+        return mTaskIndex.get(taskId);
     }
 
-    public synchronized void finishTask(Task<?> task) {
-        mReadyTasks.remove(task);
-        mRunningTasks.remove(task);
+    public void finishTask(Task<?> task) {
+        String taskId = task.getTaskId();
+        if (taskId != null) {
+            mTaskIndex.remove(taskId, task);
+        }
+        synchronized (this) {
+            //抢占中的任务同时在运行和被抢占的集合中
+            boolean removed = mReadyTasks.remove(task);
+            removed |= mRunningTasks.remove(task);
+            removed |= mPreemptedTasks.remove(task);
+            if (!removed) return;
+        }
         promoteAndExecute();
     }
 
-    public synchronized boolean pause(String taskId) {
+    /**
+     * 在锁外暂停，任务暂停时会调用{@link #finishTask(Task)}
+     */
+    public boolean pause(String taskId) {
         Task<?> task = findTask(taskId);
         if (task != null) {
             task.pause();
@@ -112,7 +220,7 @@ public class TaskDispatcher {
         return false;
     }
 
-    public synchronized boolean cancel(String taskId) {
+    public boolean cancel(String taskId) {
         Task<?> task = findTask(taskId);
         if (task != null) {
             task.cancel();
@@ -121,16 +229,58 @@ public class TaskDispatcher {
         return false;
     }
 
-    public synchronized int getMaxRunningTaskNum() {
+    public int getMaxRunningTaskNum() {
         return mMaxRunningTaskNum;
     }
 
-    public synchronized void setMaxRunningTaskNum(int maxRunningTaskNum) {
+    public void setMaxRunningTaskNum(int maxRunningTaskNum) {
         mMaxRunningTaskNum = maxRunningTaskNum;
+        promoteAndExecute();
+    }
+
+    /**
+     * 开启后优先级更高的任务可以抢占运行中的任务，被抢占的任务保留进度，有空位时自动继续
+     */
+    public void setPreemptive(boolean preemptive) {
+        mPreemptive = preemptive;
+        promoteAndExecute();
+    }
+
+    public boolean isPreemptive() {
+        return mPreemptive;
+    }
+
+    /**
+     * 等待中的任务每等待agingInterval毫秒优先级加1，小于等于0时不老化
+     */
+    public synchronized void setPriorityAgingInterval(long agingInterval) {
+        mReadyTasks.setAgingInterval(agingInterval);
+    }
+
+    public synchronized long getPriorityAgingInterval() {
+        return mReadyTasks.getAgingInterval();
+    }
+
+    /**
+     * 所有任务共用的HTTP连接数限制，分片任务开始前需要先申请连接
+     */
+    public ConnectionBudget getConnectionBudget() {
+        return mConnectionBudget;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        mConnectionBudget.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * @param maxConnectionsPerHost 小于等于0时不限制
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        mConnectionBudget.setMaxConnectionsPerHost(maxConnectionsPerHost);
     }
 
     public synchronized List<Task<?>> readyTasks() {
-        List<Task<?>> readyTasks = new ArrayList<>(mReadyTasks);
+        List<Task<?>> readyTasks = mReadyTasks.toList();
         return Collections.unmodifiableList(readyTasks);
     }
 
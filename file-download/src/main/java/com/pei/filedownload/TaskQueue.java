@@ -0,0 +1,199 @@
+package com.pei.filedownload;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 带索引的优先队列，优先级高的先出队，优先级相同时先进先出。
+ * 记录每个任务在堆中的位置，删除任意任务为O(log n)。非线程安全。
+ * 开启老化后每等待agingInterval毫秒有效优先级加1，低优先级的任务不会一直等待。
+ * 有截止时间的任务排在前面，按截止时间先后出队
+ */
+class TaskQueue {
+
+    private Entry[] mHeap = new Entry[64];
+    private int mSize;
+    private Map<Task<?>, Entry> mEntries = new IdentityHashMap<>();
+    private long mNextSequence;
+    private long mAgingInterval;
+
+    /**
+     * @param agingInterval 小于等于0时不老化
+     */
+    void setAgingInterval(long agingInterval) {
+        mAgingInterval = Math.max(0, agingInterval);
+        //比较方式变了，重新建堆
+        for (int i = (mSize >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    long getAgingInterval() {
+        return mAgingInterval;
+    }
+
+    /**
+     * 队首任务入队时的优先级，不包括老化增加的部分，队列为空时返回Integer.MIN_VALUE。
+     * 老化只决定出队顺序，抢占时使用这个优先级，避免相同优先级的任务互相抢占
+     */
+    int peekPriority() {
+        if (mSize == 0) return Integer.MIN_VALUE;
+        return mHeap[0].priority;
+    }
+
+    boolean offer(@NonNull Task<?> task) {
+        if (mEntries.containsKey(task)) return false;
+        if (mSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mSize * 2);
+        }
+        Entry entry = new Entry(task, task.getPriority(), task.getDeadline(), now(), mNextSequence++);
+        mEntries.put(task, entry);
+        entry.index = mSize;
+        mHeap[mSize++] = entry;
+        siftUp(entry.index);
+        return true;
+    }
+
+    @Nullable
+    Task<?> peek() {
+        return mSize == 0 ? null : mHeap[0].task;
+    }
+
+    @Nullable
+    Task<?> poll() {
+        if (mSize == 0) return null;
+        Task<?> task = mHeap[0].task;
+        removeAt(0);
+        return task;
+    }
+
+    boolean remove(@NonNull Task<?> task) {
+        Entry entry = mEntries.get(task);
+        if (entry == null) return false;
+        removeAt(entry.index);
+        return true;
+    }
+
+    boolean contains(@NonNull Task<?> task) {
+        return mEntries.containsKey(task);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * 按堆中的顺序返回，不保证优先级顺序
+     */
+    List<Task<?>> toList() {
+        List<Task<?>> tasks = new ArrayList<>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            tasks.add(mHeap[i].task);
+        }
+        return tasks;
+    }
+
+    private void removeAt(int index) {
+        Entry removed = mHeap[index];
+        mEntries.remove(removed.task);
+        int last = --mSize;
+        if (index != last) {
+            Entry entry = mHeap[last];
+            mHeap[index] = entry;
+            entry.index = index;
+            mHeap[last] = null;
+            siftDown(index);
+            if (mHeap[index] == entry) {
+                siftUp(index);
+            }
+        } else {
+            mHeap[last] = null;
+        }
+    }
+
+    private void siftUp(int index) {
+        Entry entry = mHeap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            Entry parentEntry = mHeap[parent];
+            if (compare(entry, parentEntry) >= 0) break;
+            mHeap[index] = parentEntry;
+            parentEntry.index = index;
+            index = parent;
+        }
+        mHeap[index] = entry;
+        entry.index = index;
+    }
+
+    private void siftDown(int index) {
+        Entry entry = mHeap[index];
+        int half = mSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < mSize && compare(mHeap[right], mHeap[child]) < 0) {
+                child = right;
+            }
+            if (compare(entry, mHeap[child]) <= 0) break;
+            mHeap[index] = mHeap[child];
+            mHeap[index].index = index;
+            index = child;
+        }
+        mHeap[index] = entry;
+        entry.index = index;
+    }
+
+    /**
+     * 有效优先级高的在前，相同时先加入的在前。入队时记录优先级，避免入队后修改优先级破坏堆。
+     * 有效优先级为priority + (now - enqueueTime) / agingInterval，两个任务的先后只和
+     * priority * agingInterval - enqueueTime有关，不随时间变化
+     */
+    private int compare(Entry e1, Entry e2) {
+        if (e1.deadline != e2.deadline) {
+            if (e1.deadline <= 0) return 1;
+            if (e2.deadline <= 0) return -1;
+            return e1.deadline < e2.deadline ? -1 : 1;
+        }
+        if (mAgingInterval > 0) {
+            long key1 = e1.priority * mAgingInterval - e1.enqueueTime;
+            long key2 = e2.priority * mAgingInterval - e2.enqueueTime;
+            if (key1 != key2) {
+                return key1 > key2 ? -1 : 1;
+            }
+        } else if (e1.priority != e2.priority) {
+            return e1.priority > e2.priority ? -1 : 1;
+        }
+        return Long.compare(e1.sequence, e2.sequence);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static class Entry {
+        final Task<?> task;
+        final int priority;
+        final long deadline;
+        final long enqueueTime;
+        final long sequence;
+        int index;
+
+        Entry(Task<?> task, int priority, long deadline, long enqueueTime, long sequence) {
+            this.task = task;
+            this.priority = priority;
+            this.deadline = Math.max(0, deadline);
+            this.enqueueTime = enqueueTime;
+            this.sequence = sequence;
+        }
+    }
+}
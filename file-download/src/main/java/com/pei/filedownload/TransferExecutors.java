@@ -0,0 +1,81 @@
+package com.pei.filedownload;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 执行分片等传输任务的线程池，线程数不随正在传输的分片数增长
+ */
+public final class TransferExecutors {
+    private static final String TAG = "TransferExecutors";
+    public static final int DEFAULT_THREADS = ConnectionBudget.DEFAULT_MAX_CONNECTIONS;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private TransferExecutors() {
+    }
+
+    /**
+     * 固定线程数的线程池，空闲的线程60秒后退出。
+     * 队列满时由提交的线程直接执行，形成背压
+     */
+    @NonNull
+    public static ExecutorService newBoundedExecutor(int threads, int queueCapacity) {
+        threads = Math.max(1, threads);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(1, queueCapacity)), newThreadFactory("Transfer-thread-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 每个传输使用一个虚拟线程，需要JDK 21以上，不支持时返回null。
+     * Android没有虚拟线程，在Android上总是返回null，只在JVM上运行时可以使用
+     */
+    @Nullable
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 默认大小的线程池
+     */
+    @NonNull
+    public static ExecutorService newDefaultExecutor() {
+        return newBoundedExecutor(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    static ThreadFactory newThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private AtomicInteger number = new AtomicInteger();
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName(namePrefix + number.getAndIncrement());
+                thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e) {
+                        Log.e(TAG, "uncaughtException,thread: " + t.getName(), e);
+                    }
+                });
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,19 @@
+package com.pei.filedownload;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 签名地址过期时提供新的下载地址，任务id和已下载的分片不变
+ */
+public interface UrlProvider {
+
+    /**
+     * 请求返回401、403、410时回调，同一个过期地址只回调一次。
+     * 在下载线程中回调，可以同步请求新的地址
+     * @param expiredUrl 过期的地址
+     * @param code 服务器返回的状态码
+     * @return 新的地址，返回null或者相同的地址时按失败处理
+     */
+    @Nullable
+    String refreshUrl(String taskId, String expiredUrl, int code) throws Exception;
+}
@@ -6,14 +6,24 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.webkit.MimeTypeMap;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RestrictTo;
 
+import com.pei.filedownload.exception.DownloadException;
+
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -54,24 +64,34 @@ public class Utils {
         return result;
     }
 
-    public static String getFileMd5(File file) {
+    public static String getFileMd5(File file, BufferPool bufferPool) {
         if (!file.isFile()) {
             return null;
         }
         MessageDigest digest;
-        FileInputStream in;
-        byte buffer[] = new byte[1024];
-        int len;
+        FileInputStream in = null;
+        ByteBuffer buffer = null;
         try {
             digest = MessageDigest.getInstance("MD5");
             in = new FileInputStream(file);
-            while ((len = in.read(buffer, 0, 1024)) != -1) {
-                digest.update(buffer, 0, len);
+            FileChannel channel = in.getChannel();
+            buffer = bufferPool.acquire();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
             }
-            in.close();
         } catch (Exception e) {
             e.printStackTrace();
             return null;
+        } finally {
+            bufferPool.release(buffer);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
         }
         BigInteger bigInt = new BigInteger(1, digest.digest());
         String md5 = bigInt.toString(16);
@@ -136,4 +156,62 @@ public class Utils {
         //return bytesAvailable / (1024f * 1024f);
         return bytesAvailable;
     }
+
+    /**
+     * 获取目录所在分区的剩余空间
+     * @return available bytes
+     */
+    public static long getFreeDiskSpace(File dir) {
+        while (dir != null && !dir.exists()) {
+            dir = dir.getParentFile();
+        }
+        if (dir == null) return getFreeDiskSpace();
+        StatFs statFs = new StatFs(dir.getPath());
+        return statFs.getBlockSizeLong() * statFs.getAvailableBlocksLong();
+    }
+
+    /**
+     * 文件实际占用的磁盘空间，稀疏文件中未写入的部分不计算在内
+     */
+    public static long getAllocatedSize(File file) {
+        if (!file.exists()) return 0;
+        try {
+            return Os.stat(file.getPath()).st_blocks * 512;
+        } catch (ErrnoException e) {
+            return file.length();
+        }
+    }
+
+    /**
+     * 预分配文件空间，使后续的写入落在连续的区域
+     * @return 是否已经在磁盘上分配了空间，文件系统不支持时只设置文件长度
+     */
+    public static boolean preallocate(RandomAccessFile file, long length) throws IOException {
+        if (file.length() != length) {
+            file.setLength(length);
+        }
+        try {
+            Os.posix_fallocate(file.getFD(), 0, length);
+            return true;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new DownloadException("No available space for download", e);
+            }
+            FLog.w("Preallocate failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * 限速等待，被中断时抛出InterruptedIOException
+     */
+    public static void sleepNanos(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) return;
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sleep interrupted");
+        }
+    }
 }
@@ -0,0 +1,160 @@
+package com.pei.filedownload;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按权重分配带宽，每个下载任务是一个流，所有分片连接共用流的限速。
+ * 每秒统计各个流的速度，按权重做max-min分配：用不完份额的流只分配它实际需要的带宽，
+ * 剩余的按权重分给其他流。总带宽为全局限速，没有全局限速时用测得的总速度加10%余量估计
+ */
+public class WeightedFairShaper {
+    private static final long INTERVAL_NANOS = 1000 * 1000 * 1000L;
+    private static final double HEADROOM = 1.1;
+    private static final double SATURATED_RATIO = 0.9; //达到分配的90%时认为还需要更多带宽
+    private static final long MIN_RATE = 16 * 1024;
+
+    private RateLimiter mGlobalLimiter;
+    private List<Flow> mFlows = new ArrayList<>();
+    private volatile boolean mEnabled;
+    private volatile long mLastRebalanceNanos = System.nanoTime();
+
+    WeightedFairShaper(RateLimiter globalLimiter) {
+        this.mGlobalLimiter = globalLimiter;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            for (Flow flow : mFlows) {
+                flow.limiter.setRate(0);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @param weight 权重，至少为1
+     */
+    @NonNull
+    public synchronized Flow openFlow(int weight) {
+        Flow flow = new Flow(Math.max(1, weight));
+        mFlows.add(flow);
+        return flow;
+    }
+
+    public synchronized void closeFlow(@NonNull Flow flow) {
+        mFlows.remove(flow);
+        flow.limiter.setRate(0);
+    }
+
+    /**
+     * @return 需要等待的纳秒数
+     */
+    long reserve(@NonNull Flow flow, long bytes) {
+        return reserve(flow, bytes, System.nanoTime());
+    }
+
+    /**
+     * @param now 当前时间，纳秒，和System.nanoTime()一致
+     */
+    long reserve(@NonNull Flow flow, long bytes, long now) {
+        if (!mEnabled) return 0;
+        flow.bytes.addAndGet(bytes);
+        if (now - mLastRebalanceNanos >= INTERVAL_NANOS) {
+            rebalance(now);
+        }
+        return flow.limiter.reserve(bytes);
+    }
+
+    private synchronized void rebalance(long now) {
+        long elapsed = now - mLastRebalanceNanos;
+        //其他线程已经分配过
+        if (elapsed < INTERVAL_NANOS || !mEnabled) return;
+        mLastRebalanceNanos = now;
+
+        double total = 0;
+        for (Flow flow : mFlows) {
+            flow.rate = flow.bytes.getAndSet(0) * 1e9 / elapsed;
+            total += flow.rate;
+        }
+        double capacity = mGlobalLimiter.isUnlimited() ? total * HEADROOM : mGlobalLimiter.getRate();
+        if (mFlows.size() < 2 || capacity <= 0) {
+            for (Flow flow : mFlows) {
+                flow.limiter.setRate(0);
+            }
+            return;
+        }
+
+        List<Flow> unsatisfied = new ArrayList<>();
+        for (Flow flow : mFlows) {
+            long limit = flow.limiter.getRate();
+            flow.saturated = limit <= 0 || flow.rate >= limit * SATURATED_RATIO;
+            unsatisfied.add(flow);
+        }
+        //需求小于份额的流只分配需求，剩余的重新按权重分配，直到没有变化
+        double remaining = capacity;
+        boolean changed = true;
+        while (changed && !unsatisfied.isEmpty()) {
+            changed = false;
+            int weights = 0;
+            for (Flow flow : unsatisfied) {
+                weights += flow.weight;
+            }
+            for (int i = unsatisfied.size() - 1; i >= 0; i--) {
+                Flow flow = unsatisfied.get(i);
+                if (flow.saturated) continue;
+                double demand = Math.max(MIN_RATE, flow.rate * HEADROOM);
+                if (demand < remaining * flow.weight / weights) {
+                    flow.allocation = demand;
+                    remaining -= demand;
+                    unsatisfied.remove(i);
+                    changed = true;
+                }
+            }
+        }
+        int weights = 0;
+        for (Flow flow : unsatisfied) {
+            weights += flow.weight;
+        }
+        for (Flow flow : unsatisfied) {
+            flow.allocation = remaining * flow.weight / weights;
+        }
+        for (Flow flow : mFlows) {
+            flow.limiter.setRate(Math.max(MIN_RATE, (long) flow.allocation));
+        }
+    }
+
+    /**
+     * 一个下载任务的带宽份额
+     */
+    public static class Flow {
+        final int weight;
+        final RateLimiter limiter = new RateLimiter(0);
+        final AtomicLong bytes = new AtomicLong();
+        double rate;
+        double allocation;
+        boolean saturated;
+
+        Flow(int weight) {
+            this.weight = weight;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * 当前分配的速度，0表示不限制
+         */
+        public long getRate() {
+            return limiter.getRate();
+        }
+    }
+}
@@ -7,11 +7,17 @@ import android.database.sqlite.SQLiteDatabase;
 
 import androidx.annotation.IntRange;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 import com.pei.filedownload.Segment;
 import com.pei.filedownload.Task;
+import com.pei.filedownload.task.DownloadRequest;
 import com.pei.filedownload.task.model.DownloadSegment;
 import com.pei.filedownload.task.model.DownloadTaskModel;
+import com.pei.filedownload.task.model.HostCapability;
+import com.pei.filedownload.task.model.ResourceInfo;
 
 /** 数据库操作
  * Created by peidongbiao on 2018/6/23.
@@ -47,6 +53,78 @@ public class FileTransferDao {
         return id;
     }
 
+    /**
+     * 更新已经存在的任务，批量开始时预先插入的任务获取资源信息后只需要一次更新
+     */
+    public int updateDownloadTask(DownloadTaskModel downloadTask) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        ContentValues contentValues = FileTransferSchema.DownloadTaskTable.WRITER.toContentValues(downloadTask);
+        int rows = database.update(FileTransferSchema.DownloadTaskTable.TABLE_NAME, contentValues, FileTransferSchema.DownloadTaskTable.COLUMN_TASK_ID + " = ?", new String[]{downloadTask.getTaskId()});
+        return rows;
+    }
+
+    /**
+     * 在一个事务中插入多个任务，已经存在的任务保持不变
+     */
+    public void insertDownloadTasks(List<DownloadTaskModel> downloadTasks) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (DownloadTaskModel downloadTask : downloadTasks) {
+                ContentValues contentValues = FileTransferSchema.DownloadTaskTable.WRITER.toContentValues(downloadTask);
+                database.insertWithOnConflict(FileTransferSchema.DownloadTaskTable.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * 在一个事务中记录作业和作业中任务的请求参数，任务记录不存在时插入等待中的任务，已经存在的任务保持不变
+     */
+    public void insertDownloadJob(String jobId, List<DownloadRequest> requests) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            database.delete(FileTransferSchema.DownloadJobTable.TABLE_NAME, FileTransferSchema.DownloadJobTable.COLUMN_JOB_ID + " = ?", new String[]{jobId});
+            for (int i = 0; i < requests.size(); i++) {
+                DownloadRequest request = requests.get(i);
+                DownloadTaskModel downloadTask = new DownloadTaskModel(request.getRequestId(), request);
+                downloadTask.setStatus(Task.STATUS_ENQUEUE);
+                database.insertWithOnConflict(FileTransferSchema.DownloadTaskTable.TABLE_NAME, null, FileTransferSchema.DownloadTaskTable.WRITER.toContentValues(downloadTask), SQLiteDatabase.CONFLICT_IGNORE);
+                ContentValues contentValues = FileTransferSchema.DownloadJobTable.WRITER.toContentValues(request);
+                contentValues.put(FileTransferSchema.DownloadJobTable.COLUMN_JOB_ID, jobId);
+                contentValues.put(FileTransferSchema.DownloadJobTable.COLUMN_JOB_INDEX, i);
+                database.insertWithOnConflict(FileTransferSchema.DownloadJobTable.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * 按加入作业的顺序返回任务的请求，不依赖任务记录，任务记录被删除后也可以恢复
+     */
+    public List<DownloadRequest> findDownloadJobRequests(String jobId) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getReadableDatabase();
+        Cursor cursor = database.query(FileTransferSchema.DownloadJobTable.TABLE_NAME, FileTransferSchema.DownloadJobTable.PROJECTION,
+                FileTransferSchema.DownloadJobTable.COLUMN_JOB_ID + " = ?", new String[]{jobId}, null, null, FileTransferSchema.DownloadJobTable.COLUMN_JOB_INDEX);
+        List<DownloadRequest> requests = new ArrayList<>();
+        if (cursor == null) return requests;
+        while (cursor.moveToNext()) {
+            requests.add(FileTransferSchema.DownloadJobTable.READER.toEntity(cursor));
+        }
+        cursor.close();
+        return requests;
+    }
+
+    public int deleteDownloadJob(String jobId) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        return database.delete(FileTransferSchema.DownloadJobTable.TABLE_NAME, FileTransferSchema.DownloadJobTable.COLUMN_JOB_ID + " = ?", new String[]{jobId});
+    }
+
     public DownloadTaskModel findDownloadTask(String taskId) {
         SQLiteDatabase database = mFileTransferDbOpenHelper.getReadableDatabase();
         Cursor cursor = database.query(FileTransferSchema.DownloadTaskTable.TABLE_NAME, FileTransferSchema.DownloadTaskTable.PROJECTION, FileTransferSchema.DownloadTaskTable.COLUMN_TASK_ID + " = ?", new String[]{taskId},null, null,null);
@@ -75,12 +153,80 @@ public class FileTransferDao {
         return rows;
     }
 
+    public int updateDownloadTaskMergedLength(String taskId, long mergedLength) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(FileTransferSchema.DownloadTaskTable.COLUMN_MERGED_LENGTH, mergedLength);
+        int rows = database.update(FileTransferSchema.DownloadTaskTable.TABLE_NAME, contentValues, FileTransferSchema.DownloadTaskTable.COLUMN_TASK_ID + " = ?", new String[]{taskId});
+        return rows;
+    }
+
+    /**
+     * 下载地址刷新后同时更新任务和分片的地址
+     */
+    public void updateDownloadTaskUrl(String taskId, String url) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            ContentValues taskValues = new ContentValues();
+            taskValues.put(FileTransferSchema.DownloadTaskTable.COLUMN_URL, url);
+            database.update(FileTransferSchema.DownloadTaskTable.TABLE_NAME, taskValues, FileTransferSchema.DownloadTaskTable.COLUMN_TASK_ID + " = ?", new String[]{taskId});
+            ContentValues segmentValues = new ContentValues();
+            segmentValues.put(FileTransferSchema.DownloadSegmentTable.COLUMN_URL, url);
+            database.update(FileTransferSchema.DownloadSegmentTable.TABLE_NAME, segmentValues, FileTransferSchema.DownloadSegmentTable.COLUMN_TASK_ID + " = ?", new String[]{taskId});
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
     public int deleteDownloadTaskModel(String taskId) {
         SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
         int rows = database.delete(FileTransferSchema.DownloadTaskTable.TABLE_NAME, FileTransferSchema.DownloadTaskTable.COLUMN_TASK_ID + " = ?", new String[]{taskId});
         return rows;
     }
 
+    public long insertResourceInfo(ResourceInfo info) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        ContentValues contentValues = FileTransferSchema.ResourceInfoTable.WRITER.toContentValues(info);
+        return database.insertWithOnConflict(FileTransferSchema.ResourceInfoTable.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public ResourceInfo findResourceInfo(String url) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getReadableDatabase();
+        Cursor cursor = database.query(FileTransferSchema.ResourceInfoTable.TABLE_NAME, FileTransferSchema.ResourceInfoTable.PROJECTION, FileTransferSchema.ResourceInfoTable.COLUMN_URL + " = ?", new String[]{url}, null, null, null);
+        if (cursor == null) return null;
+        ResourceInfo info = null;
+        if (cursor.moveToNext()) {
+            info = FileTransferSchema.ResourceInfoTable.READER.toEntity(cursor);
+        }
+        cursor.close();
+        return info;
+    }
+
+    public int deleteResourceInfo(String url) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        return database.delete(FileTransferSchema.ResourceInfoTable.TABLE_NAME, FileTransferSchema.ResourceInfoTable.COLUMN_URL + " = ?", new String[]{url});
+    }
+
+    public long insertHostCapability(HostCapability capability) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        ContentValues contentValues = FileTransferSchema.HostCapabilityTable.WRITER.toContentValues(capability);
+        return database.insertWithOnConflict(FileTransferSchema.HostCapabilityTable.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public HostCapability findHostCapability(String host) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getReadableDatabase();
+        Cursor cursor = database.query(FileTransferSchema.HostCapabilityTable.TABLE_NAME, FileTransferSchema.HostCapabilityTable.PROJECTION, FileTransferSchema.HostCapabilityTable.COLUMN_HOST + " = ?", new String[]{host}, null, null, null);
+        if (cursor == null) return null;
+        HostCapability capability = null;
+        if (cursor.moveToNext()) {
+            capability = FileTransferSchema.HostCapabilityTable.READER.toEntity(cursor);
+        }
+        cursor.close();
+        return capability;
+    }
+
     public long insetDownloadSegment(DownloadSegment segment) {
         SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
         ContentValues contentValues = FileTransferSchema.DownloadSegmentTable.WRITER.toContentValues(segment);
@@ -100,6 +246,55 @@ public class FileTransferDao {
         return null;
     }
 
+    /**
+     * 查找任务的所有分片，按偏移量排序
+     */
+    public List<DownloadSegment> findDownloadSegments(String taskId) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getReadableDatabase();
+        Cursor cursor = database.query(FileTransferSchema.DownloadSegmentTable.TABLE_NAME, FileTransferSchema.DownloadSegmentTable.PROJECTION, FileTransferSchema.DownloadSegmentTable.COLUMN_TASK_ID + " = ?", new String[]{taskId}, null, null, FileTransferSchema.DownloadSegmentTable.COLUMN_OFFSET);
+        List<DownloadSegment> segments = new ArrayList<>();
+        if (cursor == null) return segments;
+        while (cursor.moveToNext()) {
+            segments.add(FileTransferSchema.DownloadSegmentTable.READER.toEntity(cursor));
+        }
+        cursor.close();
+        return segments;
+    }
+
+    /**
+     * 在一个事务中插入多个分片，已经存在的分片保持不变
+     */
+    public void insertDownloadSegments(List<DownloadSegment> segments) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (DownloadSegment segment : segments) {
+                ContentValues contentValues = FileTransferSchema.DownloadSegmentTable.WRITER.toContentValues(segment);
+                database.insertWithOnConflict(FileTransferSchema.DownloadSegmentTable.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * 分片拆分后在同一个事务中更新原分片的长度并插入新的分片
+     */
+    public void splitDownloadSegment(DownloadSegment segment, DownloadSegment newSegment) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(FileTransferSchema.DownloadSegmentTable.COLUMN_SEGMENT_LENGTH, segment.getSegmentLength());
+            database.update(FileTransferSchema.DownloadSegmentTable.TABLE_NAME, contentValues, FileTransferSchema.DownloadSegmentTable.COLUMN_TASK_ID + " = ? and " + FileTransferSchema.DownloadSegmentTable.COLUMN_NUMBER + " = ?", new String[]{ segment.getTaskId(), String.valueOf(segment.getNumber())});
+            database.insertWithOnConflict(FileTransferSchema.DownloadSegmentTable.TABLE_NAME, null, FileTransferSchema.DownloadSegmentTable.WRITER.toContentValues(newSegment), SQLiteDatabase.CONFLICT_REPLACE);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
     public int updateDownloadSegmentStatus(DownloadSegment segment, @Segment.Status int status) {
         SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
         ContentValues contentValues = new ContentValues();
@@ -108,6 +303,15 @@ public class FileTransferDao {
         return result;
     }
 
+    public int updateDownloadSegmentProgress(DownloadSegment segment) {
+        SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(FileTransferSchema.DownloadSegmentTable.COLUMN_PROGRESS, segment.getProgress());
+        contentValues.put(FileTransferSchema.DownloadSegmentTable.COLUMN_DOWNLOADED_LENGTH, segment.getDownloadedLength());
+        int result = database.update(FileTransferSchema.DownloadSegmentTable.TABLE_NAME, contentValues, FileTransferSchema.DownloadSegmentTable.COLUMN_TASK_ID + " = ? and " + FileTransferSchema.DownloadSegmentTable.COLUMN_NUMBER + " = ?", new String[]{ segment.getTaskId(), String.valueOf(segment.getNumber())});
+        return result;
+    }
+
     public int deleteDownloadSegments(String taskId) {
         SQLiteDatabase database = mFileTransferDbOpenHelper.getWritableDatabase();
         int rows = database.delete(FileTransferSchema.DownloadSegmentTable.TABLE_NAME, FileTransferSchema.DownloadSegmentTable.COLUMN_TASK_ID + " = ?", new String[]{taskId});
@@ -8,7 +8,7 @@ import android.database.sqlite.SQLiteOpenHelper;
  * Created by peidongbiao on 2018/6/23.
  */
 public class FileTransferDbOpenHelper extends SQLiteOpenHelper {
-    private static final int DB_VERSION = 3;
+    private static final int DB_VERSION = 8;
 
     private static final String DB_NAME = "file_transfer.db";
 
@@ -26,7 +26,9 @@ public class FileTransferDbOpenHelper extends SQLiteOpenHelper {
                     FileTransferSchema.DownloadTaskTable.COLUMN_LAST_MODIFIED + " TEXT," +
                     FileTransferSchema.DownloadTaskTable.COLUMN_STATUS + " INTEGER," +
                     FileTransferSchema.DownloadTaskTable.COLUMN_PROGRESS + " INTEGER," +
-                    FileTransferSchema.DownloadTaskTable.COLUMN_HEADERS + " TEXT" +
+                    FileTransferSchema.DownloadTaskTable.COLUMN_HEADERS + " TEXT," +
+                    FileTransferSchema.DownloadTaskTable.COLUMN_DIRECT_WRITE + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.DownloadTaskTable.COLUMN_MERGED_LENGTH + " INTEGER DEFAULT 0" +
                     ")";
 
     private static final String SQL_CREATE_DOWNLOAD_SEGMENT =
@@ -43,12 +45,93 @@ public class FileTransferDbOpenHelper extends SQLiteOpenHelper {
                     FileTransferSchema.DownloadSegmentTable.COLUMN_URL + " TEXT," +
                     FileTransferSchema.DownloadSegmentTable.COLUMN_TARGET + " TEXT," +
                     FileTransferSchema.DownloadSegmentTable.COLUMN_PROGRESS + " INTEGER," +
+                    FileTransferSchema.DownloadSegmentTable.COLUMN_DOWNLOADED_LENGTH + " INTEGER DEFAULT 0," +
                     "PRIMARY KEY(" + FileTransferSchema.DownloadSegmentTable.COLUMN_TASK_ID + "," + FileTransferSchema.DownloadSegmentTable.COLUMN_NUMBER + ")" +
                     ")";
 
+    private static final String SQL_CREATE_DOWNLOAD_JOB =
+            "CREATE TABLE IF NOT EXISTS " + FileTransferSchema.DownloadJobTable.TABLE_NAME + "(" +
+                    FileTransferSchema.DownloadJobTable.COLUMN_JOB_ID + " TEXT, " +
+                    FileTransferSchema.DownloadJobTable.COLUMN_TASK_ID + " TEXT, " +
+                    FileTransferSchema.DownloadJobTable.COLUMN_JOB_INDEX + " INTEGER," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_URL + " TEXT," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_TARGET + " TEXT," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_FILE_NAME + " TEXT," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_HEADERS + " TEXT," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_DIRECT_WRITE + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_NO_SPLIT + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_PRIORITY + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_DEADLINE + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_RATE_LIMIT + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_WEIGHT + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_MIN_PARALLEL_NUM + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_MAX_PARALLEL_NUM + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_REUSE_PROBE_CONNECTION + " INTEGER DEFAULT 0," +
+                    "PRIMARY KEY(" + FileTransferSchema.DownloadJobTable.COLUMN_JOB_ID + "," + FileTransferSchema.DownloadJobTable.COLUMN_TASK_ID + ")" +
+                    ")";
+
+    private static final String DOWNLOAD_JOB_OLD = FileTransferSchema.DownloadJobTable.TABLE_NAME + "_OLD";
+
+    private static final String SQL_RENAME_DOWNLOAD_JOB =
+            "ALTER TABLE " + FileTransferSchema.DownloadJobTable.TABLE_NAME + " RENAME TO " + DOWNLOAD_JOB_OLD;
+
+    //升级前作业只记录任务id，请求参数从任务记录中补上，任务记录已经删除的无法恢复
+    private static final String SQL_COPY_DOWNLOAD_JOB =
+            "INSERT INTO " + FileTransferSchema.DownloadJobTable.TABLE_NAME + "(" +
+                    FileTransferSchema.DownloadJobTable.COLUMN_JOB_ID + "," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_TASK_ID + "," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_JOB_INDEX + "," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_URL + "," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_TARGET + "," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_FILE_NAME + "," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_HEADERS + "," +
+                    FileTransferSchema.DownloadJobTable.COLUMN_DIRECT_WRITE + ")" +
+                    " SELECT j." + FileTransferSchema.DownloadJobTable.COLUMN_JOB_ID +
+                    ", j." + FileTransferSchema.DownloadJobTable.COLUMN_TASK_ID +
+                    ", j." + FileTransferSchema.DownloadJobTable.COLUMN_JOB_INDEX +
+                    ", t." + FileTransferSchema.DownloadTaskTable.COLUMN_URL +
+                    ", t." + FileTransferSchema.DownloadTaskTable.COLUMN_TARGET +
+                    ", t." + FileTransferSchema.DownloadTaskTable.COLUMN_FILE_NAME +
+                    ", t." + FileTransferSchema.DownloadTaskTable.COLUMN_HEADERS +
+                    ", t." + FileTransferSchema.DownloadTaskTable.COLUMN_DIRECT_WRITE +
+                    " FROM " + DOWNLOAD_JOB_OLD + " j INNER JOIN " + FileTransferSchema.DownloadTaskTable.TABLE_NAME + " t" +
+                    " ON j." + FileTransferSchema.DownloadJobTable.COLUMN_TASK_ID + " = t." + FileTransferSchema.DownloadTaskTable.COLUMN_TASK_ID;
+
+    private static final String SQL_DROP_DOWNLOAD_JOB_OLD = "DROP TABLE " + DOWNLOAD_JOB_OLD;
+
+    private static final String SQL_CREATE_RESOURCE_INFO =
+            "CREATE TABLE IF NOT EXISTS " + FileTransferSchema.ResourceInfoTable.TABLE_NAME + "(" +
+                    FileTransferSchema.ResourceInfoTable.COLUMN_URL + " TEXT PRIMARY KEY, " +
+                    FileTransferSchema.ResourceInfoTable.COLUMN_CONTENT_TYPE + " TEXT," +
+                    FileTransferSchema.ResourceInfoTable.COLUMN_CONTENT_LENGTH + " INTEGER," +
+                    FileTransferSchema.ResourceInfoTable.COLUMN_ACCEPT_RANGES + " TEXT," +
+                    FileTransferSchema.ResourceInfoTable.COLUMN_ETAG + " TEXT," +
+                    FileTransferSchema.ResourceInfoTable.COLUMN_LAST_MODIFIED + " TEXT," +
+                    FileTransferSchema.ResourceInfoTable.COLUMN_PROBE_TIME + " INTEGER" +
+                    ")";
+
+    private static final String SQL_CREATE_HOST_CAPABILITY =
+            "CREATE TABLE IF NOT EXISTS " + FileTransferSchema.HostCapabilityTable.TABLE_NAME + "(" +
+                    FileTransferSchema.HostCapabilityTable.COLUMN_HOST + " TEXT PRIMARY KEY, " +
+                    FileTransferSchema.HostCapabilityTable.COLUMN_ACCEPT_RANGES + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.HostCapabilityTable.COLUMN_HTTP2 + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.HostCapabilityTable.COLUMN_MAX_CONNECTIONS + " INTEGER DEFAULT 0," +
+                    FileTransferSchema.HostCapabilityTable.COLUMN_UPDATE_TIME + " INTEGER" +
+                    ")";
+
     private static final String SQL_ALTER_DOWNLOAD_TASK_ADD_HEADERS =
             "ALTER TABLE " + FileTransferSchema.DownloadTaskTable.TABLE_NAME + " ADD COLUMN " + FileTransferSchema.DownloadTaskTable.COLUMN_HEADERS + " TEXT";
 
+    //升级前的任务都写入分片文件，默认值0让它们按原来的方式续传
+    private static final String SQL_ALTER_DOWNLOAD_TASK_ADD_DIRECT_WRITE =
+            "ALTER TABLE " + FileTransferSchema.DownloadTaskTable.TABLE_NAME + " ADD COLUMN " + FileTransferSchema.DownloadTaskTable.COLUMN_DIRECT_WRITE + " INTEGER DEFAULT 0";
+
+    private static final String SQL_ALTER_DOWNLOAD_SEGMENT_ADD_DOWNLOADED_LENGTH =
+            "ALTER TABLE " + FileTransferSchema.DownloadSegmentTable.TABLE_NAME + " ADD COLUMN " + FileTransferSchema.DownloadSegmentTable.COLUMN_DOWNLOADED_LENGTH + " INTEGER DEFAULT 0";
+
+    private static final String SQL_ALTER_DOWNLOAD_TASK_ADD_MERGED_LENGTH =
+            "ALTER TABLE " + FileTransferSchema.DownloadTaskTable.TABLE_NAME + " ADD COLUMN " + FileTransferSchema.DownloadTaskTable.COLUMN_MERGED_LENGTH + " INTEGER DEFAULT 0";
+
     public FileTransferDbOpenHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
     }
@@ -57,6 +140,9 @@ public class FileTransferDbOpenHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_DOWNLOAD_TASK);
         db.execSQL(SQL_CREATE_DOWNLOAD_SEGMENT);
+        db.execSQL(SQL_CREATE_DOWNLOAD_JOB);
+        db.execSQL(SQL_CREATE_RESOURCE_INFO);
+        db.execSQL(SQL_CREATE_HOST_CAPABILITY);
     }
 
     @Override
@@ -69,6 +155,27 @@ public class FileTransferDbOpenHelper extends SQLiteOpenHelper {
             case 2: {
                 db.execSQL(SQL_ALTER_DOWNLOAD_TASK_ADD_HEADERS);
             }
+            case 3: {
+                db.execSQL(SQL_ALTER_DOWNLOAD_TASK_ADD_DIRECT_WRITE);
+                db.execSQL(SQL_ALTER_DOWNLOAD_SEGMENT_ADD_DOWNLOADED_LENGTH);
+            }
+            case 4: {
+                db.execSQL(SQL_ALTER_DOWNLOAD_TASK_ADD_MERGED_LENGTH);
+            }
+            case 5: {
+                db.execSQL(SQL_CREATE_DOWNLOAD_JOB);
+            }
+            case 6: {
+                db.execSQL(SQL_CREATE_RESOURCE_INFO);
+                db.execSQL(SQL_CREATE_HOST_CAPABILITY);
+            }
+            case 7: {
+                //作业表增加请求参数，重建表，从5升级时上面已经按新结构创建，同样可以复制
+                db.execSQL(SQL_RENAME_DOWNLOAD_JOB);
+                db.execSQL(SQL_CREATE_DOWNLOAD_JOB);
+                db.execSQL(SQL_COPY_DOWNLOAD_JOB);
+                db.execSQL(SQL_DROP_DOWNLOAD_JOB_OLD);
+            }
         }
     }
 }
\ No newline at end of file
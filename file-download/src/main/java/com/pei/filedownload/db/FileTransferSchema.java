@@ -4,9 +4,13 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.text.TextUtils;
 
+import androidx.annotation.Nullable;
 
+import com.pei.filedownload.task.DownloadRequest;
 import com.pei.filedownload.task.model.DownloadSegment;
 import com.pei.filedownload.task.model.DownloadTaskModel;
+import com.pei.filedownload.task.model.HostCapability;
+import com.pei.filedownload.task.model.ResourceInfo;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -37,6 +41,8 @@ public interface FileTransferSchema {
         String COLUMN_STATUS = "STATUS";
         String COLUMN_PROGRESS = "PROGRESS";
         String COLUMN_HEADERS = "header";
+        String COLUMN_DIRECT_WRITE = "DIRECT_WRITE";
+        String COLUMN_MERGED_LENGTH = "MERGED_LENGTH";
 
         String[] PROJECTION = {
                 COLUMN_TASK_ID,
@@ -50,7 +56,9 @@ public interface FileTransferSchema {
                 COLUMN_LAST_MODIFIED,
                 COLUMN_STATUS,
                 COLUMN_PROGRESS,
-                COLUMN_HEADERS
+                COLUMN_HEADERS,
+                COLUMN_DIRECT_WRITE,
+                COLUMN_MERGED_LENGTH
         };
 
         EntityReader<DownloadTaskModel> READER = new EntityReader<DownloadTaskModel>() {
@@ -68,22 +76,12 @@ public interface FileTransferSchema {
                 taskModel.setLastModified(cursor.getString(cursor.getColumnIndex(DownloadTaskTable.COLUMN_LAST_MODIFIED)));
                 taskModel.setStatus(cursor.getInt(cursor.getColumnIndex(DownloadTaskTable.COLUMN_STATUS)));
                 taskModel.setProgress(cursor.getInt(cursor.getColumnIndex(DownloadTaskTable.COLUMN_PROGRESS)));
+                taskModel.setDirectWrite(cursor.getInt(cursor.getColumnIndex(DownloadTaskTable.COLUMN_DIRECT_WRITE)) == 1);
+                taskModel.setMergedLength(cursor.getLong(cursor.getColumnIndex(DownloadTaskTable.COLUMN_MERGED_LENGTH)));
 
-                String headers = cursor.getString(cursor.getColumnIndex(DownloadTaskTable.COLUMN_HEADERS));
-                if (!TextUtils.isEmpty(headers)) {
-                    try {
-                        Map<String, String> map = new HashMap<>();
-                        JSONObject object = new JSONObject(headers);
-                        Iterator<String> iterator = object.keys();
-                        String key;
-                        while (iterator.hasNext()) {
-                            key = iterator.next();
-                            map.put(key, object.getString(key));
-                        }
-                        taskModel.setHeaders(map);
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
+                Map<String, String> headers = Headers.fromJson(cursor.getString(cursor.getColumnIndex(DownloadTaskTable.COLUMN_HEADERS)));
+                if (headers != null) {
+                    taskModel.setHeaders(headers);
                 }
                 return taskModel;
             }
@@ -104,8 +102,10 @@ public interface FileTransferSchema {
                 contentValues.put(DownloadTaskTable.COLUMN_LAST_MODIFIED, entity.getLastModified());
                 contentValues.put(DownloadTaskTable.COLUMN_STATUS, entity.getStatus());
                 contentValues.put(DownloadTaskTable.COLUMN_PROGRESS, entity.getProgress());
+                contentValues.put(DownloadTaskTable.COLUMN_DIRECT_WRITE, entity.isDirectWrite() ? 1 : 0);
+                contentValues.put(DownloadTaskTable.COLUMN_MERGED_LENGTH, entity.getMergedLength());
                 if (entity.getHeaders() != null) {
-                    contentValues.put(DownloadTaskTable.COLUMN_HEADERS, new JSONObject(entity.getHeaders()).toString());
+                    contentValues.put(DownloadTaskTable.COLUMN_HEADERS, Headers.toJson(entity.getHeaders()));
                 }
                 return contentValues;
             }
@@ -113,6 +113,205 @@ public interface FileTransferSchema {
     }
 
 
+    /**
+     * 下载作业包含的任务和任务的请求参数，任务的下载进度保存在DownloadTaskTable中。
+     * 请求参数单独保存，任务的记录被删除或者重新插入时也可以恢复作业。回调、监听和UrlProvider不保存
+     */
+    interface DownloadJobTable {
+        String TABLE_NAME = "DOWNLOAD_JOB";
+
+        String COLUMN_JOB_ID = "JOB_ID";
+        String COLUMN_TASK_ID = "TASK_ID";
+        String COLUMN_JOB_INDEX = "JOB_INDEX";
+        String COLUMN_URL = "URL";
+        String COLUMN_TARGET = "TARGET";
+        String COLUMN_FILE_NAME = "FILE_NAME";
+        String COLUMN_HEADERS = "HEADERS";
+        String COLUMN_DIRECT_WRITE = "DIRECT_WRITE";
+        String COLUMN_NO_SPLIT = "NO_SPLIT";
+        String COLUMN_PRIORITY = "PRIORITY";
+        String COLUMN_DEADLINE = "DEADLINE";
+        String COLUMN_RATE_LIMIT = "RATE_LIMIT";
+        String COLUMN_WEIGHT = "WEIGHT";
+        String COLUMN_MIN_PARALLEL_NUM = "MIN_PARALLEL_NUM";
+        String COLUMN_MAX_PARALLEL_NUM = "MAX_PARALLEL_NUM";
+        String COLUMN_REUSE_PROBE_CONNECTION = "REUSE_PROBE_CONNECTION";
+
+        String[] PROJECTION = {
+                COLUMN_TASK_ID,
+                COLUMN_URL,
+                COLUMN_TARGET,
+                COLUMN_FILE_NAME,
+                COLUMN_HEADERS,
+                COLUMN_DIRECT_WRITE,
+                COLUMN_NO_SPLIT,
+                COLUMN_PRIORITY,
+                COLUMN_DEADLINE,
+                COLUMN_RATE_LIMIT,
+                COLUMN_WEIGHT,
+                COLUMN_MIN_PARALLEL_NUM,
+                COLUMN_MAX_PARALLEL_NUM,
+                COLUMN_REUSE_PROBE_CONNECTION
+        };
+
+        EntityReader<DownloadRequest> READER = new EntityReader<DownloadRequest>() {
+            @Override
+            public DownloadRequest toEntity(Cursor cursor) {
+                DownloadRequest.Builder builder = new DownloadRequest.Builder()
+                        .setRequestId(cursor.getString(cursor.getColumnIndex(DownloadJobTable.COLUMN_TASK_ID)))
+                        .setUrl(cursor.getString(cursor.getColumnIndex(DownloadJobTable.COLUMN_URL)))
+                        .setTarget(cursor.getString(cursor.getColumnIndex(DownloadJobTable.COLUMN_TARGET)))
+                        .setFileName(cursor.getString(cursor.getColumnIndex(DownloadJobTable.COLUMN_FILE_NAME)))
+                        .setDirectWrite(cursor.getInt(cursor.getColumnIndex(DownloadJobTable.COLUMN_DIRECT_WRITE)) == 1)
+                        .setNoSplit(cursor.getInt(cursor.getColumnIndex(DownloadJobTable.COLUMN_NO_SPLIT)) == 1)
+                        .setPriority(cursor.getInt(cursor.getColumnIndex(DownloadJobTable.COLUMN_PRIORITY)))
+                        .setDeadline(cursor.getLong(cursor.getColumnIndex(DownloadJobTable.COLUMN_DEADLINE)), null)
+                        .setRateLimit(cursor.getLong(cursor.getColumnIndex(DownloadJobTable.COLUMN_RATE_LIMIT)))
+                        .setWeight(cursor.getInt(cursor.getColumnIndex(DownloadJobTable.COLUMN_WEIGHT)))
+                        .setReuseProbeConnection(cursor.getInt(cursor.getColumnIndex(DownloadJobTable.COLUMN_REUSE_PROBE_CONNECTION)) == 1);
+                Map<String, String> headers = Headers.fromJson(cursor.getString(cursor.getColumnIndex(DownloadJobTable.COLUMN_HEADERS)));
+                if (headers != null) {
+                    builder.setHeaders(headers);
+                }
+                int minParallelNum = cursor.getInt(cursor.getColumnIndex(DownloadJobTable.COLUMN_MIN_PARALLEL_NUM));
+                int maxParallelNum = cursor.getInt(cursor.getColumnIndex(DownloadJobTable.COLUMN_MAX_PARALLEL_NUM));
+                if (minParallelNum > 0) {
+                    builder.setAdaptiveParallel(minParallelNum, maxParallelNum);
+                }
+                return builder.build();
+            }
+        };
+
+        EntityWriter<DownloadRequest> WRITER = new EntityWriter<DownloadRequest>() {
+            @Override
+            public ContentValues toContentValues(DownloadRequest entity) {
+                ContentValues contentValues = new ContentValues();
+                contentValues.put(DownloadJobTable.COLUMN_TASK_ID, entity.getRequestId());
+                contentValues.put(DownloadJobTable.COLUMN_URL, entity.getUrl());
+                contentValues.put(DownloadJobTable.COLUMN_TARGET, entity.getTarget());
+                contentValues.put(DownloadJobTable.COLUMN_FILE_NAME, entity.getFileName());
+                contentValues.put(DownloadJobTable.COLUMN_DIRECT_WRITE, entity.isDirectWrite() ? 1 : 0);
+                contentValues.put(DownloadJobTable.COLUMN_NO_SPLIT, entity.isNoSplit() ? 1 : 0);
+                contentValues.put(DownloadJobTable.COLUMN_PRIORITY, entity.getPriority());
+                contentValues.put(DownloadJobTable.COLUMN_DEADLINE, entity.getDeadline());
+                contentValues.put(DownloadJobTable.COLUMN_RATE_LIMIT, entity.getRateLimit());
+                contentValues.put(DownloadJobTable.COLUMN_WEIGHT, entity.getWeight());
+                contentValues.put(DownloadJobTable.COLUMN_MIN_PARALLEL_NUM, entity.isAdaptiveParallel() ? entity.getMinParallelNum() : 0);
+                contentValues.put(DownloadJobTable.COLUMN_MAX_PARALLEL_NUM, entity.isAdaptiveParallel() ? entity.getMaxParallelNum() : 0);
+                contentValues.put(DownloadJobTable.COLUMN_REUSE_PROBE_CONNECTION, entity.isReuseProbeConnection() ? 1 : 0);
+                if (entity.getHeaders() != null) {
+                    contentValues.put(DownloadJobTable.COLUMN_HEADERS, Headers.toJson(entity.getHeaders()));
+                }
+                return contentValues;
+            }
+        };
+    }
+
+
+    /**
+     * 资源信息缓存，按url保存
+     */
+    interface ResourceInfoTable {
+        String TABLE_NAME = "RESOURCE_INFO";
+
+        String COLUMN_URL = "URL";
+        String COLUMN_CONTENT_TYPE = "CONTENT_TYPE";
+        String COLUMN_CONTENT_LENGTH = "CONTENT_LENGTH";
+        String COLUMN_ACCEPT_RANGES = "ACCEPT_RANGES";
+        String COLUMN_ETAG = "ETAG";
+        String COLUMN_LAST_MODIFIED = "LAST_MODIFIED";
+        String COLUMN_PROBE_TIME = "PROBE_TIME";
+
+        String[] PROJECTION = {
+                COLUMN_URL,
+                COLUMN_CONTENT_TYPE,
+                COLUMN_CONTENT_LENGTH,
+                COLUMN_ACCEPT_RANGES,
+                COLUMN_ETAG,
+                COLUMN_LAST_MODIFIED,
+                COLUMN_PROBE_TIME
+        };
+
+        EntityReader<ResourceInfo> READER = new EntityReader<ResourceInfo>() {
+            @Override
+            public ResourceInfo toEntity(Cursor cursor) {
+                ResourceInfo info = new ResourceInfo();
+                info.setUrl(cursor.getString(cursor.getColumnIndex(ResourceInfoTable.COLUMN_URL)));
+                info.setContentType(cursor.getString(cursor.getColumnIndex(ResourceInfoTable.COLUMN_CONTENT_TYPE)));
+                info.setContentLength(cursor.getLong(cursor.getColumnIndex(ResourceInfoTable.COLUMN_CONTENT_LENGTH)));
+                info.setAcceptRanges(cursor.getString(cursor.getColumnIndex(ResourceInfoTable.COLUMN_ACCEPT_RANGES)));
+                info.setETag(cursor.getString(cursor.getColumnIndex(ResourceInfoTable.COLUMN_ETAG)));
+                info.setLastModified(cursor.getString(cursor.getColumnIndex(ResourceInfoTable.COLUMN_LAST_MODIFIED)));
+                info.setProbeTime(cursor.getLong(cursor.getColumnIndex(ResourceInfoTable.COLUMN_PROBE_TIME)));
+                return info;
+            }
+        };
+
+        EntityWriter<ResourceInfo> WRITER = new EntityWriter<ResourceInfo>() {
+            @Override
+            public ContentValues toContentValues(ResourceInfo entity) {
+                ContentValues contentValues = new ContentValues();
+                contentValues.put(ResourceInfoTable.COLUMN_URL, entity.getUrl());
+                contentValues.put(ResourceInfoTable.COLUMN_CONTENT_TYPE, entity.getContentType());
+                contentValues.put(ResourceInfoTable.COLUMN_CONTENT_LENGTH, entity.getContentLength());
+                contentValues.put(ResourceInfoTable.COLUMN_ACCEPT_RANGES, entity.getAcceptRanges());
+                contentValues.put(ResourceInfoTable.COLUMN_ETAG, entity.getETag());
+                contentValues.put(ResourceInfoTable.COLUMN_LAST_MODIFIED, entity.getLastModified());
+                contentValues.put(ResourceInfoTable.COLUMN_PROBE_TIME, entity.getProbeTime());
+                return contentValues;
+            }
+        };
+    }
+
+
+    /**
+     * 域名的服务器能力
+     */
+    interface HostCapabilityTable {
+        String TABLE_NAME = "HOST_CAPABILITY";
+
+        String COLUMN_HOST = "HOST";
+        String COLUMN_ACCEPT_RANGES = "ACCEPT_RANGES";
+        String COLUMN_HTTP2 = "HTTP2";
+        String COLUMN_MAX_CONNECTIONS = "MAX_CONNECTIONS";
+        String COLUMN_UPDATE_TIME = "UPDATE_TIME";
+
+        String[] PROJECTION = {
+                COLUMN_HOST,
+                COLUMN_ACCEPT_RANGES,
+                COLUMN_HTTP2,
+                COLUMN_MAX_CONNECTIONS,
+                COLUMN_UPDATE_TIME
+        };
+
+        EntityReader<HostCapability> READER = new EntityReader<HostCapability>() {
+            @Override
+            public HostCapability toEntity(Cursor cursor) {
+                HostCapability capability = new HostCapability();
+                capability.setHost(cursor.getString(cursor.getColumnIndex(HostCapabilityTable.COLUMN_HOST)));
+                capability.setAcceptRanges(cursor.getInt(cursor.getColumnIndex(HostCapabilityTable.COLUMN_ACCEPT_RANGES)) == 1);
+                capability.setHttp2(cursor.getInt(cursor.getColumnIndex(HostCapabilityTable.COLUMN_HTTP2)) == 1);
+                capability.setMaxConnections(cursor.getInt(cursor.getColumnIndex(HostCapabilityTable.COLUMN_MAX_CONNECTIONS)));
+                capability.setUpdateTime(cursor.getLong(cursor.getColumnIndex(HostCapabilityTable.COLUMN_UPDATE_TIME)));
+                return capability;
+            }
+        };
+
+        EntityWriter<HostCapability> WRITER = new EntityWriter<HostCapability>() {
+            @Override
+            public ContentValues toContentValues(HostCapability entity) {
+                ContentValues contentValues = new ContentValues();
+                contentValues.put(HostCapabilityTable.COLUMN_HOST, entity.getHost());
+                contentValues.put(HostCapabilityTable.COLUMN_ACCEPT_RANGES, entity.isAcceptRanges() ? 1 : 0);
+                contentValues.put(HostCapabilityTable.COLUMN_HTTP2, entity.isHttp2() ? 1 : 0);
+                contentValues.put(HostCapabilityTable.COLUMN_MAX_CONNECTIONS, entity.getMaxConnections());
+                contentValues.put(HostCapabilityTable.COLUMN_UPDATE_TIME, entity.getUpdateTime());
+                return contentValues;
+            }
+        };
+    }
+
+
     interface DownloadSegmentTable {
         String TABLE_NAME = "DOWNLOAD_SEGMENT";
 
@@ -128,6 +327,7 @@ public interface FileTransferSchema {
         String COLUMN_URL = "URL";
         String COLUMN_TARGET = "TARGET";
         String COLUMN_PROGRESS = "PROGRESS";
+        String COLUMN_DOWNLOADED_LENGTH = "DOWNLOADED_LENGTH";
 
         String[] PROJECTION = {
                 COLUMN_TASK_ID,
@@ -141,7 +341,8 @@ public interface FileTransferSchema {
                 COLUMN_FILE_NAME,
                 COLUMN_URL,
                 COLUMN_TARGET,
-                COLUMN_PROGRESS
+                COLUMN_PROGRESS,
+                COLUMN_DOWNLOADED_LENGTH
         };
 
         EntityReader<DownloadSegment> READER = new EntityReader<DownloadSegment>() {
@@ -160,6 +361,7 @@ public interface FileTransferSchema {
                 segment.setUrl(cursor.getString(cursor.getColumnIndex(DownloadSegmentTable.COLUMN_URL)));
                 segment.setTarget(cursor.getString(cursor.getColumnIndex(DownloadSegmentTable.COLUMN_TARGET)));
                 segment.setProgress(cursor.getInt(cursor.getColumnIndex(DownloadSegmentTable.COLUMN_PROGRESS)));
+                segment.setDownloadedLength(cursor.getLong(cursor.getColumnIndex(DownloadSegmentTable.COLUMN_DOWNLOADED_LENGTH)));
                 return segment;
             }
         };
@@ -180,8 +382,40 @@ public interface FileTransferSchema {
                 contentValues.put(DownloadSegmentTable.COLUMN_URL, entity.getUrl());
                 contentValues.put(DownloadSegmentTable.COLUMN_TARGET, entity.getTarget());
                 contentValues.put(DownloadSegmentTable.COLUMN_PROGRESS, entity.getProgress());
+                contentValues.put(DownloadSegmentTable.COLUMN_DOWNLOADED_LENGTH, entity.getDownloadedLength());
                 return contentValues;
             }
         };
     }
-}
\ No newline at end of file
+
+    /**
+     * 请求头以JSON保存
+     */
+    final class Headers {
+        private Headers() {
+        }
+
+        static String toJson(Map<String, String> headers) {
+            return new JSONObject(headers).toString();
+        }
+
+        @Nullable
+        static Map<String, String> fromJson(@Nullable String json) {
+            if (TextUtils.isEmpty(json)) return null;
+            try {
+                Map<String, String> map = new HashMap<>();
+                JSONObject object = new JSONObject(json);
+                Iterator<String> iterator = object.keys();
+                String key;
+                while (iterator.hasNext()) {
+                    key = iterator.next();
+                    map.put(key, object.getString(key));
+                }
+                return map;
+            } catch (JSONException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.pei.filedownload.task;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.pei.filedownload.AsyncTransferEngine;
+import com.pei.filedownload.FLog;
+import com.pei.filedownload.FileDownloadManager;
+import com.pei.filedownload.Task;
+import com.pei.filedownload.task.model.DownloadSegment;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * 使用{@link AsyncTransferEngine}下载分片，和{@link SegmentDownloadTask}的回调和状态一致。
+ * 获取到写入的缓冲区后才发出请求，请求异步发出，收到响应后每次读取一小段，没读完时重新提交到引擎的队尾。
+ * I/O线程不等待缓冲池，缓冲区不够时延迟后重新提交
+ */
+class AsyncSegmentDownloadTask extends SegmentDownloadTask {
+
+    private AsyncTransferEngine mEngine;
+    private volatile Call mCall;
+
+    AsyncSegmentDownloadTask(FileDownloadManager fileDownloadManager, AsyncTransferEngine engine, DownloadRequest request, DownloadSegment segment, @Nullable FileChannel targetChannel, SegmentScheduler scheduler) {
+        super(fileDownloadManager, request, segment, targetChannel, scheduler);
+        this.mEngine = engine;
+        this.mOkHttpClient = engine.getOkHttpClient();
+    }
+
+    /**
+     * 在引擎的I/O线程中执行
+     */
+    @Override
+    public void run() {
+        try {
+            int status = getStatus();
+            if (status != Task.STATUS_PAUSED && status != Task.STATUS_CANCELED && !tryAcquireBuffer()) {
+                //缓冲池已满，稍后再开始，同时进行的传输数不超过缓冲区数
+                executeLater(this, SegmentDownloadTask.BUFFER_WAIT_NANOS);
+                return;
+            }
+            if (!prepare()) {
+                releaseBuffer();
+                releaseProbeResponse();
+                mScheduler.onSegmentFinished(this);
+                return;
+            }
+            Response probeResponse = takeProbeResponse();
+            if (probeResponse != null) {
+                onResponse(probeResponse);
+                mEngine.execute(mReadSlice);
+                return;
+            }
+            mCall = newCall();
+            mCall.enqueue(new okhttp3.Callback() {
+                @Override
+                public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                    onTransferError(e);
+                }
+
+                @Override
+                public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    try {
+                        AsyncSegmentDownloadTask.this.onResponse(response);
+                    } catch (IOException e) {
+                        onTransferError(e);
+                        return;
+                    }
+                    mEngine.execute(mReadSlice);
+                }
+            });
+        } catch (Exception e) {
+            onTransferError(e);
+        }
+    }
+
+    private final Runnable mReadSlice = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (readChunk(mEngine.getSliceBytes(), mEngine.getSliceNanos())) {
+                    long throttleNanos = getThrottleNanos();
+                    if (throttleNanos > 0) {
+                        //限速或者等待缓冲区时延迟后再读取，不占用I/O线程
+                        executeLater(this, throttleNanos);
+                    } else {
+                        //让出线程给其他传输
+                        mEngine.execute(this);
+                    }
+                    return;
+                }
+                closeTransfer();
+                checkResult();
+            } catch (Exception e) {
+                onTransferError(e);
+                return;
+            }
+            mScheduler.onSegmentFinished(AsyncSegmentDownloadTask.this);
+        }
+    };
+
+    private void executeLater(final Runnable runnable, long delayNanos) {
+        mTaskDispatcher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mEngine.execute(runnable);
+            }
+        }, Math.max(1, delayNanos / 1000000));
+    }
+
+    /**
+     * 限制单次读取的等待时间，停滞的连接最多占用I/O线程这么久，超时后连接关闭，分片按失败重试
+     */
+    @Override
+    protected void onResponse(Response response) throws IOException {
+        super.onResponse(response);
+        BufferedSource source = getSource();
+        if (source != null) {
+            source.timeout().timeout(mEngine.getReadTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onTransferError(Exception e) {
+        releaseProbeResponse();
+        try {
+            closeTransfer();
+        } catch (IOException closeException) {
+            FLog.w("Close segment " + getSegment().getNumber() + " failed", closeException);
+        }
+        if (getStatus() == Task.STATUS_RUNNING) {
+            FLog.e("Segment " + getSegment().getNumber() + " download failed", e);
+            onFailure(e);
+        } else {
+            //暂停或取消时请求被取消
+            checkResult();
+        }
+        mScheduler.onSegmentFinished(this);
+    }
+
+    @Override
+    public void pause() {
+        super.pause();
+        cancelCall();
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        cancelCall();
+    }
+
+    /**
+     * 取消请求，正在读取时读取会失败，按暂停或取消处理
+     */
+    private void cancelCall() {
+        Call call = mCall;
+        if (call != null) {
+            call.cancel();
+        }
+    }
+}
@@ -1,31 +1,34 @@
 package com.pei.filedownload.task;
 
-import android.content.Context;
-
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import com.pei.filedownload.ConnectionBudget;
+import com.pei.filedownload.FileDownloadManager;
+import com.pei.filedownload.RateLimiter;
 import com.pei.filedownload.Task;
-import com.pei.filedownload.TaskDispatcher;
+import com.pei.filedownload.Utils;
+import com.pei.filedownload.WeightedFairShaper;
 import com.pei.filedownload.db.FileTransferDao;
 import com.pei.filedownload.exception.DownloadException;
 import com.pei.filedownload.task.model.ResourceInfo;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Map;
 
 import okhttp3.Call;
-import okhttp3.OkHttpClient;
+import okhttp3.HttpUrl;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSource;
 
 /**
- * 完整下载整个文件，不分片
+ * 完整下载整个文件，不分片。开始前需要申请一个连接
  */
-class CompleteDownloadTask extends Task<File> {
+class CompleteDownloadTask extends Task<File> implements ConnectionBudget.Client {
 
     private DownloadRequest mDownloadRequest;
     private ResourceInfo mInfo;
@@ -33,17 +36,94 @@ class CompleteDownloadTask extends Task<File> {
     private String mTaskId;
     private File mTargetFile;
     private Call mCall;
+    private Response mResponse;
+    private FileDownloadManager mFileDownloadManager;
+    private RateLimiter mRateLimiter;
+    private WeightedFairShaper.Flow mFlow;
+    private volatile DeadlineMonitor mDeadlineMonitor;
+    private String mHost;
 
-    public CompleteDownloadTask(Context context, OkHttpClient okHttpClient, TaskDispatcher taskDispatcher, DownloadRequest request, @NonNull ResourceInfo info, @NonNull String taskId) {
-        super(okHttpClient, taskDispatcher);
+    /**
+     * @param rateLimiter 所属下载任务的限速
+     * @param flow 所属下载任务按权重分配带宽的流
+     */
+    public CompleteDownloadTask(FileDownloadManager fileDownloadManager, DownloadRequest request, @NonNull ResourceInfo info, @NonNull String taskId,
+                                @Nullable RateLimiter rateLimiter, @Nullable WeightedFairShaper.Flow flow) {
+        super(fileDownloadManager.getOkHttpClient(), fileDownloadManager.getTaskDispatcher());
+        this.mFileDownloadManager = fileDownloadManager;
         this.mDownloadRequest = request;
         this.mInfo = info;
-        this.mDao = FileTransferDao.get(context);
+        this.mDao = FileTransferDao.get(fileDownloadManager.getContext());
         this.mTaskId = taskId;
+        this.mRateLimiter = rateLimiter;
+        this.mFlow = flow;
+        HttpUrl url = HttpUrl.parse(request.getUrl());
+        this.mHost = url != null ? url.host() : null;
+    }
+
+    /**
+     * 申请到连接后提交执行，否则等待连接释放。
+     * 在锁外提交：线程池队列满时由提交的线程直接执行下载，不能持有锁
+     */
+    void start() {
+        synchronized (this) {
+            if (getStatus() != Task.STATUS_ENQUEUE) {
+                mTaskDispatcher.getConnectionBudget().cancelWaiting(this);
+                return;
+            }
+            if (!mTaskDispatcher.getConnectionBudget().tryAcquire(this)) return;
+            setStatus(Task.STATUS_INIT);
+        }
+        mTaskDispatcher.submit(this, true);
+    }
+
+    @Override
+    public String getHost() {
+        return mHost;
+    }
+
+    @Override
+    public long getDeadline() {
+        return mDownloadRequest.getDeadline();
+    }
+
+    /**
+     * 获取资源信息时已经返回200的完整响应，直接读取，不再发起请求
+     */
+    synchronized void setResponse(@Nullable Response response) {
+        mResponse = response;
+    }
+
+    @Nullable
+    private synchronized Response takeResponse() {
+        Response response = mResponse;
+        mResponse = null;
+        return response;
+    }
+
+    void setDeadlineMonitor(@Nullable DeadlineMonitor deadlineMonitor) {
+        mDeadlineMonitor = deadlineMonitor;
+    }
+
+    @Override
+    public void onConnectionAvailable() {
+        start();
     }
 
     @Override
     public void run() {
+        try {
+            runDownload();
+        } finally {
+            mTaskDispatcher.getConnectionBudget().release(this);
+            Response response = takeResponse();
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    private void runDownload() {
         try {
             setStatus(Task.STATUS_RUNNING);
             mTargetFile = new File(mDownloadRequest.getTarget());
@@ -88,37 +168,61 @@ class CompleteDownloadTask extends Task<File> {
                 builder.addHeader(entry.getKey(), entry.getValue());
             }
         }
-        mCall = mOkHttpClient.newCall(builder.build());
-        Response response = mCall.execute();
-
-        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(targetFile));
-        BufferedInputStream bis = new BufferedInputStream(response.body().byteStream());
-        byte[] buffer = new byte[4096];
+        FileOutputStream fos = new FileOutputStream(targetFile);
+        FileChannelSink sink;
+        try {
+            sink = new FileChannelSink(fos.getChannel(), 0, mFileDownloadManager.getBufferPool(), mFileDownloadManager.getDiskWriter());
+        } catch (IOException e) {
+            fos.close();
+            throw e;
+        }
+        BufferedSource source = null;
+        Buffer buffer = new Buffer();
         long length = 0;
         long update = 0;
         long percent = 0;
-        int read;
-        while ((read = bis.read(buffer)) != -1 && getStatus() == Task.STATUS_RUNNING) {
-            bos.write(buffer, 0, read);
-            length += read;
-            update += read;
-            if (mInfo.getContentLength() > 0) {     //contentLength可能是-1或0
-                int currentPercent = (int) (length * 100 / mInfo.getContentLength());
-                if (currentPercent - percent >= 1) {
-                    updateProgress(length, currentPercent, update);
-                    percent = currentPercent;
-                    update = 0;
+        long read;
+        try {
+            Response response = takeResponse();
+            if (response == null) {
+                mCall = mOkHttpClient.newCall(builder.build());
+                response = mCall.execute();
+            }
+            source = response.body().source();
+            while ((read = source.read(buffer, FileChannelSink.READ_SIZE)) != -1 && getStatus() == Task.STATUS_RUNNING) {
+                sink.write(buffer, read);
+                Utils.sleepNanos(mFileDownloadManager.getBandwidthController().reserve(mRateLimiter, mHost, mFlow, read));
+                DeadlineMonitor deadlineMonitor = mDeadlineMonitor;
+                if (deadlineMonitor != null) {
+                    deadlineMonitor.onBytesRead(read);
+                }
+                length += read;
+                update += read;
+                if (mInfo.getContentLength() > 0) {     //contentLength可能是-1或0
+                    int currentPercent = (int) (length * 100 / mInfo.getContentLength());
+                    if (currentPercent - percent >= 1) {
+                        updateProgress(length, currentPercent, update);
+                        percent = currentPercent;
+                        update = 0;
+                    }
                 }
             }
-        }
+            sink.flush();
 
-        if (getStatus() == Task.STATUS_RUNNING && mInfo.getContentLength() <= 0 && percent != 100) {
-            updateProgress(length, 100, length);
+            if (getStatus() == Task.STATUS_RUNNING && mInfo.getContentLength() <= 0 && percent != 100) {
+                updateProgress(length, 100, length);
+            }
+        } finally {
+            buffer.clear();
+            try {
+                sink.close();
+            } finally {
+                fos.close();
+                if (source != null) {
+                    source.close();
+                }
+            }
         }
-
-        bos.flush();
-        bos.close();
-        bis.close();
     }
 
     private void updateProgress(long current, int percent, long update) {
@@ -140,7 +244,21 @@ class CompleteDownloadTask extends Task<File> {
 
     @Override
     public void cancel() {
-        setStatus(Task.STATUS_CANCELED);
+        synchronized (this) {
+            if (getStatus() == Task.STATUS_ENQUEUE) {
+                //还在等待连接，没有开始执行
+                setStatus(Task.STATUS_CANCELED);
+                mTaskDispatcher.getConnectionBudget().cancelWaiting(this);
+                Response response = takeResponse();
+                if (response != null) {
+                    response.close();
+                }
+                mDao.updateDownloadTaskStatus(mTaskId, Task.STATUS_CANCELED);
+                onFailure(new DownloadException("Canceled"));
+                return;
+            }
+            setStatus(Task.STATUS_CANCELED);
+        }
 
         if (mCall != null) {
             mCall.cancel();
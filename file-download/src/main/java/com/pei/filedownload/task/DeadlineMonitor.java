@@ -0,0 +1,90 @@
+package com.pei.filedownload.task;
+
+import androidx.annotation.Nullable;
+
+import com.pei.filedownload.DeadlineListener;
+import com.pei.filedownload.FLog;
+import com.pei.filedownload.Task;
+import com.pei.filedownload.TaskDispatcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 截止时间检查，定时统计下载速度，用剩余长度估计完成时间，无法按时完成时提前回调。
+ * 速度使用指数加权平均，避免短时间波动导致误报
+ */
+class DeadlineMonitor implements Runnable {
+    private static final long CHECK_INTERVAL = 3000;
+    private static final double SMOOTHING = 0.3;
+
+    private Task<?> mTask;
+    private TaskDispatcher mTaskDispatcher;
+    private long mDeadline;
+    private DeadlineListener mListener;
+    private AtomicLong mRemainingLength;
+    private AtomicLong mWindowBytes = new AtomicLong();
+    private long mWindowStart;
+    private double mThroughput = -1; //字节/毫秒，-1表示还没有统计
+    private boolean mUnreachable;
+    private volatile boolean mStopped;
+
+    /**
+     * @param remainingLength 开始时剩余的长度
+     */
+    DeadlineMonitor(Task<?> task, TaskDispatcher taskDispatcher, long deadline, @Nullable DeadlineListener listener, long remainingLength) {
+        this.mTask = task;
+        this.mTaskDispatcher = taskDispatcher;
+        this.mDeadline = deadline;
+        this.mListener = listener;
+        this.mRemainingLength = new AtomicLong(remainingLength);
+    }
+
+    void start() {
+        mWindowStart = System.currentTimeMillis();
+        //开始时已经超过截止时间
+        if (mWindowStart > mDeadline && mRemainingLength.get() > 0) {
+            notifyUnreachable(Long.MAX_VALUE);
+        }
+        mTaskDispatcher.schedule(this, CHECK_INTERVAL);
+    }
+
+    void stop() {
+        mStopped = true;
+    }
+
+    void onBytesRead(long bytes) {
+        mWindowBytes.addAndGet(bytes);
+        mRemainingLength.addAndGet(-bytes);
+    }
+
+    @Override
+    public void run() {
+        if (mStopped || mTask.getStatus() != Task.STATUS_RUNNING) return;
+        long now = System.currentTimeMillis();
+        long elapsed = Math.max(1, now - mWindowStart);
+        double throughput = (double) mWindowBytes.getAndSet(0) / elapsed;
+        mWindowStart = now;
+        mThroughput = mThroughput < 0 ? throughput : mThroughput * (1 - SMOOTHING) + throughput * SMOOTHING;
+
+        long remaining = Math.max(0, mRemainingLength.get());
+        long estimatedFinishTime = mThroughput > 0 ? now + (long) (remaining / mThroughput) : Long.MAX_VALUE;
+        if (remaining > 0 && estimatedFinishTime > mDeadline) {
+            if (!mUnreachable) {
+                notifyUnreachable(estimatedFinishTime);
+            }
+        } else {
+            mUnreachable = false;
+        }
+        if (remaining > 0) {
+            mTaskDispatcher.schedule(this, CHECK_INTERVAL);
+        }
+    }
+
+    private void notifyUnreachable(long estimatedFinishTime) {
+        mUnreachable = true;
+        FLog.w("task " + mTask.getTaskId() + " can not finish before deadline: " + mDeadline + ", estimated: " + estimatedFinishTime);
+        if (mListener != null) {
+            mListener.onDeadlineUnreachable(mTask.getTaskId(), mDeadline, estimatedFinishTime);
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.pei.filedownload.task;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.pei.filedownload.FLog;
+import com.pei.filedownload.FileDownloadManager;
+import com.pei.filedownload.Task;
+import com.pei.filedownload.db.FileTransferDao;
+import com.pei.filedownload.exception.DownloadException;
+import com.pei.filedownload.task.model.DownloadTaskModel;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 下载作业，一组相关的文件作为整体下载：统一回调进度，统一暂停、继续、取消，记录在数据库中可以整体恢复。
+ * 作业内的文件共用maxConnections个连接：文件下载很快时每个文件一个连接，同时下载更多文件；
+ * 文件下载较慢时每个文件多个连接，同时下载较少的文件。根据已完成文件的平均下载耗时切换，只影响之后开始的文件。
+ * 状态在锁内修改，回调在锁外执行
+ */
+public class DownloadJob {
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+    private static final int DEFAULT_PARALLEL_NUM = 2;
+    private static final int LARGE_FILE_PARALLEL_NUM = 4;
+    private static final long SMALL_FILE_MILLIS = 2000; //平均耗时小于2秒时按小文件处理
+    private static final double SMOOTHING = 0.3;
+
+    private FileDownloadManager mFileDownloadManager;
+    private FileTransferDao mDao;
+    private String mJobId;
+    private Callback mCallback;
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private Map<String, Entry> mEntries = new LinkedHashMap<>();
+    private Deque<Entry> mPendingEntries = new ArrayDeque<>();
+    private Map<String, Entry> mActiveEntries = new HashMap<>();
+    private List<Entry> mPausedEntries = new ArrayList<>();
+    private List<Entry> mFailedEntries = new ArrayList<>();
+    private int mUsedConnections;
+    private int mCompletedNum;
+    private double mAverageFileMillis = -1;
+    private int mStatus = Task.STATUS_INIT;
+    private boolean mPersisted;
+
+    public DownloadJob(FileDownloadManager fileDownloadManager, @NonNull String jobId, List<DownloadRequest> requests, @Nullable Callback callback) {
+        this.mFileDownloadManager = fileDownloadManager;
+        this.mDao = FileTransferDao.get(fileDownloadManager.getContext());
+        this.mJobId = jobId;
+        this.mCallback = callback;
+        for (int i = 0; i < requests.size(); i++) {
+            DownloadRequest request = requests.get(i);
+            String taskId = fileDownloadManager.makeDownloadTaskId(request);
+            if (mEntries.containsKey(taskId)) continue;
+            Entry entry = new Entry(request);
+            request.setCallback(new TaskCallback(entry, request.getCallback()));
+            mEntries.put(taskId, entry);
+            mPendingEntries.add(entry);
+        }
+    }
+
+    /**
+     * 从数据库恢复作业，已经完成并且文件还在的任务不再下载。
+     * 请求的地址、路径、请求头、优先级、截止时间、限速、权重等参数按开始时恢复；
+     * 请求中的回调、ParallelismListener、DeadlineListener和UrlProvider不能保存，恢复后为空，需要时重新设置
+     * @return 没有记录时返回null
+     */
+    @Nullable
+    public static DownloadJob restore(FileDownloadManager fileDownloadManager, @NonNull String jobId, @Nullable Callback callback) {
+        FileTransferDao dao = FileTransferDao.get(fileDownloadManager.getContext());
+        List<DownloadRequest> requests = dao.findDownloadJobRequests(jobId);
+        if (requests.isEmpty()) return null;
+        Map<String, Long> completed = new HashMap<>();
+        for (DownloadRequest request : requests) {
+            //任务记录可能已经被删除，按未下载处理
+            DownloadTaskModel model = dao.findDownloadTask(request.getRequestId());
+            File target = new File(request.getTarget());
+            if (model != null && model.getStatus() == Task.STATUS_COMPLETE && target.exists()) {
+                completed.put(request.getRequestId(), target.length());
+            }
+        }
+        DownloadJob job = new DownloadJob(fileDownloadManager, jobId, requests, callback);
+        job.mPersisted = true;
+        for (Map.Entry<String, Long> item : completed.entrySet()) {
+            Entry entry = job.mEntries.get(item.getKey());
+            job.mPendingEntries.remove(entry);
+            entry.total = item.getValue();
+            entry.current = item.getValue();
+            job.mCompletedNum++;
+        }
+        FLog.i("restore job: " + jobId + ", tasks: " + requests.size() + ", completed: " + completed.size());
+        return job;
+    }
+
+    /**
+     * 作业内所有文件共用的连接数，只影响之后开始的文件
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        mMaxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * 第一次开始时在一个事务中记录作业和所有任务的请求参数，任务多时建议在子线程调用
+     */
+    public void start() {
+        synchronized (this) {
+            if (mStatus != Task.STATUS_INIT) return;
+            mStatus = Task.STATUS_RUNNING;
+            if (!mPersisted) {
+                List<DownloadRequest> requests = new ArrayList<>(mEntries.size());
+                for (Entry entry : mEntries.values()) {
+                    requests.add(entry.request);
+                }
+                mDao.insertDownloadJob(mJobId, requests);
+                mPersisted = true;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * 暂停后继续，或者重新下载失败的文件
+     */
+    public void resume() {
+        synchronized (this) {
+            if (mStatus != Task.STATUS_PAUSED && mStatus != Task.STATUS_FAILED) return;
+            mStatus = Task.STATUS_RUNNING;
+            for (int i = mPausedEntries.size() - 1; i >= 0; i--) {
+                mPendingEntries.offerFirst(mPausedEntries.get(i));
+            }
+            mPendingEntries.addAll(mFailedEntries);
+            mPausedEntries.clear();
+            mFailedEntries.clear();
+        }
+        dispatch();
+    }
+
+    /**
+     * 暂停正在下载的文件，所有文件暂停后回调onPause
+     */
+    public void pause() {
+        List<String> taskIds;
+        synchronized (this) {
+            if (mStatus != Task.STATUS_RUNNING) return;
+            mStatus = Task.STATUS_PAUSED;
+            taskIds = new ArrayList<>(mActiveEntries.keySet());
+        }
+        for (int i = 0; i < taskIds.size(); i++) {
+            mFileDownloadManager.pause(taskIds.get(i));
+        }
+        dispatch();
+    }
+
+    public void cancel() {
+        List<String> taskIds;
+        synchronized (this) {
+            if (mStatus == Task.STATUS_COMPLETE || mStatus == Task.STATUS_CANCELED) return;
+            mStatus = Task.STATUS_CANCELED;
+            mPendingEntries.clear();
+            taskIds = new ArrayList<>(mActiveEntries.keySet());
+        }
+        mDao.deleteDownloadJob(mJobId);
+        for (int i = 0; i < taskIds.size(); i++) {
+            mFileDownloadManager.cancel(taskIds.get(i));
+        }
+        dispatch();
+    }
+
+    /**
+     * 在连接数允许的范围内开始等待中的文件，没有正在下载的文件时结束
+     */
+    private void dispatch() {
+        List<Entry> entries = new ArrayList<>();
+        int finishedStatus = Task.STATUS_INIT;
+        synchronized (this) {
+            while (mStatus == Task.STATUS_RUNNING && !mPendingEntries.isEmpty()) {
+                int parallelNum = Math.min(mMaxConnections, getParallelNum());
+                if (mUsedConnections > 0 && mUsedConnections + parallelNum > mMaxConnections) break;
+                Entry entry = mPendingEntries.pollFirst();
+                entry.parallelNum = parallelNum;
+                entry.startTime = SystemClock.elapsedRealtime();
+                entry.request.setParallelNum(parallelNum);
+                mUsedConnections += parallelNum;
+                mActiveEntries.put(entry.taskId, entry);
+                entries.add(entry);
+            }
+            if (mActiveEntries.isEmpty() && entries.isEmpty() && (mPendingEntries.isEmpty() || mStatus != Task.STATUS_RUNNING)) {
+                finishedStatus = finish();
+            }
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            mFileDownloadManager.start(entries.get(i).request);
+        }
+        notifyFinished(finishedStatus);
+    }
+
+    /**
+     * 文件下载很快时建立多个连接的开销占比大，每个文件一个连接；下载慢时集中连接尽快完成单个文件
+     */
+    private int getParallelNum() {
+        if (mAverageFileMillis < 0) return DEFAULT_PARALLEL_NUM;
+        return mAverageFileMillis < SMALL_FILE_MILLIS ? 1 : LARGE_FILE_PARALLEL_NUM;
+    }
+
+    /**
+     * 没有正在下载的文件，确定作业的结果
+     * @return 需要回调的状态，不需要回调时返回STATUS_INIT
+     */
+    private int finish() {
+        switch (mStatus) {
+            case Task.STATUS_RUNNING:
+                if (!mFailedEntries.isEmpty()) {
+                    //保留记录，可以重新下载失败的文件
+                    mStatus = Task.STATUS_FAILED;
+                } else if (!mPausedEntries.isEmpty()) {
+                    mStatus = Task.STATUS_PAUSED;
+                } else {
+                    mStatus = Task.STATUS_COMPLETE;
+                    mDao.deleteDownloadJob(mJobId);
+                }
+                return mStatus;
+            case Task.STATUS_PAUSED:
+                if (mPausedEntries.isEmpty() && mPendingEntries.isEmpty()) return Task.STATUS_INIT;
+                return Task.STATUS_PAUSED;
+            case Task.STATUS_CANCELED:
+                return Task.STATUS_CANCELED;
+        }
+        return Task.STATUS_INIT;
+    }
+
+    private void notifyFinished(int status) {
+        if (status == Task.STATUS_INIT) return;
+        FLog.i("job " + mJobId + " finished: " + Task.statusToString(status));
+        if (status == Task.STATUS_COMPLETE || status == Task.STATUS_CANCELED) {
+            mFileDownloadManager.finishJob(this);
+        }
+        if (mCallback == null) return;
+        switch (status) {
+            case Task.STATUS_COMPLETE:
+                mCallback.onComplete(this);
+                break;
+            case Task.STATUS_PAUSED:
+                mCallback.onPause(this);
+                break;
+            case Task.STATUS_FAILED:
+                mCallback.onFailure(this, new DownloadException(getFailedTaskIds().size() + " files failed"));
+                break;
+            case Task.STATUS_CANCELED:
+                mCallback.onFailure(this, new DownloadException("Canceled"));
+                break;
+        }
+    }
+
+    private void onTaskProgress(Entry entry, Task.Progress progress) {
+        long current = 0;
+        long total = 0;
+        synchronized (this) {
+            entry.total = progress.getTotal();
+            entry.current = progress.getCurrent();
+            for (Entry e : mEntries.values()) {
+                if (e.total <= 0) continue;
+                current += e.current;
+                total += e.total;
+            }
+        }
+        if (mCallback != null) {
+            mCallback.onProgressChange(this, current, total);
+        }
+    }
+
+    /**
+     * @param status 任务结束时的状态
+     */
+    private void onTaskFinished(Entry entry, int status) {
+        synchronized (this) {
+            if (mActiveEntries.remove(entry.taskId) == null) return;
+            mUsedConnections -= entry.parallelNum;
+            if (status == Task.STATUS_COMPLETE) {
+                mCompletedNum++;
+                long millis = SystemClock.elapsedRealtime() - entry.startTime;
+                mAverageFileMillis = mAverageFileMillis < 0 ? millis : mAverageFileMillis * (1 - SMOOTHING) + millis * SMOOTHING;
+                if (entry.total > 0) {
+                    entry.current = entry.total;
+                }
+            } else if (status == Task.STATUS_PAUSED) {
+                mPausedEntries.add(entry);
+            } else if (mStatus != Task.STATUS_CANCELED) {
+                mFailedEntries.add(entry);
+            }
+        }
+        dispatch();
+    }
+
+    public String getJobId() {
+        return mJobId;
+    }
+
+    @Task.TaskStatus
+    public synchronized int getStatus() {
+        return mStatus;
+    }
+
+    public synchronized int getTotalNum() {
+        return mEntries.size();
+    }
+
+    public synchronized int getCompletedNum() {
+        return mCompletedNum;
+    }
+
+    public synchronized List<String> getFailedTaskIds() {
+        List<String> taskIds = new ArrayList<>(mFailedEntries.size());
+        for (Entry entry : mFailedEntries) {
+            taskIds.add(entry.taskId);
+        }
+        return Collections.unmodifiableList(taskIds);
+    }
+
+    private static class Entry {
+        final String taskId;
+        final DownloadRequest request;
+        long total;
+        long current;
+        int parallelNum;
+        long startTime;
+
+        Entry(DownloadRequest request) {
+            this.taskId = request.getRequestId();
+            this.request = request;
+        }
+    }
+
+    /**
+     * 汇总作业中任务的回调，原来请求中的回调继续回调
+     */
+    private class TaskCallback implements Task.Callback<File> {
+        private Entry mEntry;
+        private Task.Callback<File> mCallback;
+
+        TaskCallback(Entry entry, @Nullable Task.Callback<File> callback) {
+            this.mEntry = entry;
+            this.mCallback = callback;
+        }
+
+        @Override
+        public void onStart() {
+            if (mCallback != null) mCallback.onStart();
+        }
+
+        @Override
+        public void onProgressChange(Task.Progress progress) {
+            if (mCallback != null) mCallback.onProgressChange(progress);
+            onTaskProgress(mEntry, progress);
+        }
+
+        @Override
+        public void onPause() {
+            if (mCallback != null) mCallback.onPause();
+            onTaskFinished(mEntry, Task.STATUS_PAUSED);
+        }
+
+        @Override
+        public void onComplete(File result) {
+            if (mCallback != null) mCallback.onComplete(result);
+            onTaskFinished(mEntry, Task.STATUS_COMPLETE);
+        }
+
+        @Override
+        public void onFailure(Exception exception) {
+            if (mCallback != null) mCallback.onFailure(exception);
+            onTaskFinished(mEntry, Task.STATUS_FAILED);
+        }
+    }
+
+    /**
+     * 由任务的回调触发时在主线程中回调，pause、cancel时没有正在下载的文件会在调用的线程中回调
+     */
+    public interface Callback {
+
+        /**
+         * @param total 已经获取到大小的文件的总大小
+         */
+        void onProgressChange(DownloadJob job, long current, long total);
+
+        void onPause(DownloadJob job);
+
+        void onComplete(DownloadJob job);
+
+        /**
+         * 有文件失败或者作业被取消，失败的文件可以通过{@link #resume()}重新下载
+         */
+        void onFailure(DownloadJob job, Exception exception);
+    }
+}
@@ -4,8 +4,12 @@ import android.util.Log;
 
 import androidx.annotation.Keep;
 
+import com.pei.filedownload.BandwidthController;
+import com.pei.filedownload.DeadlineListener;
 import com.pei.filedownload.FileDownloadManager;
+import com.pei.filedownload.ParallelismListener;
 import com.pei.filedownload.Task;
+import com.pei.filedownload.UrlProvider;
 
 import java.io.File;
 import java.util.Collections;
@@ -16,7 +20,7 @@ import java.util.Map;
 public class DownloadRequest {
     private static final String TAG = "DownloadRequest";
 
-    private String url;
+    private volatile String url; //下载过程中可能被UrlProvider替换
     private String target;
     private String fileName;
     private String requestId;
@@ -25,6 +29,17 @@ public class DownloadRequest {
     private int parallelNum;
     private int priority;
     private boolean noSplit;
+    private boolean directWrite = true;
+    private boolean adaptiveParallel;
+    private int minParallelNum;
+    private int maxParallelNum;
+    private ParallelismListener parallelismListener;
+    private long rateLimit;
+    private int weight;
+    private long deadline;
+    private DeadlineListener deadlineListener;
+    private boolean reuseProbeConnection;
+    private UrlProvider urlProvider;
 
     public DownloadRequest() {
 
@@ -40,6 +55,17 @@ public class DownloadRequest {
         this.parallelNum = builder.parallelNum;
         this.priority = builder.priority;
         this.noSplit = builder.noSplit;
+        this.directWrite = builder.directWrite;
+        this.adaptiveParallel = builder.adaptiveParallel;
+        this.minParallelNum = builder.minParallelNum;
+        this.maxParallelNum = builder.maxParallelNum;
+        this.parallelismListener = builder.parallelismListener;
+        this.rateLimit = builder.rateLimit;
+        this.weight = builder.weight;
+        this.deadline = builder.deadline;
+        this.deadlineListener = builder.deadlineListener;
+        this.reuseProbeConnection = builder.reuseProbeConnection;
+        this.urlProvider = builder.urlProvider;
     }
 
     public String getFileName() {
@@ -114,6 +140,94 @@ public class DownloadRequest {
         this.noSplit = noSplit;
     }
 
+    public boolean isDirectWrite() {
+        return directWrite;
+    }
+
+    public void setDirectWrite(boolean directWrite) {
+        this.directWrite = directWrite;
+    }
+
+    public boolean isAdaptiveParallel() {
+        return adaptiveParallel;
+    }
+
+    public void setAdaptiveParallel(boolean adaptiveParallel) {
+        this.adaptiveParallel = adaptiveParallel;
+    }
+
+    public int getMinParallelNum() {
+        return minParallelNum;
+    }
+
+    public void setMinParallelNum(int minParallelNum) {
+        this.minParallelNum = minParallelNum;
+    }
+
+    public int getMaxParallelNum() {
+        return maxParallelNum;
+    }
+
+    public void setMaxParallelNum(int maxParallelNum) {
+        this.maxParallelNum = maxParallelNum;
+    }
+
+    public ParallelismListener getParallelismListener() {
+        return parallelismListener;
+    }
+
+    public void setParallelismListener(ParallelismListener parallelismListener) {
+        this.parallelismListener = parallelismListener;
+    }
+
+    public long getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setRateLimit(long rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public DeadlineListener getDeadlineListener() {
+        return deadlineListener;
+    }
+
+    public void setDeadlineListener(DeadlineListener deadlineListener) {
+        this.deadlineListener = deadlineListener;
+    }
+
+    public boolean isReuseProbeConnection() {
+        return reuseProbeConnection;
+    }
+
+    public void setReuseProbeConnection(boolean reuseProbeConnection) {
+        this.reuseProbeConnection = reuseProbeConnection;
+    }
+
+    public UrlProvider getUrlProvider() {
+        return urlProvider;
+    }
+
+    public void setUrlProvider(UrlProvider urlProvider) {
+        this.urlProvider = urlProvider;
+    }
+
     @Override
     public String toString() {
         return "DownloadRequest{" +
@@ -125,6 +239,14 @@ public class DownloadRequest {
                 ", headers=" + headers +
                 ", parallelNum=" + parallelNum +
                 ", priority=" + priority +
+                ", directWrite=" + directWrite +
+                ", adaptiveParallel=" + adaptiveParallel +
+                ", minParallelNum=" + minParallelNum +
+                ", maxParallelNum=" + maxParallelNum +
+                ", rateLimit=" + rateLimit +
+                ", weight=" + weight +
+                ", deadline=" + deadline +
+                ", reuseProbeConnection=" + reuseProbeConnection +
                 '}';
     }
 
@@ -140,6 +262,17 @@ public class DownloadRequest {
         private int parallelNum;
         private int priority;
         private boolean noSplit;
+        private boolean directWrite = true;
+        private boolean adaptiveParallel;
+        private int minParallelNum;
+        private int maxParallelNum;
+        private ParallelismListener parallelismListener;
+        private long rateLimit;
+        private int weight;
+        private long deadline;
+        private DeadlineListener deadlineListener;
+        private boolean reuseProbeConnection;
+        private UrlProvider urlProvider;
 
         public Builder() {
         }
@@ -221,6 +354,111 @@ public class DownloadRequest {
             return this;
         }
 
+        public boolean isDirectWrite() {
+            return directWrite;
+        }
+
+        /**
+         * 分片直接写入目标文件，下载完成后不需要合并。
+         * 关闭后每个分片写入单独的文件，最后合并。
+         * 只对新任务生效，未完成的任务按开始时的方式续传
+         */
+        public Builder setDirectWrite(boolean directWrite) {
+            this.directWrite = directWrite;
+            return this;
+        }
+
+        public boolean isAdaptiveParallel() {
+            return adaptiveParallel;
+        }
+
+        /**
+         * 根据下载速度在minParallelNum和maxParallelNum之间自动调整并发数，
+         * 从parallelNum开始调整
+         */
+        public Builder setAdaptiveParallel(int minParallelNum, int maxParallelNum) {
+            if (minParallelNum <= 0 || maxParallelNum < minParallelNum) {
+                Log.w(TAG, "setAdaptiveParallel: " + minParallelNum + ", " + maxParallelNum, new IllegalArgumentException("Invalid parallelNum range"));
+                return this;
+            }
+            this.adaptiveParallel = true;
+            this.minParallelNum = minParallelNum;
+            this.maxParallelNum = maxParallelNum;
+            return this;
+        }
+
+        public Builder setParallelismListener(ParallelismListener listener) {
+            this.parallelismListener = listener;
+            return this;
+        }
+
+        public long getRateLimit() {
+            return rateLimit;
+        }
+
+        /**
+         * 限制这个请求的下载速度，单位字节/秒，小于等于0时不限速。
+         * 开始后可以通过{@link FileDownloadManager#setRequestRate(String, long)}修改
+         */
+        public Builder setRateLimit(long bytesPerSecond) {
+            this.rateLimit = bytesPerSecond;
+            return this;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * 开启{@link BandwidthController#setWeightedFair(boolean)}后按权重分配带宽，
+         * 小于等于0时按优先级计算，权重为max(1, priority + 1)
+         */
+        public Builder setWeight(int weight) {
+            this.weight = weight;
+            return this;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * 设置截止时间后按截止时间先后排队和分配连接，早于没有截止时间的任务
+         * @param deadline 截止时间，毫秒时间戳，小于等于0时没有截止时间
+         * @param listener 估计无法按时完成时回调
+         */
+        public Builder setDeadline(long deadline, DeadlineListener listener) {
+            this.deadline = deadline;
+            this.deadlineListener = listener;
+            return this;
+        }
+
+        public boolean isReuseProbeConnection() {
+            return reuseProbeConnection;
+        }
+
+        /**
+         * 获取资源信息时直接请求bytes=0-，响应的数据作为第一个分片的数据，少一次请求。
+         * 不开启时先使用HEAD请求，不支持时再使用bytes=0-0
+         */
+        public Builder setReuseProbeConnection(boolean reuseProbeConnection) {
+            this.reuseProbeConnection = reuseProbeConnection;
+            return this;
+        }
+
+        public UrlProvider getUrlProvider() {
+            return urlProvider;
+        }
+
+        /**
+         * 签名地址过期时由provider提供新的地址，已下载的部分不需要重新下载。
+         * 地址会变化时需要设置{@link #setRequestId(String)}，否则任务id由地址生成
+         */
+        public Builder setUrlProvider(UrlProvider urlProvider) {
+            this.urlProvider = urlProvider;
+            return this;
+        }
+
         public DownloadRequest build() {
             if (headers == null) {
                 headers = Collections.emptyMap();
@@ -5,36 +5,42 @@ import android.content.Context;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import com.pei.filedownload.AsyncTransferEngine;
+import com.pei.filedownload.ConnectionBudget;
 import com.pei.filedownload.FLog;
 import com.pei.filedownload.FileDownloadManager;
 import com.pei.filedownload.FileSplitter;
 import com.pei.filedownload.MainThreadCallback;
+import com.pei.filedownload.RateLimiter;
+import com.pei.filedownload.ResourceInfoCache;
 import com.pei.filedownload.Segment;
 import com.pei.filedownload.SizeSplitter;
 import com.pei.filedownload.Task;
+import com.pei.filedownload.TaskDispatcher;
+import com.pei.filedownload.UrlProvider;
 import com.pei.filedownload.Utils;
+import com.pei.filedownload.WeightedFairShaper;
 import com.pei.filedownload.db.FileTransferDao;
 import com.pei.filedownload.exception.DownloadException;
 import com.pei.filedownload.task.model.DownloadSegment;
 import com.pei.filedownload.task.model.DownloadTaskModel;
+import com.pei.filedownload.task.model.HostCapability;
 import com.pei.filedownload.task.model.ResourceInfo;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Queue;
-import java.util.concurrent.CountDownLatch;
 
 import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
@@ -53,18 +59,37 @@ public class DownloadTask extends Task<File> {
     private static final int DEFAULT_PARALLEL_TASK_NUMBER = 2;
     private static final int DEFAULT_RETRY_TIME = 3;
     private static final int DEFAULT_RETRY_INTERVAL = 2 * 1000;
+    private static final int MIN_SPLIT_SIZE = 1024 * 1024; //拆分后每部分至少1M
 
     private FileDownloadManager mFileDownloadManager;
     private Context mContext;
     private DownloadRequest mRequest;
     private SegmentDownloadCallback mDownloadCallback;
     private FileTransferDao mDao;
-    private List<SegmentDownloadTask> mRunningSegmentTasks;
+    private volatile SegmentScheduler mSegmentScheduler;
+    private volatile boolean mPreempted;
+    private volatile boolean mResumingFromPreempt; //被抢占后重新执行，已经回调过onStart
     private String mTaskId;
     private DownloadTaskModel mLocalDownloadTaskModel;
     private CompleteDownloadTask mCompleteDownloadTask;
     private int mParallelNum = DEFAULT_PARALLEL_TASK_NUMBER;
     private Call mGetResourceInfoCall;
+    private volatile Response mProbeResponse;
+    private Response mRestartResponse; //续传时分片请求返回200，资源已经变化
+    private volatile String mIfRange;
+    private volatile String mResolvedUrl;
+    private final Object mUrlLock = new Object();
+    private volatile ParallelismController mParallelismController;
+    private RandomAccessFile mTargetFile;
+    private volatile FileChannel mTargetChannel;
+    private SegmentMerger mSegmentMerger;
+    private volatile ResourceInfo mResourceInfo;
+    private RateLimiter mRateLimiter;
+    private volatile WeightedFairShaper.Flow mFlow;
+    private volatile DeadlineMonitor mDeadlineMonitor;
+    private String mHost;
+    private List<DownloadSegment> mSegments;
+    private int mNextSegmentNumber;
 
     public DownloadTask(FileDownloadManager fileDownloadManager, DownloadRequest request) {
         super(fileDownloadManager.getOkHttpClient(), fileDownloadManager.getTaskDispatcher());
@@ -78,6 +103,9 @@ public class DownloadTask extends Task<File> {
         if (mRequest.getParallelNum() > 0) {
             mParallelNum = mRequest.getParallelNum();
         }
+        mRateLimiter = new RateLimiter(request.getRateLimit());
+        HttpUrl url = HttpUrl.parse(request.getUrl());
+        mHost = url != null ? url.host() : null;
     }
 
     @Override
@@ -85,16 +113,52 @@ public class DownloadTask extends Task<File> {
         final File targetFile = new File(mRequest.getTarget());
         ResourceInfo info;
 
+        //被抢占后重新执行，上次的分片调度已经结束
+        mSegmentScheduler = null;
+        mIfRange = null;
+        Response restartResponse = takeRestartResponse();
+        boolean resumingFromPreempt = mResumingFromPreempt;
+        mResumingFromPreempt = false;
         try {
-            onStart();
-
-            mLocalDownloadTaskModel = mDao.findDownloadTask(mTaskId);
+            if (restartResponse == null) {
+                if (!resumingFromPreempt) {
+                    onStart();
+                }
+                mLocalDownloadTaskModel = mDao.findDownloadTask(mTaskId);
+            } else {
+                //资源已经变化，按新任务重新开始
+                mLocalDownloadTaskModel = null;
+            }
 
+            //批量开始时预先插入的任务没有分片和资源信息，获取资源信息后一次更新
+            boolean placeholder = mLocalDownloadTaskModel != null && mLocalDownloadTaskModel.getStatus() == Task.STATUS_ENQUEUE;
             setStatus(Task.STATUS_RUNNING);
-            mDao.updateDownloadTaskStatus(mTaskId, Task.STATUS_RUNNING);
+            if (!placeholder) {
+                mDao.updateDownloadTaskStatus(mTaskId, Task.STATUS_RUNNING);
+            }
 
             try {
-                info = getResourceInfo(mRequest, mRequest.getUrl());
+                ResourceInfoCache cache = mFileDownloadManager.getResourceInfoCache();
+                if (restartResponse != null) {
+                    //直接使用返回200的响应从头下载
+                    info = fullResourceInfo(mRequest.getUrl(), restartResponse);
+                    mProbeResponse = restartResponse;
+                    restartResponse = null;
+                    cache.put(info);
+                } else if ((info = resumeResourceInfo(mLocalDownloadTaskModel, targetFile)) != null) {
+                    //续传不单独请求资源信息，分片请求带上If-Range验证
+                    FLog.i("resume with If-Range: " + mIfRange);
+                } else if ((info = cache.get(mRequest.getUrl())) != null) {
+                    //有效期内的缓存直接使用，不再请求服务器
+                    FLog.i("use cached resource info: " + mRequest.getUrl());
+                } else if (mLocalDownloadTaskModel != null && mLocalDownloadTaskModel.getStatus() == Task.STATUS_COMPLETE && targetFile.exists()
+                        && (mLocalDownloadTaskModel.getETag() != null || mLocalDownloadTaskModel.getLastModified() != null)) {
+                    info = probeResourceInfo(mLocalDownloadTaskModel);
+                    cache.put(info);
+                } else {
+                    info = probeResourceInfo(null);
+                    cache.put(info);
+                }
             } catch (IOException e) {
                 //没网
                 if (mLocalDownloadTaskModel != null && mLocalDownloadTaskModel.getStatus() == Task.STATUS_COMPLETE) {
@@ -109,24 +173,27 @@ public class DownloadTask extends Task<File> {
                 return;
             }
 
-            long freeDiskSpace = Utils.getFreeDiskSpace();
-            if (mLocalDownloadTaskModel == null && freeDiskSpace != 0 && info.getContentLength() != -1 && freeDiskSpace < info.getContentLength()) {
-                //磁盘空间不足
-                onFailure(new DownloadException("No available space for download"));
-                return;
-            }
-
             boolean changed = isResourceChanged(info, mLocalDownloadTaskModel);
             boolean deleted = isDownloadedFileDeleted(mLocalDownloadTaskModel, targetFile);
             FLog.i("changed: " + changed + ", deleted: " + deleted);
-            if (mLocalDownloadTaskModel == null || changed || deleted) {
+            if (placeholder) {
+                //数据库中没有分片，只删除可能残留的文件，然后更新预先插入的任务
+                clearLocalFiles();
+                mLocalDownloadTaskModel = new DownloadTaskModel(mTaskId, mRequest, info);
+                mLocalDownloadTaskModel.setStatus(Task.STATUS_RUNNING);
+                mDao.updateDownloadTask(mLocalDownloadTaskModel);
+            } else if (mLocalDownloadTaskModel == null || changed || deleted) {
                 //清除本地数据
                 clearLocalDownloadTaskData(mTaskId);
                 //插入一条新的数据
                 mLocalDownloadTaskModel = new DownloadTaskModel(mTaskId, mRequest, info);
                 mLocalDownloadTaskModel.setStatus(Task.STATUS_RUNNING);
                 mDao.insertDownloadTask(mLocalDownloadTaskModel);
-            } else if (mLocalDownloadTaskModel.getStatus() == Task.STATUS_COMPLETE) {
+            } else if (!mRequest.getUrl().equals(mLocalDownloadTaskModel.getUrl())) {
+                //地址变化但资源相同，保留已下载的分片
+                mDao.updateDownloadTaskUrl(mTaskId, mRequest.getUrl());
+            }
+            if (mLocalDownloadTaskModel.getStatus() == Task.STATUS_COMPLETE) {
                 if (info.getContentLength() == -1 || targetFile.length() == info.getContentLength()) {
                     //已经下载完成，直接成功
                     Progress progress = Progress.complete(targetFile.length());
@@ -135,18 +202,27 @@ public class DownloadTask extends Task<File> {
                     return;
                 }
             }
+
+            if (!reserveDiskSpace(targetFile, info.getContentLength())) {
+                //磁盘空间不足
+                onFailure(new DownloadException("No available space for download"));
+                return;
+            }
         } catch (Exception e) {
+            if (restartResponse != null) {
+                restartResponse.close();
+            }
             onFailure(e);
             return;
         }
 
+        openFlow();
         //不分片
         if (!info.acceptRanges() || info.getContentLength() <= 0) {
             mCompleteDownloadTask = doCompleteDownload(info);
             return;
         }
 
-        mRunningSegmentTasks = Collections.synchronizedList(new ArrayList<SegmentDownloadTask>());
         mDownloadCallback = new SegmentDownloadCallback(info.getContentLength());
 
         long splitSize = mRequest.isNoSplit() ? info.getContentLength() : SEGMENT_SIZE;
@@ -162,22 +238,72 @@ public class DownloadTask extends Task<File> {
                 return segment;
             }
         });
-        List<DownloadSegment> segments = splitter.split(info.getContentLength());
+        List<DownloadSegment> segments = loadSegments(targetFile, info.getContentLength());
+        if (segments == null) {
+            segments = splitter.split(info.getContentLength());
+            //预先记录全部分片，拆分过的分片在续传时可以按原来的范围恢复
+            mDao.insertDownloadSegments(segments);
+        }
+        mSegments = segments;
+        for (DownloadSegment segment : segments) {
+            mNextSegmentNumber = Math.max(mNextSegmentNumber, segment.getNumber() + 1);
+        }
+        boolean started = false;
         try {
-            boolean result;
-
-            try {
-                result = doDownload(segments, DEFAULT_RETRY_TIME, DEFAULT_RETRY_INTERVAL);
-            } catch (InterruptedException e) {
-                result = false;
+            //续传时使用任务记录的写入方式，升级前的任务没有这个字段，按分片文件方式继续
+            if (mLocalDownloadTaskModel.isDirectWrite()) {
+                mTargetChannel = openTargetChannel(targetFile, info.getContentLength());
+            } else {
+                mSegmentMerger = new SegmentMerger(mDao, mTaskId, targetFile, segments, mLocalDownloadTaskModel.getMergedLength());
+                mDownloadCallback.addCompletedLength(mSegmentMerger.getMergedLength());
             }
+            mResourceInfo = info;
+            //之后由分片的回调推动，当前线程直接结束
+            started = true;
+            startSegmentDownload(segments, DEFAULT_RETRY_TIME, DEFAULT_RETRY_INTERVAL);
+        } catch (Exception e) {
+            FLog.e("", e);
+            onFailure(e);
+        } finally {
+            if (!started) {
+                closeTargetFiles();
+            }
+        }
+    }
 
+    /**
+     * 所有分片结束，由SegmentScheduler在TaskDispatcher的线程池中回调
+     * @param result 所有分片都下载完成
+     */
+    void onSegmentsFinished(boolean result) {
+        final File targetFile = new File(mRequest.getTarget());
+        ResourceInfo info = mResourceInfo;
+        List<DownloadSegment> segments = mSegments;
+        boolean requeue = false;
+        boolean restart = false;
+        try {
+            result = result && findUnCompleteSegments(segments).isEmpty();
+            ParallelismController parallelismController = mParallelismController;
+            if (result && parallelismController != null) {
+                mFileDownloadManager.getResourceInfoCache().updateMaxConnections(mHost, parallelismController.getBestParallelNum());
+            }
             int status = getStatus();
             if (status == Task.STATUS_RUNNING) {
                 if (result) {
-                    if (checkDownloadedSegments(segments)) {
-                        File file = mergeSegmentFiles(targetFile, segments);
-                        if (info.getContentLength() == -1 || file.length() == info.getContentLength()) {
+                    if (mTargetChannel != null) {
+                        closeTargetChannel();
+                        if (checkCompletedRanges(segments) && targetFile.length() == info.getContentLength()) {
+                            FLog.i("download " + segments.size() + " segments complete!");
+                            mDao.deleteDownloadSegments(mTaskId);
+                            onComplete(targetFile);
+                        } else {
+                            DownloadException exception = new DownloadException("Check downloaded ranges failed");
+                            onFailure(exception);
+                        }
+                    } else if (checkDownloadedSegments(segments)) {
+                        //下载过程中已经合并了连续完成的分片，这里只需要合并剩余的部分
+                        mSegmentMerger.mergeCompletedPrefix();
+                        if (mSegmentMerger.getMergedLength() == info.getContentLength()) {
                             FLog.i("merge " + segments.size() + " segments complete!");
                             Utils.deleteDir(new File(mRequest.getTarget() + DOWNLOAD_SUFFIX));
                             mDao.deleteDownloadSegments(mTaskId);
@@ -198,18 +324,72 @@ public class DownloadTask extends Task<File> {
                 Exception exception = new Exception("Download failed");
                 onFailure(exception);
             } else if (status == Task.STATUS_CANCELED) {
+                closeTargetChannel();
                 if (mTaskId != null) {
                     clearLocalDownloadTaskData(mTaskId);
                     mDao.updateDownloadTaskStatus(mTaskId, Task.STATUS_CANCELED);
                 }
                 onFailure(new DownloadException("Download Canceled"));
             } else if (status == Task.STATUS_PAUSED) {
-                onPause();
+                if (hasRestartResponse()) {
+                    restart = true;
+                } else if (mPreempted) {
+                    requeue = true;
+                } else {
+                    onPause();
+                }
             }
         } catch (Exception e) {
             FLog.e("", e);
-            mRunningSegmentTasks.clear();
             onFailure(e);
+        } finally {
+            closeTargetFiles();
+        }
+        if (requeue) {
+            //被抢占，文件关闭后重新排队，进度已经保存在数据库中
+            mPreempted = false;
+            mResumingFromPreempt = true;
+            setStatus(Task.STATUS_ENQUEUE);
+            mTaskDispatcher.requeue(this);
+        } else if (restart) {
+            //仍然占用调度的位置，直接重新执行
+            mTaskDispatcher.execute(this);
+        }
+    }
+
+    /**
+     * 分片请求带If-Range时服务器返回200，资源已经变化。暂停所有分片，结束后使用这个响应从头下载
+     */
+    synchronized void onResourceChanged(Response response) {
+        SegmentScheduler scheduler = mSegmentScheduler;
+        if (mRestartResponse != null || getStatus() != Task.STATUS_RUNNING || scheduler == null) {
+            response.close();
+            return;
+        }
+        FLog.w("resource changed, restart download: " + mRequest.getUrl());
+        mRestartResponse = response;
+        setStatus(Task.STATUS_PAUSED);
+        scheduler.pause();
+    }
+
+    private synchronized boolean hasRestartResponse() {
+        return mRestartResponse != null;
+    }
+
+    @Nullable
+    private synchronized Response takeRestartResponse() {
+        Response response = mRestartResponse;
+        mRestartResponse = null;
+        return response;
+    }
+
+    private void closeTargetFiles() {
+        closeProbeResponse();
+        closeFlow();
+        stopDeadlineMonitor();
+        closeTargetChannel();
+        if (mSegmentMerger != null) {
+            mSegmentMerger.close();
         }
     }
 
@@ -217,7 +397,8 @@ public class DownloadTask extends Task<File> {
      * 不分片下载
      */
     private CompleteDownloadTask doCompleteDownload(ResourceInfo info) {
-        CompleteDownloadTask completeDownloadTask = new CompleteDownloadTask(mContext,mOkHttpClient, mTaskDispatcher, mRequest, info, mTaskId);
+        CompleteDownloadTask completeDownloadTask = new CompleteDownloadTask(mFileDownloadManager, mRequest, info, mTaskId, mRateLimiter, mFlow);
+        completeDownloadTask.setResponse(takeProbeResponse());
         completeDownloadTask.addCallback(new SimpleCallback<File>() {
             //onStart已经回调过了
 
@@ -228,120 +409,620 @@ public class DownloadTask extends Task<File> {
 
             @Override
             public void onComplete(File result) {
+                closeFlow();
+                stopDeadlineMonitor();
                 DownloadTask.this.onComplete(result);
             }
 
             @Override
             public void onFailure(Exception exception) {
+                closeFlow();
+                stopDeadlineMonitor();
                 DownloadTask.this.onFailure(exception);
             }
         });
+        if (info.getContentLength() > 0) {
+            completeDownloadTask.setDeadlineMonitor(startDeadlineMonitor(info.getContentLength()));
+        }
         completeDownloadTask.setStatus(Task.STATUS_ENQUEUE);
-        mTaskDispatcher.submit(completeDownloadTask, true);
+        completeDownloadTask.start();
         return completeDownloadTask;
     }
 
-    private boolean doDownload(List<DownloadSegment> segments, int retryTimes, long retryInterval) throws InterruptedException {
-        List<DownloadSegment> unCompleteSegments = new ArrayList<>(segments);
-        int retryNum = 0;
-        do {
-            unCompleteSegments = findUnCompleteSegments(unCompleteSegments);
-            if (unCompleteSegments.isEmpty()) return true;
+    /**
+     * 开始下载未完成的分片，不阻塞当前线程，所有分片结束后回调{@link #onSegmentsFinished(boolean)}
+     */
+    private void startSegmentDownload(List<DownloadSegment> segments, int retryTimes, long retryInterval) {
+        List<DownloadSegment> unCompleteSegments = findUnCompleteSegments(segments);
+        if (mRequest.getParallelNum() <= 0) {
+            //没有指定并发数时使用同一域名之前下载最快时的并发数
+            HostCapability capability = mFileDownloadManager.getResourceInfoCache().getHostCapability(mHost);
+            if (capability != null && capability.getMaxConnections() > 0) {
+                mParallelNum = capability.getMaxConnections();
+            }
+        }
+        //分片请求直接使用重定向后的地址
+        mResolvedUrl = mFileDownloadManager.getResourceInfoCache().getResolvedUrl(mRequest.getUrl());
+        FLog.i("download segments num: " + segments.size() + ", unComplete: " + unCompleteSegments.size() + ", parallelNum: " + mParallelNum + ", resolvedUrl: " + mResolvedUrl);
+        ParallelismController parallelismController = null;
+        if (mRequest.isAdaptiveParallel()) {
+            parallelismController = new ParallelismController(mTaskId, mParallelNum, mRequest.getMinParallelNum(), mRequest.getMaxParallelNum(), mRequest.getParallelismListener());
+        }
+        mParallelismController = parallelismController;
+        long remainingLength = 0;
+        for (DownloadSegment segment : unCompleteSegments) {
+            remainingLength += segment.getSegmentLength() - segment.getDownloadedLength();
+        }
+        startDeadlineMonitor(remainingLength);
+        mSegmentScheduler = new SegmentScheduler(this, mParallelNum, retryTimes, retryInterval, parallelismController);
+        mSegmentScheduler.start(unCompleteSegments);
+    }
 
-            FLog.i("retry, segments num: " + segments.size() + ", retryTimes: " + retryTimes +  ", retryNum: " + retryNum);
-            doDownloadSegments(unCompleteSegments);
-            if (getStatus() != Task.STATUS_RUNNING) return false;
+    /**
+     * 有截止时间时开始检查能否按时完成
+     */
+    @Nullable
+    private synchronized DeadlineMonitor startDeadlineMonitor(long remainingLength) {
+        if (mRequest.getDeadline() <= 0) return null;
+        mDeadlineMonitor = new DeadlineMonitor(this, mTaskDispatcher, mRequest.getDeadline(), mRequest.getDeadlineListener(), remainingLength);
+        mDeadlineMonitor.start();
+        return mDeadlineMonitor;
+    }
 
-            Thread.sleep(retryInterval);
-        } while (retryTimes - retryNum++ >= 0);
-        return findUnCompleteSegments(unCompleteSegments).isEmpty();
+    private synchronized void stopDeadlineMonitor() {
+        if (mDeadlineMonitor == null) return;
+        mDeadlineMonitor.stop();
+        mDeadlineMonitor = null;
     }
 
-    private void doDownloadSegments(List<DownloadSegment> segments) throws InterruptedException {
-        Queue<DownloadSegment> queue = new LinkedList<>(segments);
-        while (!queue.isEmpty() && getStatus() == Task.STATUS_RUNNING) {
-            List<DownloadSegment> list = pollElements(queue, mParallelNum);
-            if (list.isEmpty()) continue;
-            CountDownLatch countDownLatch = new CountDownLatch(list.size());
-            for (DownloadSegment segment : list) {
-                SegmentDownloadTask task = new SegmentDownloadTask(mFileDownloadManager, mRequest, segment, countDownLatch);
-                task.addCallback(mDownloadCallback);
-                task.setStatus(Task.STATUS_ENQUEUE);
-                mTaskDispatcher.submit(task, true);
-                mRunningSegmentTasks.add(task);
-            }
-            countDownLatch.await();
-            mRunningSegmentTasks.clear();
+    @Override
+    public long getDeadline() {
+        return mRequest.getDeadline();
+    }
+
+    SegmentDownloadTask createSegmentTask(DownloadSegment segment, SegmentScheduler scheduler) {
+        AsyncTransferEngine engine = mFileDownloadManager.getAsyncTransferEngine();
+        SegmentDownloadTask task;
+        if (engine != null) {
+            task = new AsyncSegmentDownloadTask(mFileDownloadManager, engine, mRequest, segment, mTargetChannel, scheduler);
+        } else {
+            task = new SegmentDownloadTask(mFileDownloadManager, mRequest, segment, mTargetChannel, scheduler);
+        }
+        //地址可能已经刷新
+        segment.setUrl(mRequest.getUrl());
+        if (segment.getOffset() == 0) {
+            task.setProbeResponse(takeProbeResponse());
         }
+        task.setIfRange(mIfRange);
+        task.setRequestUrl(mResolvedUrl);
+        task.addCallback(mDownloadCallback);
+        task.setStatus(Task.STATUS_ENQUEUE);
+        return task;
+    }
+
+    @Nullable
+    private synchronized Response takeProbeResponse() {
+        Response response = mProbeResponse;
+        mProbeResponse = null;
+        return response;
     }
 
+    /**
+     * 没有分片使用探测请求的响应时关闭
+     */
+    private void closeProbeResponse() {
+        Response response = takeProbeResponse();
+        if (response != null) {
+            response.close();
+        }
+    }
+
+    void submitSegmentTask(SegmentDownloadTask task) {
+        AsyncTransferEngine engine = mFileDownloadManager.getAsyncTransferEngine();
+        if (task instanceof AsyncSegmentDownloadTask && engine != null) {
+            engine.execute(task);
+        } else {
+            mTaskDispatcher.submit(task, true);
+        }
+    }
+
+    TaskDispatcher getTaskDispatcher() {
+        return mTaskDispatcher;
+    }
+
+    ConnectionBudget getConnectionBudget() {
+        return mTaskDispatcher.getConnectionBudget();
+    }
+
+    String getHost() {
+        return mHost;
+    }
+
+    /**
+     * 这个任务自己的限速，修改后立即生效
+     */
+    public RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * 读取数据后调用，依次检查请求、域名和全局的限速
+     * @return 需要等待的纳秒数
+     */
+    long reserveBandwidth(long bytes) {
+        DeadlineMonitor deadlineMonitor = mDeadlineMonitor;
+        if (deadlineMonitor != null) {
+            deadlineMonitor.onBytesRead(bytes);
+        }
+        return mFileDownloadManager.getBandwidthController().reserve(mRateLimiter, mHost, mFlow, bytes);
+    }
+
+    /**
+     * 开始传输数据前加入按权重分配带宽，没有设置权重时按优先级计算
+     */
+    private synchronized void openFlow() {
+        if (mFlow != null) return;
+        int weight = mRequest.getWeight() > 0 ? mRequest.getWeight() : Math.max(1, mPriority + 1);
+        mFlow = mFileDownloadManager.getBandwidthController().getFairShaper().openFlow(weight);
+    }
+
+    private synchronized void closeFlow() {
+        if (mFlow == null) return;
+        mFileDownloadManager.getBandwidthController().getFairShaper().closeFlow(mFlow);
+        mFlow = null;
+    }
+
+    /**
+     * 是否允许拆分正在下载的分片
+     */
+    boolean isSplitEnabled() {
+        return !mRequest.isNoSplit();
+    }
+
+    /**
+     * 将正在下载的分片剩余部分的后一半拆分成新的分片，原分片的结尾同时缩短，在SegmentScheduler的锁中调用
+     * @return 新的分片，剩余部分太小时返回null
+     */
+    DownloadSegment splitSegment(DownloadSegment segment) {
+        DownloadSegment newSegment = segment.split(MIN_SPLIT_SIZE);
+        if (newSegment == null) return null;
+        newSegment.setNumber(mNextSegmentNumber++);
+        mDao.splitDownloadSegment(segment, newSegment);
+        if (mSegmentMerger != null) {
+            mSegmentMerger.insertSegment(segment, newSegment);
+        } else {
+            mSegments.add(mSegments.indexOf(segment) + 1, newSegment);
+        }
+        FLog.i("split segment " + segment.getNumber() + ", new segment: " + newSegment.getNumber() + ", offset: " + newSegment.getOffset() + ", length: " + newSegment.getSegmentLength());
+        return newSegment;
+    }
+
+    /**
+     * 读取数据库中记录的分片，分片必须连续覆盖整个文件，否则返回null重新分片
+     */
+    private List<DownloadSegment> loadSegments(File targetFile, long contentLength) {
+        List<DownloadSegment> segments = mDao.findDownloadSegments(mTaskId);
+        if (segments.isEmpty()) return null;
+        long offset = 0;
+        for (DownloadSegment segment : segments) {
+            if (segment.getOffset() != offset || segment.getSegmentLength() <= 0) return null;
+            offset += segment.getSegmentLength();
+        }
+        if (offset != contentLength) return null;
+        for (DownloadSegment segment : segments) {
+            //由分片任务根据数据库中的状态判断是否已经完成
+            segment.setStatus(Segment.STATUS_RUNNING);
+            segment.setUrl(mRequest.getUrl());
+            segment.setTarget(mRequest.getTarget());
+            segment.setTargetFile(targetFile);
+            segment.setFileName(mRequest.getFileName());
+        }
+        return segments;
+    }
+
+    /**
+     * 获取资源信息，先使用HEAD请求，失败或者没有长度时使用Range: bytes=0-0，从Content-Range中读取总长度。
+     * 开启复用时直接请求bytes=0-，服务器支持分片时保留响应给第一个分片使用
+     */
     private ResourceInfo getResourceInfo(DownloadRequest request, String url) throws IOException {
-        ResponseBody body;
-        Request.Builder builder = new Request.Builder()
-                .url(url)
-                .get();
+        if (!request.isReuseProbeConnection()) {
+            ResourceInfo info = headResourceInfo(request, url);
+            if (info != null) return info;
+        }
+        return rangeResourceInfo(request, url, request.isReuseProbeConnection());
+    }
+
+    /**
+     * @return 服务器不支持HEAD或者没有返回长度时返回null
+     */
+    @Nullable
+    private ResourceInfo headResourceInfo(DownloadRequest request, String url) throws IOException {
+        Request.Builder builder = newProbeRequestBuilder(request, url).head();
+        mGetResourceInfoCall = mOkHttpClient.newCall(builder.build());
+        Response response = mGetResourceInfoCall.execute();
+        try {
+            if (!response.isSuccessful()) {
+                FLog.i("HEAD not supported, code: " + response.code());
+                return null;
+            }
+            long contentLength = parseLong(response.header("Content-Length"));
+            if (contentLength < 0) return null;
+            ResourceInfo info = newResourceInfo(url, response);
+            info.setContentLength(contentLength);
+            info.setAcceptRanges(response.header("Accept-Ranges"));
+            checkContentEncoding(info, response);
+            onProbeResponse(url, info, response);
+            return info;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * 服务器返回206时支持分片，总长度在Content-Range中；返回200时不支持分片，只读取响应头
+     * @param keepResponse 请求bytes=0-，支持分片时保留响应给第一个分片，返回200且没有压缩时保留响应给整体下载
+     */
+    private ResourceInfo rangeResourceInfo(DownloadRequest request, String url, boolean keepResponse) throws IOException {
+        Request.Builder builder = newProbeRequestBuilder(request, url)
+                .get()
+                .header("Range", keepResponse ? "bytes=0-" : "bytes=0-0");
+        mGetResourceInfoCall = mOkHttpClient.newCall(builder.build());
+        Response response = mGetResourceInfoCall.execute();
+        boolean kept = false;
+        try {
+            if (!response.isSuccessful()) {
+                if (isUrlExpired(response.code())) {
+                    refreshUrl(url, response.code());
+                }
+                throw new DownloadException("Get resource info failed, code: " + response.code());
+            }
+            ResourceInfo info = newResourceInfo(url, response);
+            if (response.code() == 206) {
+                //bytes 0-0/12345，长度未知时为*
+                String contentRange = response.header("Content-Range");
+                int index = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+                info.setContentLength(index < 0 ? -1 : parseLong(contentRange.substring(index + 1).trim()));
+                info.setAcceptRanges("bytes");
+                checkContentEncoding(info, response);
+                if (keepResponse && info.getContentLength() > 0) {
+                    mProbeResponse = response;
+                    kept = true;
+                }
+            } else {
+                info = fullResourceInfo(url, response);
+                //服务器忽略了Range，返回的就是整个文件，不分片下载时直接使用
+                if (keepResponse && !isContentEncoded(response)) {
+                    mProbeResponse = response;
+                    kept = true;
+                }
+            }
+            onProbeResponse(url, info, response);
+            return info;
+        } finally {
+            if (!kept) {
+                response.close();
+            }
+        }
+    }
 
+    /**
+     * 已下载完成的任务重新开始时，带上If-None-Match/If-Modified-Since请求整个文件。
+     * 返回304时资源没有变化，使用本地记录的信息；返回200时保留响应，从头下载时直接使用
+     */
+    private ResourceInfo conditionalResourceInfo(DownloadRequest request, String url, DownloadTaskModel taskModel) throws IOException {
+        Request.Builder builder = newProbeRequestBuilder(request, url).get();
+        if (taskModel.getETag() != null) {
+            builder.header("If-None-Match", taskModel.getETag());
+        }
+        if (taskModel.getLastModified() != null) {
+            builder.header("If-Modified-Since", taskModel.getLastModified());
+        }
+        mGetResourceInfoCall = mOkHttpClient.newCall(builder.build());
+        Response response = mGetResourceInfoCall.execute();
+        if (response.code() == 304) {
+            response.close();
+            FLog.i("resource not modified: " + url);
+            return localResourceInfo(taskModel);
+        }
+        if (!response.isSuccessful()) {
+            response.close();
+            if (isUrlExpired(response.code())) {
+                refreshUrl(url, response.code());
+            }
+            throw new DownloadException("Get resource info failed, code: " + response.code());
+        }
+        ResourceInfo info = fullResourceInfo(url, response);
+        onProbeResponse(url, info, response);
+        if (isContentEncoded(response)) {
+            //请求了identity，OkHttp不会解压，响应的数据不能直接写入文件
+            response.close();
+        } else {
+            mProbeResponse = response;
+        }
+        return info;
+    }
+
+    /**
+     * 未完成的任务续传时使用本地记录的资源信息，由分片请求的If-Range验证资源没有变化
+     * @return 不能续传或者没有可以验证的ETag、Last-Modified时返回null
+     */
+    @Nullable
+    private ResourceInfo resumeResourceInfo(@Nullable DownloadTaskModel taskModel, File targetFile) {
+        if (taskModel == null) return null;
+        int status = taskModel.getStatus();
+        if (status == Task.STATUS_ENQUEUE || status == Task.STATUS_COMPLETE || status == Task.STATUS_CANCELED) return null;
+        if (taskModel.getContentLength() <= 0 || !"bytes".equalsIgnoreCase(taskModel.getAcceptRanges())) return null;
+        if (isDownloadedFileDeleted(taskModel, targetFile)) return null;
+        mIfRange = ifRangeValidator(taskModel.getETag(), taskModel.getLastModified());
+        if (mIfRange == null) return null;
+        ResourceInfo info = localResourceInfo(taskModel);
+        info.setUrl(mRequest.getUrl());
+        return info;
+    }
+
+    /**
+     * If-Range只能使用强ETag，没有时使用Last-Modified
+     */
+    @Nullable
+    static String ifRangeValidator(@Nullable String eTag, @Nullable String lastModified) {
+        if (eTag != null && !eTag.startsWith("W/")) return eTag;
+        return lastModified;
+    }
+
+    /**
+     * 获取资源信息，请求返回401、403、410并且刷新了地址时，使用新的地址重试一次
+     * @param completedModel 不为空时使用条件请求验证已完成的任务
+     */
+    private ResourceInfo probeResourceInfo(@Nullable DownloadTaskModel completedModel) throws IOException {
+        String url = mRequest.getUrl();
+        try {
+            return completedModel != null ? conditionalResourceInfo(mRequest, url, completedModel) : getResourceInfo(mRequest, url);
+        } catch (DownloadException e) {
+            String refreshedUrl = mRequest.getUrl();
+            if (url.equals(refreshedUrl)) throw e;
+            FLog.w("Get resource info failed, retry with refreshed url", e);
+            return completedModel != null ? conditionalResourceInfo(mRequest, refreshedUrl, completedModel) : getResourceInfo(mRequest, refreshedUrl);
+        }
+    }
+
+    /**
+     * 请求返回401、403、410时调用，地址可能已经过期。
+     * 过期的是重定向后的地址时退回原地址；原地址过期时由{@link UrlProvider}提供新的地址，任务id和分片进度不变
+     */
+    void onUrlExpired(String expiredUrl, int code) {
+        if (expiredUrl.equals(mResolvedUrl)) {
+            onResolvedUrlFailed(expiredUrl);
+            return;
+        }
+        if (refreshUrl(expiredUrl, code) && !validateRefreshedUrl()) {
+            //新地址的资源和已下载的部分不一致
+            synchronized (this) {
+                SegmentScheduler scheduler = mSegmentScheduler;
+                if (getStatus() != Task.STATUS_RUNNING || scheduler == null) return;
+                FLog.e("resource changed after url refresh: " + mRequest.getUrl());
+                setStatus(Task.STATUS_FAILED);
+                scheduler.pause();
+            }
+        }
+    }
+
+    /**
+     * 同一个过期地址只刷新一次，其他分片等待刷新完成后使用新的地址
+     * @return 这次调用刷新了地址
+     */
+    private boolean refreshUrl(String expiredUrl, int code) {
+        UrlProvider provider = mRequest.getUrlProvider();
+        if (provider == null) return false;
+        synchronized (mUrlLock) {
+            if (!expiredUrl.equals(mRequest.getUrl())) return false;
+            String url;
+            try {
+                url = provider.refreshUrl(mTaskId, expiredUrl, code);
+            } catch (Exception e) {
+                FLog.w("Refresh url failed", e);
+                return false;
+            }
+            if (url == null || url.equals(expiredUrl)) return false;
+            FLog.i("refresh url, code: " + code + ", url: " + url);
+            ResourceInfoCache cache = mFileDownloadManager.getResourceInfoCache();
+            cache.invalidate(expiredUrl);
+            mResolvedUrl = null;
+            mRequest.setUrl(url);
+            mDao.updateDownloadTaskUrl(mTaskId, url);
+            return true;
+        }
+    }
+
+    /**
+     * 分片下载中刷新地址后验证资源没有变化。有ETag或Last-Modified时之后的分片请求带上If-Range，
+     * 资源变化时按{@link #onResourceChanged(Response)}重新开始；没有时请求新地址比较长度
+     */
+    private boolean validateRefreshedUrl() {
+        ResourceInfo info = mResourceInfo;
+        if (info == null || mIfRange != null) return true;
+        String validator = ifRangeValidator(info.getETag(), info.getLastModified());
+        if (validator != null) {
+            mIfRange = validator;
+            return true;
+        }
+        try {
+            String url = mRequest.getUrl();
+            ResourceInfo newInfo = headResourceInfo(mRequest, url);
+            if (newInfo == null) {
+                newInfo = rangeResourceInfo(mRequest, url, false);
+            }
+            return newInfo.getContentLength() == info.getContentLength();
+        } catch (IOException e) {
+            FLog.w("Validate refreshed url failed", e);
+            return false;
+        }
+    }
+
+    private static ResourceInfo localResourceInfo(DownloadTaskModel taskModel) {
+        ResourceInfo info = new ResourceInfo();
+        info.setUrl(taskModel.getUrl());
+        info.setContentType(taskModel.getContentType());
+        info.setContentLength(taskModel.getContentLength());
+        info.setAcceptRanges(taskModel.getAcceptRanges());
+        info.setETag(taskModel.getETag());
+        info.setLastModified(taskModel.getLastModified());
+        return info;
+    }
+
+    /**
+     * 返回200的完整响应，长度从body或者Content-Length中读取
+     */
+    private static ResourceInfo fullResourceInfo(String url, Response response) {
+        ResourceInfo info = newResourceInfo(url, response);
+        ResponseBody body = response.body();
+        info.setContentLength(body != null ? body.contentLength() : parseLong(response.header("Content-Length")));
+        info.setAcceptRanges(response.header("Accept-Ranges"));
+        checkContentEncoding(info, response);
+        return info;
+    }
+
+    /**
+     * 服务器仍然压缩时长度是压缩后的长度，和分片请求得到的数据不一致，按长度未知、不支持分片处理
+     */
+    private static void checkContentEncoding(ResourceInfo info, Response response) {
+        if (!isContentEncoded(response)) return;
+        FLog.i("content encoded: " + response.header("Content-Encoding") + ", download without segments");
+        info.setContentLength(-1);
+        info.setAcceptRanges(null);
+    }
+
+    private static boolean isContentEncoded(Response response) {
+        String encoding = response.header("Content-Encoding");
+        return encoding != null && !"identity".equalsIgnoreCase(encoding.trim());
+    }
+
+    /**
+     * 记录域名能力和重定向后的最终地址
+     */
+    private void onProbeResponse(String url, ResourceInfo info, Response response) {
+        ResourceInfoCache cache = mFileDownloadManager.getResourceInfoCache();
+        cache.updateHostCapability(mHost, info.acceptRanges(), response.protocol() == Protocol.HTTP_2);
+        cache.putResolvedUrl(url, response.request().url().toString());
+    }
+
+    /**
+     * 分片请求最终地址返回4xx，签名可能已经过期，之后的分片使用原地址
+     */
+    void onResolvedUrlFailed(String resolvedUrl) {
+        mFileDownloadManager.getResourceInfoCache().invalidateResolvedUrl(mRequest.getUrl(), resolvedUrl);
+        if (resolvedUrl.equals(mResolvedUrl)) {
+            FLog.w("resolved url failed, fall back to: " + mRequest.getUrl());
+            mResolvedUrl = null;
+        }
+    }
+
+    private Request.Builder newProbeRequestBuilder(DownloadRequest request, String url) {
+        Request.Builder builder = new Request.Builder().url(url);
         if (request.getHeaders() != null) {
             for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
                 builder.addHeader(entry.getKey(), entry.getValue());
             }
         }
+        //不设置时OkHttp会请求gzip，HEAD和分片请求的长度不一致
+        builder.header("Accept-Encoding", "identity");
+        return builder;
+    }
 
-        mGetResourceInfoCall = mOkHttpClient.newCall(builder.build());
-        Response response = mGetResourceInfoCall.execute();
+    private static ResourceInfo newResourceInfo(String url, Response response) {
         ResourceInfo info = new ResourceInfo();
         info.setUrl(url);
-        body = response.body();
         info.setContentType(response.header("Content-Type"));
-        info.setContentLength(body != null ? body.contentLength() : Long.parseLong(response.header("Content-Length", "-1")));
-        info.setAcceptRanges(response.header("Accept-Ranges"));
         info.setETag(response.header("eTag"));
         info.setLastModified(response.header("Last-Modified"));
-        if (body != null) {
-            body.close();
-        }
         return info;
     }
 
+    /**
+     * 签名地址过期时服务器可能返回的状态码
+     */
+    static boolean isUrlExpired(int code) {
+        return code == 401 || code == 403 || code == 410;
+    }
+
+    private static long parseLong(@Nullable String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private boolean checkDownloadedSegments(List<DownloadSegment> segments) {
         if (segments == null) return false;
         for (DownloadSegment segment : segments) {
-            if (segment.getSegmentFile().length() != segment.getSegmentLength()) {
+            if (mSegmentMerger.isMerged(segment)) continue;
+            if (segment.getSegmentFile() == null || segment.getSegmentFile().length() != segment.getSegmentLength()) {
                 return false;
             }
         }
         return true;
     }
 
-    private File mergeSegmentFiles(File file, List<DownloadSegment> segments) throws IOException {
-        if (file.exists()) {
-            file.delete();
-        } else {
+    /**
+     * 预留剩余需要下载的空间，已经写入磁盘的部分不再预留
+     */
+    private boolean reserveDiskSpace(File targetFile, long contentLength) {
+        if (contentLength <= 0) return true;
+        long downloaded = Utils.getAllocatedSize(targetFile);
+        File segmentDir = new File(mRequest.getTarget() + DOWNLOAD_SUFFIX);
+        File[] segmentFiles = segmentDir.listFiles();
+        if (segmentFiles != null) {
+            for (File file : segmentFiles) {
+                downloaded += file.length();
+            }
+        }
+        return mFileDownloadManager.getDiskSpaceManager().reserve(mTaskId, targetFile.getParentFile(), contentLength - downloaded);
+    }
+
+    /**
+     * 直接写入模式下，根据每个分片的完成状态判断是否下载完成
+     */
+    private boolean checkCompletedRanges(List<DownloadSegment> segments) {
+        if (segments == null) return false;
+        for (DownloadSegment segment : segments) {
+            if (segment.getStatus() != Segment.STATUS_COMPLETE || segment.getDownloadedLength() != segment.getSegmentLength()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 打开目标文件，并预先设置为资源的大小，各分片直接写入对应的位置
+     */
+    private FileChannel openTargetChannel(File file, long contentLength) throws IOException {
+        if (!file.exists()) {
             file.getParentFile().mkdirs();
             file.createNewFile();
         }
-        RandomAccessFile raf = new RandomAccessFile(file, "rw");
-        raf.seek(0);
-        byte[] buffer = new byte[4096];
-        for (int i = 0; i < segments.size(); i++) {
-            DownloadSegment segment = segments.get(i);
-            File segmentFile = segment.getSegmentFile();
-            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(segmentFile));
-            int read;
-            while ((read = bis.read(buffer)) != -1) {
-                raf.write(buffer, 0, read);
-            }
-            bis.close();
-            segmentFile.delete();
+        mTargetFile = new RandomAccessFile(file, "rw");
+        if (Utils.preallocate(mTargetFile, contentLength)) {
+            //空间已经由目标文件占用，不需要继续预留
+            mFileDownloadManager.getDiskSpaceManager().release(mTaskId);
+        }
+        return mTargetFile.getChannel();
+    }
 
-            //FLog.i("mergeSegmentFiles no: " + segment.getNumber() + " complete");
+    private void closeTargetChannel() {
+        mTargetChannel = null;
+        if (mTargetFile != null) {
+            try {
+                mTargetFile.close();
+            } catch (IOException e) {
+                FLog.w("Close target file failed", e);
+            }
+            mTargetFile = null;
         }
-        raf.close();
-        return file;
     }
 
     /**
-     * 资源发生改变
+     * 资源发生改变。写入方式和请求不同时不算改变，按任务记录的方式续传
      */
     private boolean isResourceChanged(ResourceInfo info, DownloadTaskModel taskModel) {
         if (taskModel == null) return true;
@@ -349,17 +1030,46 @@ public class DownloadTask extends Task<File> {
     }
 
     /**
-     * 下载成功，但是文件被删除
+     * 下载成功，但是文件被删除；或者未完成的目标文件被删除
      */
     private boolean isDownloadedFileDeleted(DownloadTaskModel downloadTaskModel, File file) {
         if (downloadTaskModel == null) return true;
-        return downloadTaskModel.getStatus() == Task.STATUS_COMPLETE && !file.exists();
+        if (downloadTaskModel.getStatus() == Task.STATUS_COMPLETE) return !file.exists();
+        if (downloadTaskModel.isDirectWrite()) return !file.exists();
+        return downloadTaskModel.getMergedLength() > 0 && file.length() < downloadTaskModel.getMergedLength();
     }
 
     private void clearLocalDownloadTaskData(String taskId) {
         mDao.deleteDownloadTaskModel(taskId);
         mDao.deleteDownloadSegments(taskId);
+        clearLocalFiles();
+    }
+
+    private void clearLocalFiles() {
         Utils.deleteDir(new File(mRequest.getTarget() + DOWNLOAD_SUFFIX));
+        new File(mRequest.getTarget()).delete();
+    }
+
+    /**
+     * 只有分片下载开始后才能抢占，完整下载不能暂停
+     */
+    @Override
+    protected boolean isPreemptible() {
+        return getStatus() == Task.STATUS_RUNNING && mSegmentScheduler != null && !mPreempted;
+    }
+
+    /**
+     * 和暂停相同，但是不回调onPause，所有分片停止后由{@link #onSegmentsFinished(boolean)}重新排队
+     */
+    @Override
+    protected synchronized boolean preempt() {
+        SegmentScheduler scheduler = mSegmentScheduler;
+        if (!isPreemptible()) return false;
+        mPreempted = true;
+        setStatus(Task.STATUS_PAUSED);
+        mDao.updateDownloadTaskStatus(mTaskId, Task.STATUS_PAUSED);
+        scheduler.pause();
+        return true;
     }
 
     @Override
@@ -367,6 +1077,13 @@ public class DownloadTask extends Task<File> {
         if (getStatus() == Task.STATUS_COMPLETE || getStatus() == Task.STATUS_FAILED) {
             return;
         }
+        //被抢占后用户暂停，不再自动继续，之后继续时重新回调onStart
+        mPreempted = false;
+        mResumingFromPreempt = false;
+        Response restartResponse = takeRestartResponse();
+        if (restartResponse != null) {
+            restartResponse.close();
+        }
 
         if (getStatus() == Task.STATUS_ENQUEUE) {
             onPause();
@@ -382,10 +1099,8 @@ public class DownloadTask extends Task<File> {
             mCompleteDownloadTask.pause();
         }
 
-        if (mRunningSegmentTasks != null) {
-            for (int i = 0; i < mRunningSegmentTasks.size(); i++) {
-                mRunningSegmentTasks.get(i).pause();
-            }
+        if (mSegmentScheduler != null) {
+            mSegmentScheduler.pause();
         }
 
         if (mTaskId != null) {
@@ -401,20 +1116,23 @@ public class DownloadTask extends Task<File> {
             return;
         }
 
+        boolean enqueued = getStatus() == Task.STATUS_ENQUEUE;
         setStatus(Task.STATUS_CANCELED);
+        Response restartResponse = takeRestartResponse();
+        if (restartResponse != null) {
+            restartResponse.close();
+        }
 
         if (mCompleteDownloadTask != null) {
             mCompleteDownloadTask.cancel();
             return;
         }
 
-        if (mRunningSegmentTasks != null) {
-            for (int i = 0; i < mRunningSegmentTasks.size(); i++) {
-                mRunningSegmentTasks.get(i).cancel();
-            }
+        if (mSegmentScheduler != null) {
+            mSegmentScheduler.cancel();
         }
 
-        if (getStatus() == Task.STATUS_ENQUEUE) {
+        if (enqueued) {
             onFailure(new Exception("Canceled"));
         }
 
@@ -427,8 +1145,17 @@ public class DownloadTask extends Task<File> {
         super.addCallback(mainThreadCallback);
     }
 
+    @Override
+    protected void onPause() {
+        closeProbeResponse();
+        mFileDownloadManager.getDiskSpaceManager().release(mTaskId);
+        super.onPause();
+    }
+
     @Override
     protected void onComplete(@NonNull File result) {
+        closeProbeResponse();
+        mFileDownloadManager.getDiskSpaceManager().release(mTaskId);
         setStatus(Task.STATUS_COMPLETE);
         mDao.updateDownloadTaskStatus(mTaskId, Task.STATUS_COMPLETE);
         super.onComplete(result);
@@ -437,7 +1164,11 @@ public class DownloadTask extends Task<File> {
 
     @Override
     protected void onFailure(@NonNull Exception e) {
+        closeProbeResponse();
+        //资源可能已经变化，下次重新获取
+        mFileDownloadManager.getResourceInfoCache().invalidate(mRequest.getUrl());
         FLog.e("Download failed", e);
+        mFileDownloadManager.getDiskSpaceManager().release(mTaskId);
         setStatus(Task.STATUS_FAILED);
         mDao.updateDownloadTaskStatus(mTaskId, Task.STATUS_FAILED);
         super.onFailure(e);
@@ -451,27 +1182,6 @@ public class DownloadTask extends Task<File> {
         //FLog.i("file: " + mRequest.getUrl() + ", status: " + Task.statusToString(status));
     }
 
-    /**
-     * 从队列中取出num个元素
-     *
-     * @param queue
-     * @param num
-     * @return
-     */
-    private <T> List<T> pollElements(Queue<T> queue, int num) {
-        if (queue.isEmpty()) return Collections.emptyList();
-
-        List<T> list = new ArrayList<>();
-        while (num > 0) {
-            T element = queue.poll();
-            if (element != null) {
-                list.add(element);
-            }
-            num--;
-        }
-        return list;
-    }
-
     private List<DownloadSegment> findUnCompleteSegments(List<DownloadSegment> list) {
         List<DownloadSegment> segments = new ArrayList<>();
         for (int i = 0; i < list.size(); i++) {
@@ -497,6 +1207,13 @@ public class DownloadTask extends Task<File> {
             this.fileTotalLength = fileTotalLength;
         }
 
+        /**
+         * 已经合并的分片不会再回调进度，需要计入已下载长度
+         */
+        public synchronized void addCompletedLength(long length) {
+            currentLength += length;
+        }
+
         @Override
         public synchronized void onProgressChange(Progress progress) {
             currentLength += progress.getUpdate();
@@ -522,6 +1239,17 @@ public class DownloadTask extends Task<File> {
             }
         }
 
+        @Override
+        public void onComplete(DownloadSegment segment) {
+            if (mSegmentMerger == null) return;
+            try {
+                mSegmentMerger.mergeCompletedPrefix();
+            } catch (IOException e) {
+                //下载完成后会再次合并
+                FLog.w("Merge segment " + segment.getNumber() + " failed", e);
+            }
+        }
+
         @Override
         public void onFailure(Exception exception) {
             Log.w(TAG, "segment download failure:", exception);
@@ -0,0 +1,229 @@
+package com.pei.filedownload.task;
+
+import androidx.annotation.Nullable;
+
+import com.pei.filedownload.BufferPool;
+import com.pei.filedownload.DiskWriter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+/**
+ * 从指定位置开始写入FileChannel的Sink，使用定位写入，多个Sink可以同时写入同一个channel。
+ * 数据先攒到缓冲池的缓冲区中，写满后一次写入文件；设置了DiskWriter时交给写入线程异步写入。
+ * 不负责关闭channel
+ */
+class FileChannelSink implements Sink, DiskWriter.Callback {
+    static final long READ_SIZE = 8192; //okio segment的大小，每次读取一个segment
+
+    private FileChannel mChannel;
+    private BufferPool mBufferPool;
+    private DiskWriter mDiskWriter;
+    private int mWriter;
+    private ByteBuffer mBuffer;
+    private long mSubmitPosition;
+    private long mPosition;
+    private int mPendingWrites;
+    private IOException mWriteError;
+    private boolean mClosed;
+    private boolean mNonBlocking;
+
+    FileChannelSink(FileChannel channel, long position, BufferPool bufferPool) throws IOException {
+        this(channel, position, bufferPool, null);
+    }
+
+    /**
+     * 创建时就从缓冲池获取缓冲区，缓冲池用完时在发起请求之前等待
+     */
+    FileChannelSink(FileChannel channel, long position, BufferPool bufferPool, @Nullable DiskWriter diskWriter) throws IOException {
+        this(channel, position, bufferPool, diskWriter, bufferPool.acquire());
+        this.mNonBlocking = false;
+    }
+
+    /**
+     * 使用已经获取的缓冲区，之后也不会等待缓冲池：异步提交后没有空闲缓冲区时{@link #isWritable()}返回false，
+     * 由调用方稍后再写入。共用线程的传输使用，避免线程都在等待缓冲区，而持有缓冲区的传输分不到线程
+     */
+    FileChannelSink(FileChannel channel, long position, BufferPool bufferPool, @Nullable DiskWriter diskWriter, ByteBuffer buffer) {
+        this.mChannel = channel;
+        this.mPosition = position;
+        this.mSubmitPosition = position;
+        this.mBufferPool = bufferPool;
+        this.mDiskWriter = diskWriter;
+        if (diskWriter != null) {
+            mWriter = diskWriter.assignWriter();
+        }
+        this.mBuffer = buffer;
+        this.mNonBlocking = true;
+    }
+
+    @Override
+    public void write(Buffer source, long byteCount) throws IOException {
+        if (mClosed) throw new IllegalStateException("closed");
+        while (byteCount > 0) {
+            if (mBuffer != null && !mBuffer.hasRemaining()) {
+                flush();
+            }
+            if (mBuffer == null) {
+                //不等待时调用方应该先检查isWritable
+                mBuffer = mBufferPool.acquire();
+            }
+            int limit = mBuffer.limit();
+            int toRead = (int) Math.min(mBuffer.remaining(), byteCount);
+            mBuffer.limit(mBuffer.position() + toRead);
+            int read = source.read(mBuffer);
+            mBuffer.limit(limit);
+            if (read <= 0) {
+                throw new IOException("Source exhausted, expect: " + byteCount);
+            }
+            byteCount -= read;
+        }
+    }
+
+    /**
+     * 同步写入时数据写入文件后返回；异步写入时提交给写入线程后返回
+     */
+    @Override
+    public void flush() throws IOException {
+        checkWriteError();
+        if (mBuffer == null || mBuffer.position() == 0) return;
+        mBuffer.flip();
+        if (mDiskWriter != null) {
+            submit();
+            return;
+        }
+        try {
+            while (mBuffer.hasRemaining()) {
+                int written = mChannel.write(mBuffer, mSubmitPosition);
+                if (written <= 0) {
+                    throw new IOException("Write to channel failed, position: " + mSubmitPosition + ", size: " + mChannel.size());
+                }
+                mSubmitPosition += written;
+                synchronized (this) {
+                    mPosition = mSubmitPosition;
+                }
+            }
+        } finally {
+            mBuffer.compact();
+        }
+    }
+
+    private void submit() throws IOException {
+        ByteBuffer buffer = mBuffer;
+        mBuffer = null;
+        long position = mSubmitPosition;
+        int length = buffer.remaining();
+        synchronized (this) {
+            mPendingWrites++;
+        }
+        try {
+            mDiskWriter.submit(mWriter, mChannel, position, buffer, this);
+        } catch (IOException e) {
+            synchronized (this) {
+                mPendingWrites--;
+            }
+            mBuffer = buffer;
+            mBuffer.clear();
+            throw e;
+        }
+        mSubmitPosition += length;
+        mBuffer = mNonBlocking ? mBufferPool.tryAcquire() : mBufferPool.acquire();
+    }
+
+    /**
+     * 有缓冲区可以写入。不等待缓冲池时，异步提交后可能暂时没有缓冲区，等待写入线程归还
+     */
+    boolean isWritable() {
+        if (mBuffer == null) {
+            mBuffer = mBufferPool.tryAcquire();
+        }
+        return mBuffer != null;
+    }
+
+    @Override
+    public void onWriteComplete(ByteBuffer buffer, long position, int length) {
+        synchronized (this) {
+            //前面的写入失败后不再前移，避免中间留下空洞
+            if (mWriteError == null) {
+                mPosition = position + length;
+            }
+            mPendingWrites--;
+            notifyAll();
+        }
+        mBufferPool.release(buffer);
+    }
+
+    @Override
+    public void onWriteFailed(ByteBuffer buffer, IOException e) {
+        synchronized (this) {
+            if (mWriteError == null) {
+                mWriteError = e;
+            }
+            mPendingWrites--;
+            notifyAll();
+        }
+        mBufferPool.release(buffer);
+    }
+
+    private synchronized void checkWriteError() throws IOException {
+        if (mWriteError != null) {
+            throw new IOException("Write behind failed", mWriteError);
+        }
+    }
+
+    private synchronized void awaitPendingWrites() throws IOException {
+        while (mPendingWrites > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Wait for pending writes interrupted");
+            }
+        }
+    }
+
+    /**
+     * 把已经写入channel的数据刷到磁盘，之后{@link #getPosition()}之前的数据断电也不会丢失
+     */
+    void force() throws IOException {
+        mChannel.force(false);
+    }
+
+    @Override
+    public Timeout timeout() {
+        return Timeout.NONE;
+    }
+
+    /**
+     * 写入剩余数据，等待异步写入完成并归还缓冲区
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            flush();
+        } finally {
+            try {
+                awaitPendingWrites();
+            } finally {
+                mBufferPool.release(mBuffer);
+                mBuffer = null;
+            }
+        }
+        checkWriteError();
+    }
+
+    /**
+     * 已经写入文件的位置，不包含缓冲区中和等待异步写入的数据
+     */
+    public synchronized long getPosition() {
+        return mPosition;
+    }
+}
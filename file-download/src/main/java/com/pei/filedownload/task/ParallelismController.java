@@ -0,0 +1,93 @@
+package com.pei.filedownload.task;
+
+import androidx.annotation.Nullable;
+
+import com.pei.filedownload.FLog;
+import com.pei.filedownload.ParallelismListener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 自适应并发数，按固定窗口统计任务的总下载速度，AIMD方式调整：
+ * 速度随并发数提升时加1，速度明显下降时减半，限制在最小和最大并发数之间
+ */
+class ParallelismController {
+    private static final long WINDOW_NANOS = 2000 * 1000 * 1000L; //统计窗口2秒
+    private static final double INCREASE_RATIO = 1.05; //速度提升5%以上继续增加
+    private static final double DECREASE_RATIO = 0.8; //速度下降20%以上减半
+
+    private String mTaskId;
+    private int mMinParallelNum;
+    private int mMaxParallelNum;
+    private ParallelismListener mListener;
+    private int mParallelNum;
+    private AtomicLong mWindowBytes = new AtomicLong();
+    private volatile long mWindowStart;
+    private long mLastThroughput;
+    private long mBestThroughput;
+    private int mBestParallelNum;
+
+    ParallelismController(String taskId, int parallelNum, int minParallelNum, int maxParallelNum, @Nullable ParallelismListener listener) {
+        this.mTaskId = taskId;
+        this.mMinParallelNum = Math.max(1, minParallelNum);
+        this.mMaxParallelNum = Math.max(mMinParallelNum, maxParallelNum);
+        this.mParallelNum = Math.max(mMinParallelNum, Math.min(mMaxParallelNum, parallelNum));
+        this.mListener = listener;
+        this.mWindowStart = System.nanoTime();
+    }
+
+    /**
+     * 记录读取的数据量，窗口结束时重新计算并发数
+     * @return 调整后的并发数，没有调整时返回0
+     */
+    int onBytesRead(long bytes) {
+        return onBytesRead(bytes, System.nanoTime());
+    }
+
+    /**
+     * @param now 当前时间，纳秒，和System.nanoTime()一致
+     */
+    int onBytesRead(long bytes, long now) {
+        mWindowBytes.addAndGet(bytes);
+        if (now - mWindowStart < WINDOW_NANOS) return 0;
+        return adjust(now);
+    }
+
+    private synchronized int adjust(long now) {
+        long elapsed = now - mWindowStart;
+        //其他线程已经计算过这个窗口
+        if (elapsed < WINDOW_NANOS) return 0;
+        long throughput = (long) (mWindowBytes.getAndSet(0) * 1e9 / elapsed);
+        mWindowStart = now;
+
+        int oldParallelNum = mParallelNum;
+        if (throughput > mBestThroughput) {
+            mBestThroughput = throughput;
+            mBestParallelNum = oldParallelNum;
+        }
+        if (mLastThroughput == 0 || throughput >= mLastThroughput * INCREASE_RATIO) {
+            mParallelNum = Math.min(mMaxParallelNum, oldParallelNum + 1);
+        } else if (throughput < mLastThroughput * DECREASE_RATIO) {
+            mParallelNum = Math.max(mMinParallelNum, oldParallelNum / 2);
+        }
+        mLastThroughput = throughput;
+        if (mParallelNum == oldParallelNum) return 0;
+
+        FLog.i("task " + mTaskId + " parallelNum: " + oldParallelNum + " -> " + mParallelNum + ", throughput: " + throughput);
+        if (mListener != null) {
+            mListener.onParallelismChanged(mTaskId, oldParallelNum, mParallelNum, throughput);
+        }
+        return mParallelNum;
+    }
+
+    synchronized int getParallelNum() {
+        return mParallelNum;
+    }
+
+    /**
+     * 下载速度最快的窗口的并发数，还没有完整的窗口时返回0
+     */
+    synchronized int getBestParallelNum() {
+        return mBestParallelNum;
+    }
+}
@@ -1,158 +1,453 @@
 package com.pei.filedownload.task;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.pei.filedownload.FLog;
 import com.pei.filedownload.FileDownloadManager;
 import com.pei.filedownload.Segment;
 import com.pei.filedownload.Task;
+import com.pei.filedownload.Utils;
 import com.pei.filedownload.db.FileTransferDao;
 import com.pei.filedownload.exception.DownloadException;
 import com.pei.filedownload.task.model.DownloadSegment;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
 
 import okhttp3.Call;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSource;
 
 public class SegmentDownloadTask extends Task<DownloadSegment> {
+    private static final int PERSIST_INTERVAL = 1024 * 1024; //每下载1M记录一次已下载长度
+    static final long BUFFER_WAIT_NANOS = 10 * 1000 * 1000L; //缓冲池用完时稍后再读取
 
     private FileDownloadManager mFileDownloadManager;
     private DownloadRequest mRequest;
     private DownloadSegment mSegment;
-    private CountDownLatch mCountDownLatch;
+    private FileChannel mTargetChannel;
+    protected SegmentScheduler mScheduler;
     private FileTransferDao mDao;
 
-    public SegmentDownloadTask(FileDownloadManager fileDownloadManager, DownloadRequest request, DownloadSegment segment, CountDownLatch countDownLatch) {
+    //当前传输的状态
+    private RandomAccessFile mSegmentRaf;
+    private FileChannel mChannel;
+    private long mBasePosition;
+    private FileChannelSink mSink;
+    private BufferedSource mSource;
+    private Buffer mBuffer;
+    private long mLength;
+    private long mPersistedLength;
+    private long mPercent;
+    private long mUpdate;
+    private long mThrottleNanos;
+    private Response mProbeResponse;
+    private ByteBuffer mSinkBuffer;
+    private String mIfRange;
+    private String mRequestUrl;
+
+    /**
+     * @param targetChannel 目标文件的channel，不为空时分片直接写入目标文件，否则写入单独的分片文件
+     */
+    public SegmentDownloadTask(FileDownloadManager fileDownloadManager, DownloadRequest request, DownloadSegment segment, @Nullable FileChannel targetChannel, SegmentScheduler scheduler) {
         super(fileDownloadManager.getOkHttpClient(), fileDownloadManager.getTaskDispatcher());
         this.mFileDownloadManager = fileDownloadManager;
         this.mRequest = request;
         this.mSegment = segment;
-        this.mCountDownLatch = countDownLatch;
+        this.mTargetChannel = targetChannel;
+        this.mScheduler = scheduler;
         mDao = FileTransferDao.get(fileDownloadManager.getContext());
     }
 
     @Override
     public void run() {
+        try {
+            if (prepare()) {
+                try {
+                    Response response = takeProbeResponse();
+                    if (response == null) {
+                        response = newCall().execute();
+                    }
+                    onResponse(response);
+                    while (readChunk(Long.MAX_VALUE, Long.MAX_VALUE)) {
+                        //读取到结尾或者状态改变前只会因为限速返回
+                        Utils.sleepNanos(mThrottleNanos);
+                    }
+                } finally {
+                    closeTransfer();
+                }
+                checkResult();
+            }
+        } catch (Exception e) {
+            FLog.e("Segment " + mSegment.getNumber() + " download failed", e);
+            onFailure(e);
+        } finally {
+            releaseProbeResponse();
+            mScheduler.onSegmentFinished(this);
+        }
+    }
+
+    /**
+     * 获取资源信息时请求的bytes=0-的响应，从头开始下载时代替这个分片的请求
+     */
+    void setProbeResponse(@Nullable Response response) {
+        mProbeResponse = response;
+    }
+
+    /**
+     * 续传时使用下载开始时记录的ETag或Last-Modified，资源变化时服务器返回200
+     */
+    void setIfRange(@Nullable String ifRange) {
+        mIfRange = ifRange;
+    }
+
+    /**
+     * @param requestUrl 原地址重定向后的最终地址，为空时请求分片的原地址
+     */
+    void setRequestUrl(@Nullable String requestUrl) {
+        mRequestUrl = requestUrl;
+    }
+
+    /**
+     * 在{@link #prepare()}之后调用，续传时位置不是0，不能使用探测请求的响应
+     */
+    @Nullable
+    protected Response takeProbeResponse() {
+        Response response = mProbeResponse;
+        mProbeResponse = null;
+        if (response == null) return null;
+        if (mSegment.getOffset() + mSegment.getDownloadedLength() == 0) {
+            FLog.i("segment " + mSegment.getNumber() + " reuse probe response");
+            return response;
+        }
+        response.close();
+        return null;
+    }
+
+    protected void releaseProbeResponse() {
+        Response response = mProbeResponse;
+        mProbeResponse = null;
+        if (response != null) {
+            response.close();
+        }
+    }
+
+    /**
+     * 检查状态和本地记录，打开写入的文件
+     * @return 需要发起请求下载；返回false时已经回调了结果
+     */
+    protected boolean prepare() throws IOException {
+        if (getStatus() == Task.STATUS_PAUSED) {
+            onPause();
+            return false;
+        } else if (getStatus() == Task.STATUS_CANCELED) {
+            onFailure(new DownloadException("Canceled"));
+            return false;
+        }
         setStatus(Task.STATUS_RUNNING);
         mSegment.setStatus(Segment.STATUS_RUNNING);
 
-        File segmentFile = new File(mSegment.getTarget() + DownloadTask.DOWNLOAD_SUFFIX,  mSegment.getTargetFile().getName() + "-" + mSegment.getNumber());
+        onStart();
+        DownloadSegment localSegment = mDao.findDownloadSegment(mSegment.getTaskId(), mSegment.getNumber());
 
-        try {
-            onStart();
-            DownloadSegment localSegment = mDao.findDownloadSegment(mSegment.getTaskId(), mSegment.getNumber());
-
-            if (mSegment.equals(localSegment)) {
-                if (localSegment.getStatus() == Segment.STATUS_COMPLETE) {
-                    //当前分片已经下载完成
-                    if (segmentFile.length() == mSegment.getSegmentLength()) {
-                        mSegment.setSegmentFile(segmentFile);
-                        mSegment.setSegmentPath(segmentFile.getPath());
-
-                        Progress progress = Progress.complete(mSegment.getSegmentLength());
-                        onProgressChanged(progress);
-
-                        onComplete(mSegment);
-                        return;
-                    } else {
-                        segmentFile.delete();
-                    }
+        boolean complete;
+        if (mTargetChannel != null) {
+            complete = prepareDirectDownload(localSegment);
+        } else {
+            complete = prepareSegmentFileDownload(localSegment);
+        }
+        if (complete) {
+            //当前分片已经下载完成
+            Progress progress = Progress.complete(mSegment.getSegmentLength());
+            onProgressChanged(progress);
+            onComplete(mSegment);
+            return false;
+        }
+        openTransfer();
+        return true;
+    }
+
+    /**
+     * 直接写入目标文件的对应位置，续传位置由数据库中的已下载长度决定
+     * @return 分片之前已经下载完成
+     */
+    private boolean prepareDirectDownload(DownloadSegment localSegment) {
+        long downloadedLength = 0;
+        if (mSegment.equals(localSegment)) {
+            if (localSegment.getStatus() == Segment.STATUS_COMPLETE) {
+                mSegment.setDownloadedLength(mSegment.getSegmentLength());
+                return true;
+            }
+            downloadedLength = Math.min(localSegment.getDownloadedLength(), mSegment.getSegmentLength());
+        }
+        mSegment.setDownloadedLength(downloadedLength);
+        mDao.insetDownloadSegment(mSegment);
+
+        mChannel = mTargetChannel;
+        mBasePosition = mSegment.getOffset();
+        return false;
+    }
+
+    /**
+     * 写入单独的分片文件，续传位置由分片文件长度决定
+     * @return 分片之前已经下载完成
+     */
+    private boolean prepareSegmentFileDownload(DownloadSegment localSegment) throws IOException {
+        File segmentFile = new File(mSegment.getTarget() + DownloadTask.DOWNLOAD_SUFFIX,  mSegment.getTargetFile().getName() + "-" + mSegment.getNumber());
+        if (mSegment.equals(localSegment)) {
+            if (localSegment.getStatus() == Segment.STATUS_COMPLETE) {
+                if (segmentFile.length() == mSegment.getSegmentLength()) {
+                    mSegment.setSegmentFile(segmentFile);
+                    mSegment.setSegmentPath(segmentFile.getPath());
+                    mSegment.setDownloadedLength(mSegment.getSegmentLength());
+                    return true;
                 } else {
-                    //canceled, paused, failed
+                    segmentFile.delete();
                 }
-            } else if (segmentFile.exists()) {
-                segmentFile.delete();
+            } else {
+                //canceled, paused, failed
             }
+        } else if (segmentFile.exists()) {
+            segmentFile.delete();
+        }
 
-            if (!segmentFile.exists()) {
-                segmentFile.getParentFile().mkdirs();
-                segmentFile.createNewFile();
-            }
-            mSegment.setSegmentFile(segmentFile);
-            mSegment.setSegmentPath(segmentFile.getPath());
+        if (!segmentFile.exists()) {
+            segmentFile.getParentFile().mkdirs();
+            segmentFile.createNewFile();
+        }
+        mSegment.setSegmentFile(segmentFile);
+        mSegment.setSegmentPath(segmentFile.getPath());
+        mSegment.setDownloadedLength(segmentFile.length());
 
-            mDao.insetDownloadSegment(mSegment);
+        mDao.insetDownloadSegment(mSegment);
 
-            doDownload(mRequest, segmentFile);
+        mSegmentRaf = new RandomAccessFile(segmentFile, "rw");
+        mChannel = mSegmentRaf.getChannel();
+        mBasePosition = 0;
+        return false;
+    }
 
-            int status = getStatus();
-            if (status == Task.STATUS_RUNNING) {
-                long length = segmentFile.length();
-                if (mSegment.getSegmentLength() == length) {
-                    onComplete(mSegment);
-                } else {
-                    String error = "Download segment " + mSegment.getNumber() + " failed, expect length: " + length + ", actual: " + segmentFile.length();
-                    FLog.e(error);
-                    onFailure(new DownloadException(error));
-                }
-            } else if (status == Task.STATUS_CANCELED) {
-                onFailure(new DownloadException("Canceled"));
-            } else if (status == Task.STATUS_PAUSED) {
-                onPause();
+    /**
+     * 从已下载长度处续传，写入channel中basePosition开始的位置
+     */
+    private void openTransfer() throws IOException {
+        long downloadedLength = mSegment.getDownloadedLength();
+        try {
+            long position = mBasePosition + downloadedLength;
+            if (mSinkBuffer != null) {
+                mSink = new FileChannelSink(mChannel, position, mFileDownloadManager.getBufferPool(), mFileDownloadManager.getDiskWriter(), mSinkBuffer);
+                mSinkBuffer = null;
+            } else {
+                mSink = new FileChannelSink(mChannel, position, mFileDownloadManager.getBufferPool(), mFileDownloadManager.getDiskWriter());
             }
-        } catch (Exception e) {
-            FLog.e("Segment " + mSegment.getNumber() + " download failed", e);
-            onFailure(e);
-        } finally {
-            mCountDownLatch.countDown();
+        } catch (IOException e) {
+            closeTransfer();
+            throw e;
+        }
+        mBuffer = new Buffer();
+        mLength = downloadedLength;
+        mPersistedLength = downloadedLength;
+        mPercent = downloadedLength * 100 / mSegment.getSegmentLength();
+        mUpdate = mSegment.isLocalSizeUpdated() ? 0 : downloadedLength;
+        //开始读取后，未读取的部分可能被拆分给其他分片，分片结尾随之缩短
+        mSegment.startRead(downloadedLength);
+    }
+
+    /**
+     * 不等待地获取写入的缓冲区，获取到后{@link #prepare()}使用它创建不等待缓冲池的Sink。
+     * 共用线程的传输在prepare之前调用，获取不到时稍后再开始
+     */
+    protected boolean tryAcquireBuffer() {
+        if (mSinkBuffer == null) {
+            mSinkBuffer = mFileDownloadManager.getBufferPool().tryAcquire();
+        }
+        return mSinkBuffer != null;
+    }
+
+    /**
+     * 没有开始传输时归还获取的缓冲区
+     */
+    protected void releaseBuffer() {
+        if (mSinkBuffer != null) {
+            mFileDownloadManager.getBufferPool().release(mSinkBuffer);
+            mSinkBuffer = null;
         }
     }
 
-    private void doDownload(DownloadRequest request, File segmentFile) throws IOException {
-        long downloadedLength = segmentFile.length();
-        long segmentLength = mSegment.getSegmentLength();
+    protected Call newCall() {
+        long downloadedLength = mSegment.getDownloadedLength();
         //FLog.i("doDownload, segment no: " + mSegment.getNumber() + ", segment length: " + segmentLength + ", downloadedLength: " + downloadedLength);
         Request.Builder builder = new Request.Builder()
                 .get()
-                .url(mSegment.getUrl())
+                .url(mRequestUrl != null ? mRequestUrl : mSegment.getUrl())
                 .addHeader("RANGE", "bytes=" + (mSegment.getOffset() + downloadedLength) + "-" + (mSegment.getOffset() + mSegment.getSegmentLength() - 1));
-        if (request.getHeaders() != null) {
-            for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+        if (mRequest.getHeaders() != null) {
+            for (Map.Entry<String, String> entry : mRequest.getHeaders().entrySet()) {
                 builder.addHeader(entry.getKey(), entry.getValue());
             }
         }
-        Call call = mOkHttpClient.newCall(builder.build());
-        Response response = call.execute();
-
-        RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
-        raf.seek(downloadedLength);
-        BufferedInputStream bis = new BufferedInputStream(response.body().byteStream());
-        byte[] buffer = new byte[4096];
-        long length = downloadedLength;
-        long percent = downloadedLength * 100 / segmentLength;
-        long update = mSegment.isLocalSizeUpdated() ? 0 : downloadedLength;
-        int read;
-        while ((read = bis.read(buffer)) != -1 && getStatus() == Task.STATUS_RUNNING) {
-            raf.write(buffer, 0, read);
-            length += read;
-            update += read;
-            int currentPercent = (int) (length * 100 / segmentLength);
-            if (currentPercent - percent >= 1) {
+        if (mIfRange != null) {
+            builder.header("If-Range", mIfRange);
+        }
+        return mOkHttpClient.newCall(builder.build());
+    }
+
+    protected void onResponse(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            response.close();
+            if (DownloadTask.isUrlExpired(response.code())) {
+                //重试时使用新的地址
+                mScheduler.onUrlExpired(mRequestUrl != null ? mRequestUrl : mSegment.getUrl(), response.code());
+            } else if (mRequestUrl != null && response.code() >= 400 && response.code() < 500) {
+                //重试时使用原地址
+                mScheduler.onResolvedUrlFailed(mRequestUrl);
+            }
+            throw new DownloadException("Download segment " + mSegment.getNumber() + " failed, code: " + response.code());
+        }
+        if (mIfRange != null && response.code() == 200) {
+            //资源已经变化，响应交给下载任务从头下载，当前分片按暂停结束
+            setStatus(Task.STATUS_PAUSED);
+            mScheduler.onResourceChanged(response);
+            return;
+        }
+        mSource = response.body().source();
+    }
+
+    @Nullable
+    protected BufferedSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * 读取最多maxBytes数据写入文件，读取时间超过maxNanos后读完当前一段返回
+     * @return 还有数据需要读取
+     */
+    protected boolean readChunk(long maxBytes, long maxNanos) throws IOException {
+        long start = System.nanoTime();
+        long chunk = 0;
+        long read;
+        long toRead;
+        while (chunk < maxBytes && System.nanoTime() - start < maxNanos) {
+            if (!mSink.isWritable()) {
+                //缓冲区都在等待写入磁盘，不等待缓冲池，稍后再读取
+                mThrottleNanos = BUFFER_WAIT_NANOS;
+                return true;
+            }
+            if (getStatus() != Task.STATUS_RUNNING
+                    || (toRead = mSegment.claimRead(mLength, FileChannelSink.READ_SIZE)) <= 0
+                    || (read = mSource.read(mBuffer, toRead)) == -1) {
+                return false;
+            }
+            mSink.write(mBuffer, read);
+            mThrottleNanos = mScheduler.onBytesRead(read);
+            chunk += read;
+            mLength += read;
+            mUpdate += read;
+            long segmentLength = mSegment.getSegmentLength();
+            int currentPercent = (int) (mLength * 100 / segmentLength);
+            if (currentPercent - mPercent >= 1) {
                 Progress progress = Progress.obtain();
                 progress.setTotal(segmentLength);
-                progress.setCurrent(length);
+                progress.setCurrent(mLength);
                 progress.setPercent(currentPercent);
-                progress.setUpdate(update);
+                progress.setUpdate(mUpdate);
                 onProgressChanged(progress);
-                percent = currentPercent;
-                update = 0;
+                mPercent = currentPercent;
+                mUpdate = 0;
 
                 if (!mSegment.isLocalSizeUpdated()) {
                     mSegment.setLocalSizeUpdated(true);
                 }
             }
+            if (mLength - mPersistedLength >= PERSIST_INTERVAL) {
+                //只记录已经写入磁盘的长度，否则断电后记录的长度可能超过文件中实际的数据
+                mSink.flush();
+                long position = mSink.getPosition();
+                mSink.force();
+                mSegment.setDownloadedLength(position - mBasePosition);
+                mSegment.setProgress(currentPercent);
+                mDao.updateDownloadSegmentProgress(mSegment);
+                mPersistedLength = mLength;
+            }
+            if (mThrottleNanos > 0) {
+                //超过限速，等待getThrottleNanos()后再继续读取
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * readChunk返回后需要等待的纳秒数
+     */
+    protected long getThrottleNanos() {
+        return mThrottleNanos;
+    }
+
+    /**
+     * 写入剩余数据并关闭，记录已经写入文件的长度
+     */
+    protected void closeTransfer() throws IOException {
+        releaseBuffer();
+        mSegment.stopRead();
+        if (mBuffer != null) {
+            mBuffer.clear();
+        }
+        try {
+            if (mSink != null) {
+                try {
+                    mSink.close();
+                } finally {
+                    //暂停、失败和完成时都会记录已下载长度，记录前先刷到磁盘
+                    mSink.force();
+                }
+            }
+        } finally {
+            if (mSink != null) {
+                mSegment.setDownloadedLength(mSink.getPosition() - mBasePosition);
+                FLog.i("doDownload, segment no: " + mSegment.getNumber() + ", segment length: " + mSegment.getSegmentLength() + ", downloaded length: " + mLength);
+            }
+            mSink = null;
+            try {
+                if (mSource != null) {
+                    mSource.close();
+                }
+            } finally {
+                mSource = null;
+                if (mSegmentRaf != null) {
+                    mSegmentRaf.close();
+                    mSegmentRaf = null;
+                }
+            }
         }
-        raf.close();
-        bis.close();
+    }
 
-        FLog.i("doDownload, segment no: " + mSegment.getNumber() + ", segment length: " + segmentLength + ", file length: " + segmentFile.length());
+    /**
+     * 传输结束后根据状态和已下载长度回调结果
+     */
+    protected void checkResult() {
+        int status = getStatus();
+        if (status == Task.STATUS_RUNNING) {
+            long length = mSegment.getDownloadedLength();
+            if (mSegment.getSegmentLength() == length) {
+                onComplete(mSegment);
+            } else {
+                String error = "Download segment " + mSegment.getNumber() + " failed, expect length: " + mSegment.getSegmentLength() + ", actual: " + length;
+                FLog.e(error);
+                onFailure(new DownloadException(error));
+            }
+        } else if (status == Task.STATUS_CANCELED) {
+            onFailure(new DownloadException("Canceled"));
+        } else if (status == Task.STATUS_PAUSED) {
+            onPause();
+        }
     }
 
     @Override
@@ -168,6 +463,7 @@ public class SegmentDownloadTask extends Task<DownloadSegment> {
         setStatus(Task.STATUS_FAILED);
         mSegment.setStatus(Segment.STATUS_FAILED);
         mDao.updateDownloadSegmentStatus(mSegment, Segment.STATUS_FAILED);
+        mDao.updateDownloadSegmentProgress(mSegment);
         super.onFailure(e);
     }
 
@@ -176,9 +472,14 @@ public class SegmentDownloadTask extends Task<DownloadSegment> {
         setStatus(Task.STATUS_PAUSED);
         mSegment.setStatus(Segment.STATUS_FAILED);
         mDao.updateDownloadSegmentStatus(mSegment, Segment.STATUS_FAILED);
+        mDao.updateDownloadSegmentProgress(mSegment);
         super.onPause();
     }
 
+    public DownloadSegment getSegment() {
+        return mSegment;
+    }
+
     @Override
     public void pause() {
         setStatus(Task.STATUS_PAUSED);
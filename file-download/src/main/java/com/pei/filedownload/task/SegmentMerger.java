@@ -0,0 +1,145 @@
+package com.pei.filedownload.task;
+
+import com.pei.filedownload.FLog;
+import com.pei.filedownload.Segment;
+import com.pei.filedownload.db.FileTransferDao;
+import com.pei.filedownload.task.model.DownloadSegment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分片文件合并，在下载过程中将连续下载完成的分片通过FileChannel.transferTo合并到目标文件，
+ * 数据由内核直接拷贝，不经过Java堆
+ */
+class SegmentMerger {
+
+    private FileTransferDao mDao;
+    private String mTaskId;
+    private List<DownloadSegment> mSegments;
+    private RandomAccessFile mTargetFile;
+    private FileChannel mTargetChannel;
+    private int mMergedIndex;
+    private long mMergedLength;
+
+    /**
+     * @param mergedLength 之前已经合并到目标文件的长度，续传时从该位置之后开始合并
+     */
+    SegmentMerger(FileTransferDao dao, String taskId, File file, List<DownloadSegment> segments, long mergedLength) throws IOException {
+        this.mDao = dao;
+        this.mTaskId = taskId;
+        this.mSegments = segments;
+        if (!file.exists()) {
+            file.getParentFile().mkdirs();
+            file.createNewFile();
+        }
+        mTargetFile = new RandomAccessFile(file, "rw");
+        mTargetChannel = mTargetFile.getChannel();
+
+        while (mMergedIndex < segments.size()) {
+            DownloadSegment segment = segments.get(mMergedIndex);
+            if (segment.getOffset() + segment.getSegmentLength() > mergedLength) break;
+            segment.setStatus(Segment.STATUS_COMPLETE);
+            segment.setDownloadedLength(segment.getSegmentLength());
+            mMergedLength = segment.getOffset() + segment.getSegmentLength();
+            mMergedIndex++;
+        }
+        //丢弃未完整合并的部分
+        if (mTargetFile.length() != mMergedLength) {
+            mTargetFile.setLength(mMergedLength);
+        }
+    }
+
+    /**
+     * 合并从头开始连续下载完成的分片
+     */
+    synchronized void mergeCompletedPrefix() throws IOException {
+        if (mTargetChannel == null) return;
+        long mergedLength = mMergedLength;
+        List<File> mergedFiles = new ArrayList<>();
+        try {
+            while (mMergedIndex < mSegments.size()) {
+                DownloadSegment segment = mSegments.get(mMergedIndex);
+                File segmentFile = segment.getSegmentFile();
+                if (segment.getStatus() != Segment.STATUS_COMPLETE || segmentFile == null || segmentFile.length() != segment.getSegmentLength()) {
+                    break;
+                }
+                transfer(segmentFile, segment.getOffset(), segment.getSegmentLength());
+                mergedFiles.add(segmentFile);
+                mMergedLength = segment.getOffset() + segment.getSegmentLength();
+                mMergedIndex++;
+            }
+        } finally {
+            if (mMergedLength != mergedLength) {
+                //合并的数据写入磁盘后才能删除分片文件和记录合并长度，否则断电后两边的数据都会丢失
+                mTargetChannel.force(false);
+                for (File file : mergedFiles) {
+                    file.delete();
+                }
+                onMergedLengthChanged(mMergedLength);
+            }
+        }
+    }
+
+    /**
+     * 合并长度变化后在锁内调用，记录的长度只会增加
+     */
+    void onMergedLengthChanged(long mergedLength) {
+        mDao.updateDownloadTaskMergedLength(mTaskId, mergedLength);
+    }
+
+    private void transfer(File segmentFile, long position, long count) throws IOException {
+        FileInputStream fis = new FileInputStream(segmentFile);
+        try {
+            FileChannel source = fis.getChannel();
+            mTargetChannel.position(position);
+            long transferred = 0;
+            while (transferred < count) {
+                long n = source.transferTo(transferred, count - transferred, mTargetChannel);
+                if (n <= 0) {
+                    throw new IOException("Merge segment file " + segmentFile + " failed, transferred: " + transferred + ", expect: " + count);
+                }
+                transferred += n;
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * 分片拆分后，新的分片插入到原分片之后，保持按偏移量排序
+     */
+    synchronized void insertSegment(DownloadSegment segment, DownloadSegment newSegment) {
+        for (int i = mMergedIndex; i < mSegments.size(); i++) {
+            if (mSegments.get(i) == segment) {
+                mSegments.add(i + 1, newSegment);
+                return;
+            }
+        }
+        throw new IllegalStateException("Segment " + segment.getNumber() + " not found");
+    }
+
+    synchronized boolean isMerged(DownloadSegment segment) {
+        return segment.getOffset() + segment.getSegmentLength() <= mMergedLength;
+    }
+
+    synchronized long getMergedLength() {
+        return mMergedLength;
+    }
+
+    synchronized void close() {
+        if (mTargetFile == null) return;
+        try {
+            mTargetFile.close();
+        } catch (IOException e) {
+            FLog.w("Close merge target failed", e);
+        }
+        mTargetFile = null;
+        mTargetChannel = null;
+    }
+}
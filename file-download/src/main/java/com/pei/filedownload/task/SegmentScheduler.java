@@ -0,0 +1,274 @@
+package com.pei.filedownload.task;
+
+import androidx.annotation.Nullable;
+
+import com.pei.filedownload.ConnectionBudget;
+import com.pei.filedownload.FLog;
+import com.pei.filedownload.Segment;
+import com.pei.filedownload.Task;
+import com.pei.filedownload.task.model.DownloadSegment;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Response;
+
+/**
+ * 分片调度，任意分片结束后立即开始下一个等待中的分片，始终保持parallelNum个分片在下载。
+ * 失败的分片间隔retryInterval后由定时器放回队列末尾重试，等待期间不占用线程。
+ * 没有等待中的分片时，拆分正在下载的分片剩余部分，由空闲的位置下载后一半。
+ * 每个分片开始前需要从ConnectionBudget申请连接，申请不到时等待其他连接释放。
+ * 所有状态变化都由回调推动，结束时回调{@link DownloadTask#onSegmentsFinished(boolean)}
+ */
+class SegmentScheduler implements ConnectionBudget.Client {
+
+    private DownloadTask mDownloadTask;
+    private ConnectionBudget mConnectionBudget;
+    private String mHost;
+    private ParallelismController mParallelismController;
+    private int mParallelNum;
+    private int mRetryTimes;
+    private long mRetryInterval;
+    private Deque<DownloadSegment> mPendingSegments = new ArrayDeque<>();
+    private Map<Integer, Integer> mRetryCounts = new HashMap<>();
+    private List<SegmentDownloadTask> mRunningTasks = Collections.synchronizedList(new ArrayList<SegmentDownloadTask>());
+    private int mRunningNum;
+    private int mDelayedNum; //等待重试的分片数
+    private boolean mFailed;
+    private boolean mFinished;
+
+    SegmentScheduler(DownloadTask downloadTask, int parallelNum, int retryTimes, long retryInterval) {
+        this(downloadTask, parallelNum, retryTimes, retryInterval, null);
+    }
+
+    /**
+     * @param parallelismController 不为空时并发数由它根据下载速度调整
+     */
+    SegmentScheduler(DownloadTask downloadTask, int parallelNum, int retryTimes, long retryInterval, @Nullable ParallelismController parallelismController) {
+        this.mDownloadTask = downloadTask;
+        this.mConnectionBudget = downloadTask.getConnectionBudget();
+        this.mHost = downloadTask.getHost();
+        this.mParallelismController = parallelismController;
+        this.mParallelNum = parallelismController != null ? parallelismController.getParallelNum() : parallelNum;
+        this.mRetryTimes = retryTimes;
+        this.mRetryInterval = retryInterval;
+    }
+
+    void start(List<DownloadSegment> segments) {
+        synchronized (this) {
+            mPendingSegments.addAll(segments);
+        }
+        dispatch();
+    }
+
+    /**
+     * 分片任务结束时回调，在分片任务的线程中执行
+     */
+    void onSegmentFinished(SegmentDownloadTask task) {
+        synchronized (this) {
+            mRunningTasks.remove(task);
+            mRunningNum--;
+            mConnectionBudget.release(this);
+            DownloadSegment segment = task.getSegment();
+            if (segment.getStatus() != Segment.STATUS_COMPLETE && task.getStatus() == Task.STATUS_FAILED) {
+                Integer count = mRetryCounts.get(segment.getNumber());
+                int retryCount = count == null ? 0 : count;
+                if (retryCount < mRetryTimes) {
+                    FLog.i("retry segment: " + segment.getNumber() + ", retryNum: " + retryCount);
+                    mRetryCounts.put(segment.getNumber(), retryCount + 1);
+                    scheduleRetry(segment);
+                } else {
+                    mFailed = true;
+                }
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * 续传验证失败，由下载任务暂停所有分片后重新开始
+     */
+    void onResourceChanged(Response response) {
+        mDownloadTask.onResourceChanged(response);
+    }
+
+    void onResolvedUrlFailed(String resolvedUrl) {
+        mDownloadTask.onResolvedUrlFailed(resolvedUrl);
+    }
+
+    /**
+     * 地址可能已经过期，由下载任务刷新地址，分片重试时使用新的地址
+     */
+    void onUrlExpired(String url, int code) {
+        mDownloadTask.onUrlExpired(url, code);
+    }
+
+    /**
+     * 分片读取数据后调用，用于统计下载速度和限速
+     * @return 限速需要等待的纳秒数
+     */
+    long onBytesRead(long bytes) {
+        if (mParallelismController != null) {
+            int parallelNum = mParallelismController.onBytesRead(bytes);
+            if (parallelNum > 0) {
+                setParallelNum(parallelNum);
+            }
+        }
+        return mDownloadTask.reserveBandwidth(bytes);
+    }
+
+    /**
+     * 调整并发数，增加时立即开始新的分片；减少时不中断正在下载的分片，结束后不再补充
+     */
+    void setParallelNum(int parallelNum) {
+        synchronized (this) {
+            mParallelNum = parallelNum;
+        }
+        dispatch();
+    }
+
+    @Override
+    public String getHost() {
+        return mHost;
+    }
+
+    @Override
+    public int getPriority() {
+        return mDownloadTask.getPriority();
+    }
+
+    @Override
+    public long getDeadline() {
+        return mDownloadTask.getDeadline();
+    }
+
+    @Override
+    public void onConnectionAvailable() {
+        dispatch();
+    }
+
+    private void scheduleRetry(final DownloadSegment segment) {
+        mDelayedNum++;
+        mDownloadTask.getTaskDispatcher().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SegmentScheduler.this) {
+                    mDelayedNum--;
+                    mPendingSegments.offerLast(segment);
+                }
+                dispatch();
+            }
+        }, mRetryInterval);
+    }
+
+    /**
+     * 开始可以开始的分片。没有正在下载的分片并且不需要再开始新的分片时结束，
+     * 暂停或取消时不等待重试的分片
+     */
+    private void dispatch() {
+        List<SegmentDownloadTask> tasks;
+        boolean finished = false;
+        final boolean result;
+        synchronized (this) {
+            tasks = claimSegments();
+            boolean idle = mPendingSegments.isEmpty() && mDelayedNum == 0;
+            if (!mFinished && tasks.isEmpty() && mRunningNum == 0
+                    && (mFailed || idle || mDownloadTask.getStatus() != Task.STATUS_RUNNING)) {
+                mConnectionBudget.cancelWaiting(this);
+                mFinished = true;
+                finished = true;
+            }
+            result = !mFailed && idle;
+        }
+        submit(tasks);
+        if (finished) {
+            mDownloadTask.getTaskDispatcher().execute(new Runnable() {
+                @Override
+                public void run() {
+                    mDownloadTask.onSegmentsFinished(result);
+                }
+            });
+        }
+    }
+
+    private List<SegmentDownloadTask> claimSegments() {
+        List<SegmentDownloadTask> tasks = new ArrayList<>();
+        if (mFinished || mFailed || mDownloadTask.getStatus() != Task.STATUS_RUNNING) {
+            //不会再申请连接，不能继续占用优先分配的位置
+            mConnectionBudget.cancelWaiting(this);
+            return tasks;
+        }
+        while (mRunningNum < mParallelNum) {
+            DownloadSegment segment = mPendingSegments.peekFirst();
+            if (segment == null && mDownloadTask.isSplitEnabled()) {
+                //没有等待中的分片时，拆分剩余最多的分片，空闲的位置不再等待最慢的分片
+                DownloadSegment splittable = findSplittableSegment();
+                segment = splittable == null ? null : mDownloadTask.splitSegment(splittable);
+                if (segment != null) {
+                    mPendingSegments.offerFirst(segment);
+                }
+            }
+            if (segment == null) break;
+            if (!mConnectionBudget.tryAcquire(this)) {
+                //等待其他连接释放后回调onConnectionAvailable
+                return tasks;
+            }
+            mPendingSegments.pollFirst();
+            SegmentDownloadTask task = mDownloadTask.createSegmentTask(segment, this);
+            mRunningTasks.add(task);
+            mRunningNum++;
+            tasks.add(task);
+        }
+        mConnectionBudget.cancelWaiting(this);
+        return tasks;
+    }
+
+    private DownloadSegment findSplittableSegment() {
+        DownloadSegment result = null;
+        long maxLength = 0;
+        for (SegmentDownloadTask task : runningTasks()) {
+            DownloadSegment segment = task.getSegment();
+            long length = segment.getSplittableLength();
+            if (length > maxLength) {
+                maxLength = length;
+                result = segment;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 在锁外提交，避免和TaskDispatcher的锁互相等待
+     */
+    private void submit(List<SegmentDownloadTask> tasks) {
+        for (int i = 0; i < tasks.size(); i++) {
+            mDownloadTask.submitSegmentTask(tasks.get(i));
+        }
+    }
+
+    void pause() {
+        for (SegmentDownloadTask task : runningTasks()) {
+            task.pause();
+        }
+        //可能没有正在下载的分片，都在等待连接
+        dispatch();
+    }
+
+    void cancel() {
+        for (SegmentDownloadTask task : runningTasks()) {
+            task.cancel();
+        }
+        dispatch();
+    }
+
+    private List<SegmentDownloadTask> runningTasks() {
+        synchronized (mRunningTasks) {
+            return new ArrayList<>(mRunningTasks);
+        }
+    }
+}
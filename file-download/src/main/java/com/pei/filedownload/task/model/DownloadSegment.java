@@ -19,6 +19,8 @@ public class DownloadSegment extends Segment {
     private File segmentFile;
     private int progress;
     private boolean localSizeUpdated;
+    private long downloadedLength;
+    private long claimedLength = -1;
 
     public String getTaskId() {
         return taskId;
@@ -79,7 +81,7 @@ public class DownloadSegment extends Segment {
 
     @Override
     public int hashCode() {
-        return Objects.hash(this.getTaskId(), this.getUrl(), this.getNumber());
+        return Objects.hash(this.getTaskId(), this.getNumber());
     }
 
     public boolean isLocalSizeUpdated() {
@@ -90,13 +92,88 @@ public class DownloadSegment extends Segment {
         this.localSizeUpdated = localSizeUpdated;
     }
 
+    /**
+     * 已下载的长度，直接写入目标文件时用于断点续传
+     */
+    public long getDownloadedLength() {
+        return downloadedLength;
+    }
+
+    public void setDownloadedLength(long downloadedLength) {
+        this.downloadedLength = downloadedLength;
+    }
+
+    @Override
+    public synchronized long getSegmentLength() {
+        return super.getSegmentLength();
+    }
+
+    @Override
+    public synchronized void setSegmentLength(long segmentLength) {
+        super.setSegmentLength(segmentLength);
+    }
+
+    /**
+     * 开始读取数据，之后剩余未读取的部分可以被拆分
+     */
+    public synchronized void startRead(long downloadedLength) {
+        claimedLength = downloadedLength;
+    }
+
+    /**
+     * 结束读取，不再允许拆分
+     */
+    public synchronized void stopRead() {
+        claimedLength = -1;
+    }
+
+    /**
+     * 读取数据前调用，占用接下来要读取的范围，被占用的部分不会被拆分
+     * @param downloadedLength 已读取的长度
+     * @return 本次可以读取的长度，分片结尾被拆分后可能为0
+     */
+    public synchronized long claimRead(long downloadedLength, long maxLength) {
+        long length = Math.max(0, Math.min(maxLength, getSegmentLength() - downloadedLength));
+        claimedLength = downloadedLength + length;
+        return length;
+    }
+
+    /**
+     * 可以拆分的剩余长度，未开始读取时为0
+     */
+    public synchronized long getSplittableLength() {
+        return claimedLength < 0 ? 0 : getSegmentLength() - claimedLength;
+    }
+
+    /**
+     * 将未读取部分的后一半拆分成新的分片，当前分片的结尾同时缩短
+     * @param minLength 拆分后每部分的最小长度
+     * @return 新的分片，分片号由调用方设置；剩余部分不够拆分时返回null
+     */
+    @Nullable
+    public synchronized DownloadSegment split(long minLength) {
+        long remaining = getSplittableLength();
+        if (remaining < minLength * 2) return null;
+        long length = getSegmentLength() - remaining / 2;
+        DownloadSegment segment = new DownloadSegment();
+        segment.setTaskId(taskId);
+        segment.setFileName(fileName);
+        segment.setUrl(url);
+        segment.setTarget(target);
+        segment.setTargetFile(targetFile);
+        segment.setTotalLength(getTotalLength());
+        segment.setOffset(getOffset() + length);
+        segment.setSegmentLength(getSegmentLength() - length);
+        setSegmentLength(length);
+        return segment;
+    }
+
     @Override
     public boolean equals(@Nullable Object obj) {
         if (!(obj instanceof DownloadSegment)) return false;
         DownloadSegment other = (DownloadSegment) obj;
         return Objects.equals(this.getTaskId(), other.getTaskId()) &&
                 Objects.equals(this.getNumber(), other.getNumber()) &&
-                Objects.equals(this.getUrl(), other.getUrl()) &&
                 Objects.equals(this.getOffset(), other.getOffset()) &&
                 Objects.equals(this.getSegmentLength(), other.getSegmentLength());
     }
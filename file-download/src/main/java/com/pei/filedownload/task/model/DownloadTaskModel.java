@@ -24,11 +24,26 @@ public class DownloadTaskModel {
     private int status;
     private int progress;
     private Map<String, String> headers;
+    private boolean directWrite;
+    private long mergedLength;
 
     public DownloadTaskModel() {
 
     }
 
+    /**
+     * 还没有获取资源信息，批量开始时预先记录的任务
+     */
+    public DownloadTaskModel(String taskId, DownloadRequest request) {
+        this.taskId = taskId;
+        this.fileName = request.getFileName();
+        this.url = request.getUrl();
+        this.target = request.getTarget();
+        this.contentLength = -1;
+        this.headers = request.getHeaders();
+        this.directWrite = request.isDirectWrite();
+    }
+
     public DownloadTaskModel(String taskId, DownloadRequest request, ResourceInfo info) {
         this.taskId = taskId;
         this.fileName = request.getFileName();
@@ -40,6 +55,7 @@ public class DownloadTaskModel {
         this.eTag = info.getETag();
         this.lastModified = info.getLastModified();
         this.headers = request.getHeaders();
+        this.directWrite = request.isDirectWrite();
     }
 
     public String getTaskId() {
@@ -137,4 +153,23 @@ public class DownloadTaskModel {
     public void setHeaders(Map<String, String> headers) {
         this.headers = headers;
     }
+
+    public boolean isDirectWrite() {
+        return directWrite;
+    }
+
+    public void setDirectWrite(boolean directWrite) {
+        this.directWrite = directWrite;
+    }
+
+    /**
+     * 分片文件模式下，已经合并到目标文件的长度
+     */
+    public long getMergedLength() {
+        return mergedLength;
+    }
+
+    public void setMergedLength(long mergedLength) {
+        this.mergedLength = mergedLength;
+    }
 }
@@ -0,0 +1,78 @@
+package com.pei.filedownload.task.model;
+
+import androidx.annotation.Keep;
+
+/**
+ * 域名的服务器能力，新的下载任务根据它选择初始的并发数
+ */
+@Keep
+public class HostCapability {
+
+    private String host;
+    private boolean acceptRanges;
+    private boolean http2;
+    private int maxConnections; //观察到下载速度最快时的并发数，0表示未知
+    private long updateTime;
+
+    public HostCapability() {
+
+    }
+
+    public HostCapability(HostCapability capability) {
+        this.host = capability.host;
+        this.acceptRanges = capability.acceptRanges;
+        this.http2 = capability.http2;
+        this.maxConnections = capability.maxConnections;
+        this.updateTime = capability.updateTime;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public boolean isAcceptRanges() {
+        return acceptRanges;
+    }
+
+    public void setAcceptRanges(boolean acceptRanges) {
+        this.acceptRanges = acceptRanges;
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public long getUpdateTime() {
+        return updateTime;
+    }
+
+    public void setUpdateTime(long updateTime) {
+        this.updateTime = updateTime;
+    }
+
+    @Override
+    public String toString() {
+        return "HostCapability{" +
+                "host='" + host + '\'' +
+                ", acceptRanges=" + acceptRanges +
+                ", http2=" + http2 +
+                ", maxConnections=" + maxConnections +
+                '}';
+    }
+}
@@ -11,6 +11,7 @@ public class ResourceInfo {
     private String acceptRanges;
     private String eTag;
     private String lastModified;
+    private long probeTime; //获取信息的时间，毫秒时间戳
 
     public String getUrl() {
         return url;
@@ -60,6 +61,14 @@ public class ResourceInfo {
         this.lastModified = lastModified;
     }
 
+    public long getProbeTime() {
+        return probeTime;
+    }
+
+    public void setProbeTime(long probeTime) {
+        this.probeTime = probeTime;
+    }
+
     public boolean acceptRanges() {
         return "bytes".equals(acceptRanges);
     }
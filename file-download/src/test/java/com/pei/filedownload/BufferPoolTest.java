@@ -0,0 +1,93 @@
+package com.pei.filedownload;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    private static final int SIZE = BufferPool.MIN_BUFFER_SIZE;
+
+    @Test
+    public void sizesAreClamped() {
+        BufferPool pool = new BufferPool(1, 1, false);
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.getBufferSize());
+        //至少可以分配一个缓冲区
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.getMaxPoolBytes());
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, new BufferPool(Integer.MAX_VALUE, 0, false).getBufferSize());
+    }
+
+    @Test
+    public void releasedBufferIsReusedCleared() throws Exception {
+        BufferPool pool = new BufferPool(SIZE, SIZE, true);
+        ByteBuffer buffer = pool.acquire();
+        assertTrue(buffer.isDirect());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+
+        ByteBuffer reused = pool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(SIZE, reused.remaining());
+        assertEquals(SIZE, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void foreignBufferIsNotPooled() throws Exception {
+        BufferPool pool = new BufferPool(SIZE, 2 * SIZE, false);
+        pool.release(ByteBuffer.allocate(SIZE * 2));
+        pool.release(null);
+        ByteBuffer buffer = pool.acquire();
+        assertEquals(SIZE, buffer.capacity());
+        assertEquals(SIZE, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void acquireWaitsWhenPoolIsExhausted() throws Exception {
+        final BufferPool pool = new BufferPool(SIZE, 2 * SIZE, false);
+        ByteBuffer first = pool.acquire();
+        pool.acquire();
+        assertEquals(2 * SIZE, pool.getAllocatedBytes());
+
+        final AtomicReference<ByteBuffer> acquired = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquired.set(pool.acquire());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                latch.countDown();
+            }
+        });
+        thread.start();
+        assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+
+        pool.release(first);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertSame(first, acquired.get());
+        assertEquals(2 * SIZE, pool.getAllocatedBytes());
+        assertTrue(pool.getWaitNanos() > 0);
+    }
+
+    @Test
+    public void tryAcquireReturnsNullWhenPoolIsExhausted() {
+        BufferPool pool = new BufferPool(SIZE, SIZE, false);
+        ByteBuffer buffer = pool.tryAcquire();
+        assertNotNull(buffer);
+        buffer.put((byte) 1);
+        assertNull(pool.tryAcquire());
+
+        pool.release(buffer);
+        ByteBuffer reused = pool.tryAcquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(0, pool.getWaitNanos());
+    }
+}
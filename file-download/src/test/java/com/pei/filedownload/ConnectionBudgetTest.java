@@ -0,0 +1,150 @@
+package com.pei.filedownload;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ConnectionBudgetTest {
+
+    private ConnectionBudget mBudget;
+
+    @Before
+    public void setUp() {
+        //在调用线程中直接通知
+        mBudget = new ConnectionBudget(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @Test
+    public void limitsTotalConnections() {
+        mBudget.setMaxConnections(2);
+        TestClient client = new TestClient("a.com", 0, 0);
+        assertTrue(mBudget.tryAcquire(client));
+        assertTrue(mBudget.tryAcquire(client));
+        assertFalse(mBudget.tryAcquire(client));
+        assertEquals(2, mBudget.getConnections());
+
+        mBudget.release(client);
+        assertEquals(1, client.notifyCount);
+        assertTrue(mBudget.tryAcquire(client));
+    }
+
+    @Test
+    public void limitsConnectionsPerHost() {
+        mBudget.setMaxConnections(4);
+        mBudget.setMaxConnectionsPerHost(1);
+        TestClient a1 = new TestClient("a.com", 0, 0);
+        TestClient a2 = new TestClient("a.com", 0, 0);
+        TestClient b = new TestClient("b.com", 0, 0);
+        assertTrue(mBudget.tryAcquire(a1));
+        assertFalse(mBudget.tryAcquire(a2));
+        //a.com的等待者没有可用连接，不影响其他域名
+        assertTrue(mBudget.tryAcquire(b));
+    }
+
+    @Test
+    public void higherPriorityWaiterIsPreferred() {
+        mBudget.setMaxConnections(1);
+        TestClient holder = new TestClient("a.com", 0, 0);
+        TestClient urgent = new TestClient("a.com", 5, 0);
+        TestClient normal = new TestClient("a.com", 0, 0);
+        assertTrue(mBudget.tryAcquire(holder));
+        assertFalse(mBudget.tryAcquire(urgent));
+
+        mBudget.release(holder);
+        assertFalse(mBudget.tryAcquire(normal));
+        assertTrue(mBudget.tryAcquire(urgent));
+    }
+
+    @Test
+    public void earlierDeadlineIsPreferredOverPriority() {
+        mBudget.setMaxConnections(1);
+        TestClient holder = new TestClient("a.com", 0, 0);
+        TestClient deadline = new TestClient("a.com", 0, 1000);
+        TestClient priority = new TestClient("a.com", 10, 0);
+        assertTrue(mBudget.tryAcquire(holder));
+        assertFalse(mBudget.tryAcquire(deadline));
+
+        mBudget.release(holder);
+        assertFalse(mBudget.tryAcquire(priority));
+        assertTrue(mBudget.tryAcquire(deadline));
+    }
+
+    @Test
+    public void refusedClientIsNotNotifiedAgain() {
+        mBudget.setMaxConnections(1);
+        TestClient holder = new TestClient("a.com", 0, 0);
+        TestClient urgent = new TestClient("a.com", 5, 0);
+        TestClient normal = new TestClient("a.com", 0, 0);
+        assertTrue(mBudget.tryAcquire(holder));
+        assertFalse(mBudget.tryAcquire(urgent));
+        mBudget.release(holder);
+        assertEquals(1, urgent.notifyCount);
+
+        //被拒绝时只通知优先的等待者，不通知自己，否则会反复申请
+        assertFalse(mBudget.tryAcquire(normal));
+        assertEquals(0, normal.notifyCount);
+        assertEquals(2, urgent.notifyCount);
+    }
+
+    @Test
+    public void cancelWaitingGivesUpPreference() {
+        mBudget.setMaxConnections(1);
+        TestClient holder = new TestClient("a.com", 0, 0);
+        TestClient urgent = new TestClient("a.com", 5, 0);
+        TestClient normal = new TestClient("a.com", 0, 0);
+        assertTrue(mBudget.tryAcquire(holder));
+        assertFalse(mBudget.tryAcquire(urgent));
+        mBudget.release(holder);
+
+        mBudget.cancelWaiting(urgent);
+        assertTrue(mBudget.tryAcquire(normal));
+    }
+
+    @Test
+    public void releaseWithoutAcquireIsIgnored() {
+        TestClient client = new TestClient("a.com", 0, 0);
+        mBudget.release(client);
+        assertEquals(0, mBudget.getConnections());
+    }
+
+    private static class TestClient implements ConnectionBudget.Client {
+        final String host;
+        final int priority;
+        final long deadline;
+        int notifyCount;
+
+        TestClient(String host, int priority, long deadline) {
+            this.host = host;
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public String getHost() {
+            return host;
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public long getDeadline() {
+            return deadline;
+        }
+
+        @Override
+        public void onConnectionAvailable() {
+            notifyCount++;
+        }
+    }
+}
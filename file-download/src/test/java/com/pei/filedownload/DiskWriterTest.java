@@ -0,0 +1,218 @@
+package com.pei.filedownload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DiskWriterTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private TestFileChannel mChannel;
+    private DiskWriter mDiskWriter;
+
+    @Before
+    public void setUp() throws IOException {
+        FLog.showLog(false);
+        mChannel = new TestFileChannel(mFolder.newFile());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        CountDownLatch latch = mChannel.blockWrites;
+        if (latch != null) {
+            latch.countDown();
+        }
+        if (mDiskWriter != null) {
+            mDiskWriter.shutdown();
+        }
+        mChannel.close();
+    }
+
+    private static ByteBuffer newBuffer(int length, int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void writerWritesInSubmitOrder() throws Exception {
+        mDiskWriter = new DiskWriter(2, 16);
+        int writer = mDiskWriter.assignWriter();
+        RecordingCallback callback = new RecordingCallback(10);
+        for (int i = 0; i < 10; i++) {
+            mDiskWriter.submit(writer, mChannel, i * 100, newBuffer(100, i), callback);
+        }
+        assertTrue(callback.await());
+
+        assertTrue(callback.failures.isEmpty());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i * 100L, (long) callback.positions.get(i));
+        }
+        byte[] data = mChannel.readAll();
+        assertEquals(1000, data.length);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(i / 100, data[i]);
+        }
+        assertTrue(mDiskWriter.getWriteNanos() > 0);
+    }
+
+    @Test
+    public void failedWriteIsReportedAndWriterContinues() throws Exception {
+        mDiskWriter = new DiskWriter(1, 16);
+        mChannel.failWrites.set(1);
+        RecordingCallback callback = new RecordingCallback(2);
+        mDiskWriter.submit(0, mChannel, 0, newBuffer(100, 1), callback);
+        mDiskWriter.submit(0, mChannel, 100, newBuffer(100, 2), callback);
+        assertTrue(callback.await());
+
+        assertEquals(1, callback.failures.size());
+        assertEquals(Collections.singletonList(100L), callback.positions);
+    }
+
+    @Test
+    public void fullQueueBlocksSubmitter() throws Exception {
+        mDiskWriter = new DiskWriter(1, 1);
+        CountDownLatch blockWrites = new CountDownLatch(1);
+        mChannel.blockWrites = blockWrites;
+        final RecordingCallback callback = new RecordingCallback(3);
+        mDiskWriter.submit(0, mChannel, 0, newBuffer(100, 0), callback);
+        //等待写入线程取走第一个请求，第二个请求占满队列
+        while (mChannel.writeCount.get() == 0) {
+            Thread.sleep(1);
+        }
+        mDiskWriter.submit(0, mChannel, 100, newBuffer(100, 1), callback);
+
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDiskWriter.submit(0, mChannel, 200, newBuffer(100, 2), callback);
+                    submitted.countDown();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, mDiskWriter.getQueueDepth());
+
+        blockWrites.countDown();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        assertTrue(callback.await());
+        assertTrue(mDiskWriter.getBackpressureNanos() > 0);
+        assertEquals(300, mChannel.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void submitAfterShutdownFails() throws IOException {
+        mDiskWriter = new DiskWriter(1, 4);
+        mDiskWriter.shutdown();
+        mDiskWriter.submit(0, mChannel, 0, newBuffer(100, 0), new RecordingCallback(1));
+    }
+
+    @Test
+    public void shutdownFailsQueuedRequests() throws Exception {
+        mDiskWriter = new DiskWriter(1, 4);
+        mChannel.blockWrites = new CountDownLatch(1);
+        RecordingCallback callback = new RecordingCallback(3);
+        for (int i = 0; i < 3; i++) {
+            mDiskWriter.submit(0, mChannel, i * 100, newBuffer(100, i), callback);
+        }
+        mDiskWriter.shutdown();
+
+        //正在写入的请求被中断，队列中的请求直接失败
+        assertTrue(callback.await());
+        assertEquals(3, callback.failures.size());
+        assertTrue(callback.positions.isEmpty());
+    }
+
+    @Test
+    public void everyRequestSubmittedDuringShutdownGetsAnOutcome() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final DiskWriter diskWriter = new DiskWriter(2, 2);
+            final int threads = 4;
+            final int requests = 50;
+            final AtomicInteger rejected = new AtomicInteger();
+            final RecordingCallback callback = new RecordingCallback(0);
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                final int writer = diskWriter.assignWriter();
+                final int base = t * requests;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < requests; i++) {
+                            try {
+                                diskWriter.submit(writer, mChannel, (base + i) * 10L, newBuffer(10, i), callback);
+                            } catch (IOException e) {
+                                rejected.incrementAndGet();
+                            }
+                        }
+                        done.countDown();
+                    }
+                }).start();
+            }
+            Thread.sleep(1);
+            diskWriter.shutdown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            //提交失败的请求抛出异常，提交成功的请求都会回调，不会有请求一直没有结果
+            int total = threads * requests;
+            long deadline = System.currentTimeMillis() + 10000;
+            while (callback.count() + rejected.get() < total && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(total, callback.count() + rejected.get());
+        }
+    }
+
+    private static class RecordingCallback implements DiskWriter.Callback {
+        final List<Long> positions = Collections.synchronizedList(new ArrayList<Long>());
+        final List<IOException> failures = Collections.synchronizedList(new ArrayList<IOException>());
+        final CountDownLatch latch;
+
+        RecordingCallback(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onWriteComplete(ByteBuffer buffer, long position, int length) {
+            positions.add(position);
+            latch.countDown();
+        }
+
+        @Override
+        public void onWriteFailed(ByteBuffer buffer, IOException e) {
+            failures.add(e);
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+
+        int count() {
+            return positions.size() + failures.size();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.pei.filedownload;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    @Test
+    public void unlimitedNeverWaits() {
+        RateLimiter limiter = new RateLimiter(0);
+        assertTrue(limiter.isUnlimited());
+        assertEquals(0, limiter.reserve(100 * 1024 * 1024));
+    }
+
+    @Test
+    public void burstWithinCapacityDoesNotWait() {
+        //容量为0.25秒的令牌数
+        RateLimiter limiter = new RateLimiter(1024 * 1024);
+        assertEquals(0, limiter.reserve(200 * 1024));
+    }
+
+    @Test
+    public void overdraftWaitsForTokens() {
+        RateLimiter limiter = new RateLimiter(1024 * 1024);
+        long waitNanos = limiter.reserve(256 * 1024 + 1024 * 1024);
+        //透支1M，按1M/s大约需要等待1秒
+        assertTrue(waitNanos > 900 * 1000 * 1000L);
+        assertTrue(waitNanos <= 1000 * 1000 * 1000L);
+    }
+
+    @Test
+    public void minimumBurstIs64K() {
+        RateLimiter limiter = new RateLimiter(1024);
+        assertEquals(0, limiter.reserve(64 * 1024));
+        assertTrue(limiter.reserve(1024) > 0);
+    }
+
+    @Test
+    public void setRateTakesEffectImmediately() {
+        RateLimiter limiter = new RateLimiter(1024 * 1024);
+        limiter.setRate(0);
+        assertTrue(limiter.isUnlimited());
+        assertEquals(0, limiter.reserve(10 * 1024 * 1024));
+
+        limiter.setRate(64 * 1024);
+        assertEquals(64 * 1024, limiter.getRate());
+        //令牌不超过新的容量
+        assertTrue(limiter.reserve(128 * 1024) > 0);
+    }
+}
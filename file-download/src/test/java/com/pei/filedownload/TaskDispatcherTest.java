@@ -0,0 +1,115 @@
+package com.pei.filedownload;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TaskDispatcherTest {
+
+    private TaskDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        FLog.showLog(false);
+        mDispatcher = new TaskDispatcher();
+        mDispatcher.setMaxRunningTaskNum(1);
+    }
+
+    @Test
+    public void waitsForFreeSlot() {
+        TestTask first = new TestTask("first", 0);
+        TestTask second = new TestTask("second", 10);
+        mDispatcher.submit(first, false);
+        mDispatcher.submit(second, false);
+
+        //没有开启抢占
+        assertEquals(0, first.preemptCount.get());
+        assertTrue(mDispatcher.RunningTasks().contains(first));
+        assertTrue(mDispatcher.readyTasks().contains(second));
+        assertSame(second, mDispatcher.findTask("second"));
+
+        mDispatcher.finishTask(first);
+        assertTrue(mDispatcher.RunningTasks().contains(second));
+        assertNull(mDispatcher.findTask("first"));
+    }
+
+    @Test
+    public void finishingWaitingTaskRemovesItFromQueue() {
+        TestTask first = new TestTask("first", 0);
+        TestTask second = new TestTask("second", 0);
+        mDispatcher.submit(first, false);
+        mDispatcher.submit(second, false);
+
+        mDispatcher.finishTask(second);
+        assertFalse(mDispatcher.readyTasks().contains(second));
+        assertNull(mDispatcher.findTask("second"));
+        assertTrue(mDispatcher.RunningTasks().contains(first));
+    }
+
+    @Test
+    public void higherPriorityPreemptsAndVictimIsRequeued() {
+        mDispatcher.setPreemptive(true);
+        TestTask low = new TestTask("low", 0);
+        TestTask high = new TestTask("high", 5);
+        mDispatcher.submit(low, false);
+        mDispatcher.submit(high, false);
+
+        assertEquals(1, low.preemptCount.get());
+        assertEquals(1, mDispatcher.RunningTasks().size());
+        assertTrue(mDispatcher.RunningTasks().contains(high));
+
+        //被抢占的任务暂停完成后重新排队
+        mDispatcher.requeue(low);
+        assertTrue(mDispatcher.readyTasks().contains(low));
+        mDispatcher.finishTask(high);
+        assertTrue(mDispatcher.RunningTasks().contains(low));
+    }
+
+    @Test
+    public void agedEqualPriorityTaskDoesNotPreempt() throws InterruptedException {
+        mDispatcher.setPreemptive(true);
+        mDispatcher.setPriorityAgingInterval(10);
+        TestTask running = new TestTask("running", 1);
+        TestTask waiting = new TestTask("waiting", 1);
+        mDispatcher.submit(running, false);
+        mDispatcher.submit(waiting, false);
+        Thread.sleep(60);
+        mDispatcher.promoteAndExecute();
+
+        assertEquals(0, running.preemptCount.get());
+        assertTrue(mDispatcher.RunningTasks().contains(running));
+        assertTrue(mDispatcher.readyTasks().contains(waiting));
+    }
+
+    @Test
+    public void failedPreemptKeepsRunningSlot() {
+        mDispatcher.setPreemptive(true);
+        TestTask low = new TestTask("low", 0);
+        low.preemptResult = false;
+        TestTask high = new TestTask("high", 5);
+        mDispatcher.submit(low, false);
+        mDispatcher.submit(high, false);
+
+        assertEquals(1, low.preemptCount.get());
+        assertEquals(1, mDispatcher.RunningTasks().size());
+        assertTrue(mDispatcher.RunningTasks().contains(low));
+        assertTrue(mDispatcher.readyTasks().contains(high));
+
+        mDispatcher.finishTask(low);
+        assertTrue(mDispatcher.RunningTasks().contains(high));
+    }
+
+    @Test
+    public void notPreemptibleTaskIsKept() {
+        mDispatcher.setPreemptive(true);
+        TestTask low = new TestTask("low", 0);
+        low.preemptible = false;
+        TestTask high = new TestTask("high", 5);
+        mDispatcher.submit(low, false);
+        mDispatcher.submit(high, false);
+
+        assertEquals(0, low.preemptCount.get());
+        assertTrue(mDispatcher.RunningTasks().contains(low));
+    }
+}
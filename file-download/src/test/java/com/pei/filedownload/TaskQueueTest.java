@@ -0,0 +1,102 @@
+package com.pei.filedownload;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TaskQueueTest {
+
+    @Test
+    public void pollsByPriorityThenFifo() {
+        TaskQueue queue = new TaskQueue();
+        TestTask low = new TestTask("low", 0);
+        TestTask high1 = new TestTask("high1", 5);
+        TestTask high2 = new TestTask("high2", 5);
+        queue.offer(low);
+        queue.offer(high1);
+        queue.offer(high2);
+
+        assertSame(high1, queue.poll());
+        assertSame(high2, queue.poll());
+        assertSame(low, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void deadlineTasksGoFirstEarliestDeadlineWins() {
+        TaskQueue queue = new TaskQueue();
+        TestTask noDeadline = new TestTask("none", 10);
+        TestTask late = new TestTask("late", 0, 2000);
+        TestTask early = new TestTask("early", 0, 1000);
+        queue.offer(noDeadline);
+        queue.offer(late);
+        queue.offer(early);
+
+        assertSame(early, queue.poll());
+        assertSame(late, queue.poll());
+        assertSame(noDeadline, queue.poll());
+    }
+
+    @Test
+    public void removeKeepsHeapOrder() {
+        TaskQueue queue = new TaskQueue();
+        TestTask[] tasks = new TestTask[20];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new TestTask("task" + i, i % 7);
+            queue.offer(tasks[i]);
+        }
+        assertFalse(queue.offer(tasks[0]));
+        assertTrue(queue.remove(tasks[6]));
+        assertTrue(queue.remove(tasks[13]));
+        assertFalse(queue.remove(tasks[13]));
+        assertFalse(queue.contains(tasks[6]));
+        assertEquals(18, queue.size());
+
+        int lastPriority = Integer.MAX_VALUE;
+        while (!queue.isEmpty()) {
+            Task<?> task = queue.poll();
+            assertTrue(task.getPriority() <= lastPriority);
+            lastPriority = task.getPriority();
+        }
+    }
+
+    @Test
+    public void agingLetsOldLowPriorityTaskGoFirst() throws InterruptedException {
+        TaskQueue queue = new TaskQueue();
+        queue.setAgingInterval(10);
+        TestTask old = new TestTask("old", 0);
+        queue.offer(old);
+        Thread.sleep(60);
+        TestTask fresh = new TestTask("fresh", 2);
+        queue.offer(fresh);
+
+        assertSame(old, queue.poll());
+        assertSame(fresh, queue.poll());
+    }
+
+    @Test
+    public void peekPriorityIgnoresAging() throws InterruptedException {
+        TaskQueue queue = new TaskQueue();
+        queue.setAgingInterval(10);
+        assertEquals(Integer.MIN_VALUE, queue.peekPriority());
+        queue.offer(new TestTask("task", 1));
+        Thread.sleep(50);
+        //老化只影响出队顺序，抢占使用入队时的优先级
+        assertEquals(1, queue.peekPriority());
+    }
+
+    @Test
+    public void disablingAgingRestoresPriorityOrder() throws InterruptedException {
+        TaskQueue queue = new TaskQueue();
+        queue.setAgingInterval(10);
+        TestTask old = new TestTask("old", 0);
+        queue.offer(old);
+        Thread.sleep(60);
+        TestTask fresh = new TestTask("fresh", 2);
+        queue.offer(fresh);
+        queue.setAgingInterval(0);
+
+        assertSame(fresh, queue.poll());
+        assertSame(old, queue.poll());
+    }
+}
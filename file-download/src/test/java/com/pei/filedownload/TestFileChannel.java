@@ -0,0 +1,137 @@
+package com.pei.filedownload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的FileChannel，定位写入可以阻塞或者失败，其他操作直接交给文件的channel
+ */
+public class TestFileChannel extends FileChannel {
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    /** 不为空时定位写入等待countDown */
+    public volatile CountDownLatch blockWrites;
+    /** 大于0时接下来的定位写入失败 */
+    public final AtomicInteger failWrites = new AtomicInteger();
+    public final AtomicInteger writeCount = new AtomicInteger();
+
+    public TestFileChannel(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        writeCount.incrementAndGet();
+        CountDownLatch latch = blockWrites;
+        if (latch != null) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new ClosedByInterruptException();
+            }
+        }
+        if (failWrites.getAndDecrement() > 0) {
+            throw new IOException("Write failed, position: " + position);
+        }
+        return mChannel.write(src, position);
+    }
+
+    public byte[] readAll() throws IOException {
+        byte[] data = new byte[(int) mChannel.size()];
+        mChannel.read(ByteBuffer.wrap(data), 0);
+        return data;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return mChannel.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        return mChannel.read(dsts, offset, length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return mChannel.write(src);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        return mChannel.write(srcs, offset, length);
+    }
+
+    @Override
+    public long position() throws IOException {
+        return mChannel.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        mChannel.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return mChannel.size();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        mChannel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        mChannel.force(metaData);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return mChannel.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        return mChannel.transferFrom(src, position, count);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return mChannel.read(dst, position);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        return mChannel.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return mChannel.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return mChannel.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,52 @@
+package com.pei.filedownload;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的任务，执行时什么都不做，记录被抢占的次数
+ */
+class TestTask extends Task<Void> {
+    final AtomicInteger preemptCount = new AtomicInteger();
+    private final long mDeadline;
+    volatile boolean preemptible = true;
+    volatile boolean preemptResult = true;
+
+    TestTask(String taskId, int priority) {
+        this(taskId, priority, 0);
+    }
+
+    TestTask(String taskId, int priority, long deadline) {
+        super(null, null);
+        setTaskId(taskId);
+        setPriority(priority);
+        mDeadline = deadline;
+    }
+
+    @Override
+    public void run() {
+    }
+
+    @Override
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    @Override
+    public void pause() {
+    }
+
+    @Override
+    public void cancel() {
+    }
+
+    @Override
+    protected boolean isPreemptible() {
+        return preemptible;
+    }
+
+    @Override
+    protected boolean preempt() {
+        preemptCount.incrementAndGet();
+        return preemptResult;
+    }
+}
@@ -0,0 +1,90 @@
+package com.pei.filedownload;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WeightedFairShaperTest {
+    private static final long SECOND = 1000 * 1000 * 1000L;
+    private static final long MB = 1024 * 1024;
+
+    private RateLimiter mGlobalLimiter;
+    private WeightedFairShaper mShaper;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mGlobalLimiter = new RateLimiter(4 * MB);
+        mShaper = new WeightedFairShaper(mGlobalLimiter);
+        mShaper.setEnabled(true);
+        mNow = System.nanoTime();
+    }
+
+    @Test
+    public void disabledShaperDoesNotLimit() {
+        mShaper.setEnabled(false);
+        WeightedFairShaper.Flow a = mShaper.openFlow(1);
+        WeightedFairShaper.Flow b = mShaper.openFlow(1);
+        assertEquals(0, mShaper.reserve(a, 10 * MB, mNow));
+        assertEquals(0, mShaper.reserve(b, 10 * MB, mNow + 2 * SECOND));
+        assertEquals(0, a.getRate());
+        assertEquals(0, b.getRate());
+    }
+
+    @Test
+    public void singleFlowIsNotLimited() {
+        WeightedFairShaper.Flow flow = mShaper.openFlow(1);
+        mShaper.reserve(flow, MB, mNow);
+        mShaper.reserve(flow, 0, mNow + SECOND);
+        assertEquals(0, flow.getRate());
+    }
+
+    @Test
+    public void busyFlowsShareByWeight() {
+        WeightedFairShaper.Flow a = mShaper.openFlow(1);
+        WeightedFairShaper.Flow b = mShaper.openFlow(3);
+        mShaper.reserve(a, MB, mNow);
+        mShaper.reserve(b, MB, mNow);
+        //每秒重新分配一次
+        mShaper.reserve(a, 0, mNow + SECOND);
+
+        assertEquals(MB, a.getRate());
+        assertEquals(3 * MB, b.getRate());
+    }
+
+    @Test
+    public void unusedShareGoesToOtherFlows() {
+        WeightedFairShaper.Flow a = mShaper.openFlow(1);
+        WeightedFairShaper.Flow b = mShaper.openFlow(1);
+        mShaper.reserve(a, MB, mNow);
+        mShaper.reserve(b, MB, mNow);
+        mNow += SECOND;
+        mShaper.reserve(a, 0, mNow);
+        assertEquals(2 * MB, a.getRate());
+        assertEquals(2 * MB, b.getRate());
+
+        //a只用了100K，只分配需求加10%，剩余的都给b
+        mShaper.reserve(a, 100 * 1024, mNow);
+        mShaper.reserve(b, 2 * MB, mNow);
+        mShaper.reserve(a, 0, mNow + SECOND);
+        assertEquals(110 * 1024, a.getRate(), 1);
+        assertEquals(4 * MB - 110 * 1024, b.getRate(), 1);
+    }
+
+    @Test
+    public void closedFlowIsNoLongerLimited() {
+        WeightedFairShaper.Flow a = mShaper.openFlow(1);
+        WeightedFairShaper.Flow b = mShaper.openFlow(1);
+        mShaper.reserve(a, MB, mNow);
+        mShaper.reserve(b, MB, mNow);
+        mShaper.reserve(a, 0, mNow + SECOND);
+        assertTrue(b.getRate() > 0);
+
+        mShaper.closeFlow(b);
+        assertEquals(0, b.getRate());
+        //只剩一个流时不再限制
+        mShaper.reserve(a, 0, mNow + 2 * SECOND);
+        assertEquals(0, a.getRate());
+    }
+}
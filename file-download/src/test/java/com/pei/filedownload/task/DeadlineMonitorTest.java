@@ -0,0 +1,113 @@
+package com.pei.filedownload.task;
+
+import com.pei.filedownload.DeadlineListener;
+import com.pei.filedownload.FLog;
+import com.pei.filedownload.Task;
+import com.pei.filedownload.TaskDispatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeadlineMonitorTest {
+
+    private Task<Void> mTask;
+    private TaskDispatcher mDispatcher;
+    private List<Long> mEstimates = new ArrayList<>();
+    private DeadlineListener mListener = new DeadlineListener() {
+        @Override
+        public void onDeadlineUnreachable(String taskId, long deadline, long estimatedFinishTime) {
+            mEstimates.add(estimatedFinishTime);
+        }
+    };
+    private DeadlineMonitor mMonitor;
+
+    @Before
+    public void setUp() {
+        FLog.showLog(false);
+        mDispatcher = new TaskDispatcher();
+        mTask = new Task<Void>(null, mDispatcher) {
+            @Override
+            public void run() {
+            }
+
+            @Override
+            public void pause() {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        };
+        mTask.setTaskId("task");
+        mTask.setStatus(Task.STATUS_RUNNING);
+    }
+
+    @After
+    public void tearDown() {
+        if (mMonitor != null) {
+            mMonitor.stop();
+        }
+    }
+
+    @Test
+    public void passedDeadlineIsReportedOnStart() {
+        mMonitor = new DeadlineMonitor(mTask, mDispatcher, System.currentTimeMillis() - 1000, mListener, 1024);
+        mMonitor.start();
+        assertEquals(1, mEstimates.size());
+        assertEquals(Long.MAX_VALUE, (long) mEstimates.get(0));
+    }
+
+    @Test
+    public void passedDeadlineWithNothingLeftIsNotReported() {
+        mMonitor = new DeadlineMonitor(mTask, mDispatcher, System.currentTimeMillis() - 1000, mListener, 0);
+        mMonitor.start();
+        assertTrue(mEstimates.isEmpty());
+    }
+
+    @Test
+    public void stalledDownloadIsReportedOnce() {
+        mMonitor = new DeadlineMonitor(mTask, mDispatcher, System.currentTimeMillis() + 60 * 1000, mListener, 1024 * 1024);
+        mMonitor.start();
+        assertTrue(mEstimates.isEmpty());
+
+        //没有速度，估计无法完成
+        mMonitor.run();
+        mMonitor.run();
+        assertEquals(1, mEstimates.size());
+        assertEquals(Long.MAX_VALUE, (long) mEstimates.get(0));
+    }
+
+    @Test
+    public void reportedAgainAfterRecovering() {
+        mMonitor = new DeadlineMonitor(mTask, mDispatcher, System.currentTimeMillis() + 60 * 1000, mListener, Long.MAX_VALUE / 2);
+        mMonitor.start();
+        mMonitor.run();
+        assertEquals(1, mEstimates.size());
+
+        //速度足够在截止时间前完成
+        mMonitor.onBytesRead(Long.MAX_VALUE / 4);
+        mMonitor.run();
+        assertEquals(1, mEstimates.size());
+
+        //之后没有数据，平均速度逐渐下降，再次无法完成时重新回调
+        for (int i = 0; i < 100 && mEstimates.size() < 2; i++) {
+            mMonitor.run();
+        }
+        assertEquals(2, mEstimates.size());
+    }
+
+    @Test
+    public void notRunningTaskIsNotChecked() {
+        mMonitor = new DeadlineMonitor(mTask, mDispatcher, System.currentTimeMillis() + 60 * 1000, mListener, 1024 * 1024);
+        mMonitor.start();
+        mTask.setStatus(Task.STATUS_PAUSED);
+        mMonitor.run();
+        assertTrue(mEstimates.isEmpty());
+    }
+}
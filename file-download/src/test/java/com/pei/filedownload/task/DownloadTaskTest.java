@@ -0,0 +1,32 @@
+package com.pei.filedownload.task;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DownloadTaskTest {
+
+    @Test
+    public void ifRangeUsesStrongETagFirst() {
+        assertEquals("\"abc\"", DownloadTask.ifRangeValidator("\"abc\"", "Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertEquals("\"abc\"", DownloadTask.ifRangeValidator("\"abc\"", null));
+    }
+
+    @Test
+    public void ifRangeFallsBackToLastModifiedForWeakETag() {
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", DownloadTask.ifRangeValidator("W/\"abc\"", "Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", DownloadTask.ifRangeValidator(null, "Wed, 21 Oct 2015 07:28:00 GMT"));
+        //没有可以验证的值时不能续传
+        assertNull(DownloadTask.ifRangeValidator("W/\"abc\"", null));
+    }
+
+    @Test
+    public void expiredUrlCodes() {
+        assertTrue(DownloadTask.isUrlExpired(401));
+        assertTrue(DownloadTask.isUrlExpired(403));
+        assertTrue(DownloadTask.isUrlExpired(410));
+        assertFalse(DownloadTask.isUrlExpired(404));
+        assertFalse(DownloadTask.isUrlExpired(416));
+        assertFalse(DownloadTask.isUrlExpired(500));
+    }
+}
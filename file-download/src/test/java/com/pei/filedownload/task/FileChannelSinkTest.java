@@ -0,0 +1,239 @@
+package com.pei.filedownload.task;
+
+import com.pei.filedownload.BufferPool;
+import com.pei.filedownload.DiskWriter;
+import com.pei.filedownload.FLog;
+import com.pei.filedownload.TestFileChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+public class FileChannelSinkTest {
+    private static final int SIZE = BufferPool.MIN_BUFFER_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private TestFileChannel mChannel;
+    private BufferPool mBufferPool;
+    private DiskWriter mDiskWriter;
+
+    @Before
+    public void setUp() throws IOException {
+        FLog.showLog(false);
+        mChannel = new TestFileChannel(mFolder.newFile());
+        mBufferPool = new BufferPool(SIZE, 4 * SIZE, false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mDiskWriter != null) {
+            mDiskWriter.shutdown();
+        }
+        mChannel.close();
+    }
+
+    /**
+     * 第i个字节的值是(offset + i) % 251，检查时可以发现错位
+     */
+    private static Buffer newData(long offset, int length) {
+        Buffer buffer = new Buffer();
+        for (int i = 0; i < length; i++) {
+            buffer.writeByte((int) ((offset + i) % 251));
+        }
+        return buffer;
+    }
+
+    private void assertData(long offset, int length) throws IOException {
+        byte[] data = mChannel.readAll();
+        assertTrue(data.length >= offset + length);
+        for (int i = 0; i < length; i++) {
+            assertEquals("position " + (offset + i), (byte) ((offset + i) % 251), data[(int) (offset + i)]);
+        }
+    }
+
+    @Test
+    public void writesFromStartPosition() throws IOException {
+        FileChannelSink sink = new FileChannelSink(mChannel, 1000, mBufferPool);
+        int length = SIZE + SIZE / 2;
+        Buffer source = newData(1000, length);
+        sink.write(source, source.size());
+        //缓冲区写满时写入一次，剩余的还在缓冲区中
+        assertEquals(1000 + SIZE, sink.getPosition());
+
+        sink.flush();
+        assertEquals(1000 + length, sink.getPosition());
+        sink.close();
+        assertData(1000, length);
+    }
+
+    @Test
+    public void closeReturnsBuffer() throws Exception {
+        BufferPool pool = new BufferPool(SIZE, SIZE, false);
+        FileChannelSink sink = new FileChannelSink(mChannel, 0, pool);
+        Buffer source = newData(0, 100);
+        sink.write(source, source.size());
+        sink.close();
+        assertEquals(100, sink.getPosition());
+        assertBuffersReturned(pool, 1);
+    }
+
+    @Test
+    public void syncFailedWriteKeepsPosition() throws IOException {
+        FileChannelSink sink = new FileChannelSink(mChannel, 0, mBufferPool);
+        Buffer source = newData(0, SIZE);
+        sink.write(source, source.size());
+        sink.flush();
+        assertEquals(SIZE, sink.getPosition());
+
+        mChannel.failWrites.set(1);
+        source = newData(SIZE, 100);
+        sink.write(source, source.size());
+        try {
+            sink.flush();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(SIZE, sink.getPosition());
+    }
+
+    @Test
+    public void writeBehindKeepsOrder() throws Exception {
+        mDiskWriter = new DiskWriter(2, 8);
+        FileChannelSink sink = new FileChannelSink(mChannel, 500, mBufferPool, mDiskWriter);
+        int length = 5 * SIZE + 123;
+        Buffer source = newData(500, length);
+        sink.write(source, source.size());
+        sink.close();
+
+        assertEquals(500 + length, sink.getPosition());
+        assertData(500, length);
+        assertBuffersReturned(mBufferPool, 4);
+    }
+
+    @Test
+    public void positionStopsAtFirstFailedWrite() throws Exception {
+        mDiskWriter = new DiskWriter(1, 8);
+        FileChannelSink sink = new FileChannelSink(mChannel, 0, mBufferPool, mDiskWriter);
+        Buffer source = newData(0, SIZE);
+        sink.write(source, source.size());
+        sink.flush();
+        awaitPosition(sink, SIZE);
+
+        //第二个缓冲区写入失败，之后的写入即使成功也不能前移位置，否则中间会留下空洞
+        mChannel.failWrites.set(1);
+        source = newData(SIZE, 3 * SIZE);
+        try {
+            sink.write(source, source.size());
+        } catch (IOException ignored) {
+            //写入线程先失败时，write中的flush就会抛出异常
+        }
+        try {
+            sink.close();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(SIZE, sink.getPosition());
+        assertData(0, SIZE);
+    }
+
+    @Test
+    public void failedWriteIsReportedOnNextFlush() throws Exception {
+        mDiskWriter = new DiskWriter(1, 8);
+        FileChannelSink sink = new FileChannelSink(mChannel, 0, mBufferPool, mDiskWriter);
+        mChannel.failWrites.set(1);
+        Buffer source = newData(0, SIZE);
+        sink.write(source, source.size());
+        sink.flush();
+        //异步写入失败后，之后的flush抛出异常
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean failed = false;
+        while (!failed && System.currentTimeMillis() < deadline) {
+            try {
+                sink.flush();
+                Thread.sleep(1);
+            } catch (IOException expected) {
+                failed = true;
+            }
+        }
+        assertTrue(failed);
+        assertEquals(0, sink.getPosition());
+    }
+
+    @Test
+    public void nonBlockingSinkWaitsForWriteBehind() throws Exception {
+        mDiskWriter = new DiskWriter(1, 8);
+        CountDownLatch blockWrites = new CountDownLatch(1);
+        mChannel.blockWrites = blockWrites;
+        BufferPool pool = new BufferPool(SIZE, SIZE, false);
+        FileChannelSink sink = new FileChannelSink(mChannel, 0, pool, mDiskWriter, pool.tryAcquire());
+        assertTrue(sink.isWritable());
+
+        //唯一的缓冲区交给写入线程后，不等待缓冲池
+        Buffer source = newData(0, SIZE);
+        sink.write(source, source.size());
+        sink.flush();
+        assertFalse(sink.isWritable());
+
+        blockWrites.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!sink.isWritable() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(sink.isWritable());
+        source = newData(SIZE, 100);
+        sink.write(source, source.size());
+        sink.close();
+        assertEquals(SIZE + 100, sink.getPosition());
+        assertData(0, SIZE + 100);
+    }
+
+    /**
+     * 缓冲区都归还后可以从池中取出全部缓冲区，有缓冲区没有归还时acquire会一直等待
+     */
+    private static void assertBuffersReturned(final BufferPool pool, final int count) throws InterruptedException {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<ByteBuffer> buffers = new ArrayList<>();
+                    for (int i = 0; i < count; i++) {
+                        buffers.add(pool.acquire());
+                    }
+                    for (ByteBuffer buffer : buffers) {
+                        pool.release(buffer);
+                    }
+                    acquired.countDown();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        thread.start();
+        boolean returned = acquired.await(5, TimeUnit.SECONDS);
+        thread.interrupt();
+        assertTrue(returned);
+    }
+
+    private static void awaitPosition(FileChannelSink sink, long position) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.getPosition() != position && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(position, sink.getPosition());
+    }
+}
@@ -0,0 +1,83 @@
+package com.pei.filedownload.task;
+
+import com.pei.filedownload.FLog;
+import com.pei.filedownload.ParallelismListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ParallelismControllerTest {
+    private static final long SECOND = 1000 * 1000 * 1000L;
+
+    @Before
+    public void setUp() {
+        FLog.showLog(false);
+    }
+
+    @Test
+    public void initialParallelNumIsClamped() {
+        assertEquals(2, new ParallelismController("task", 1, 2, 6, null).getParallelNum());
+        assertEquals(6, new ParallelismController("task", 10, 2, 6, null).getParallelNum());
+        //最小值至少为1，最大值不小于最小值
+        ParallelismController controller = new ParallelismController("task", 0, 0, 0, null);
+        assertEquals(1, controller.getParallelNum());
+    }
+
+    @Test
+    public void noAdjustmentWithinWindow() {
+        ParallelismController controller = new ParallelismController("task", 2, 1, 8, null);
+        assertEquals(0, controller.onBytesRead(1024 * 1024, System.nanoTime()));
+        assertEquals(2, controller.getParallelNum());
+        assertEquals(0, controller.getBestParallelNum());
+    }
+
+    @Test
+    public void firstWindowIncreasesAndRecordsBest() {
+        final int[] changed = new int[2];
+        ParallelismController controller = new ParallelismController("task", 2, 1, 8, new ParallelismListener() {
+            @Override
+            public void onParallelismChanged(String taskId, int oldParallelNum, int newParallelNum, long throughput) {
+                changed[0] = oldParallelNum;
+                changed[1] = newParallelNum;
+            }
+        });
+        long start = System.nanoTime();
+        controller.onBytesRead(1024 * 1024, start);
+
+        assertEquals(3, controller.onBytesRead(1024, start + 3 * SECOND));
+        assertEquals(3, controller.getParallelNum());
+        assertEquals(2, controller.getBestParallelNum());
+        assertEquals(2, changed[0]);
+        assertEquals(3, changed[1]);
+    }
+
+    @Test
+    public void dropInThroughputHalvesParallelism() {
+        ParallelismController controller = new ParallelismController("task", 4, 1, 8, null);
+        long now = System.nanoTime();
+        controller.onBytesRead(8 * 1024 * 1024, now);
+        now += 3 * SECOND;
+        assertEquals(5, controller.onBytesRead(0, now));
+
+        //下一个窗口速度下降超过20%
+        controller.onBytesRead(1024 * 1024, now);
+        now += 3 * SECOND;
+        assertEquals(2, controller.onBytesRead(0, now));
+        assertEquals(2, controller.getParallelNum());
+        //最快的是并发数为4的窗口
+        assertEquals(4, controller.getBestParallelNum());
+    }
+
+    @Test
+    public void parallelismStaysWithinBounds() {
+        ParallelismController controller = new ParallelismController("task", 2, 1, 2, null);
+        long now = System.nanoTime();
+        controller.onBytesRead(1024 * 1024, now);
+        now += 3 * SECOND;
+        //已经是最大值，不再增加
+        assertEquals(0, controller.onBytesRead(0, now));
+        assertEquals(2, controller.getParallelNum());
+    }
+}
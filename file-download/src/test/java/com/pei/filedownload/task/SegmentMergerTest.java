@@ -0,0 +1,187 @@
+package com.pei.filedownload.task;
+
+import com.pei.filedownload.Segment;
+import com.pei.filedownload.task.model.DownloadSegment;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentMergerTest {
+    private static final int SEGMENT_LENGTH = 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mTarget;
+    private List<DownloadSegment> mSegments = new ArrayList<>();
+    private List<Long> mRecordedLengths = new ArrayList<>();
+    private SegmentMerger mMerger;
+
+    @Before
+    public void setUp() throws IOException {
+        mTarget = new File(mFolder.getRoot(), "target/file");
+        for (int i = 0; i < 3; i++) {
+            DownloadSegment segment = new DownloadSegment();
+            segment.setTaskId("task");
+            segment.setNumber(i);
+            segment.setOffset(i * SEGMENT_LENGTH);
+            segment.setSegmentLength(SEGMENT_LENGTH);
+            segment.setTotalLength(3 * SEGMENT_LENGTH);
+            segment.setStatus(Segment.STATUS_RUNNING);
+            mSegments.add(segment);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mMerger != null) {
+            mMerger.close();
+        }
+    }
+
+    private SegmentMerger newMerger(long mergedLength) throws IOException {
+        return new SegmentMerger(null, "task", mTarget, mSegments, mergedLength) {
+            @Override
+            void onMergedLengthChanged(long mergedLength) {
+                mRecordedLengths.add(mergedLength);
+            }
+        };
+    }
+
+    /**
+     * 分片文件中每个字节都是分片序号
+     */
+    private File complete(DownloadSegment segment) throws IOException {
+        File file = mFolder.newFile("segment-" + segment.getNumber());
+        byte[] data = new byte[(int) segment.getSegmentLength()];
+        Arrays.fill(data, (byte) segment.getNumber());
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        segment.setSegmentFile(file);
+        segment.setStatus(Segment.STATUS_COMPLETE);
+        return file;
+    }
+
+    private byte[] readTarget() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mTarget, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void mergesOnlyCompletedPrefix() throws IOException {
+        mMerger = newMerger(0);
+        File first = complete(mSegments.get(0));
+        File third = complete(mSegments.get(2));
+
+        mMerger.mergeCompletedPrefix();
+        assertEquals(SEGMENT_LENGTH, mMerger.getMergedLength());
+        assertTrue(mMerger.isMerged(mSegments.get(0)));
+        assertFalse(mMerger.isMerged(mSegments.get(2)));
+        //合并后才删除分片文件，后面的分片要等前面的完成
+        assertFalse(first.exists());
+        assertTrue(third.exists());
+        assertEquals(1, mRecordedLengths.size());
+        assertEquals(SEGMENT_LENGTH, (long) mRecordedLengths.get(0));
+    }
+
+    @Test
+    public void mergesRemainingSegmentsInOrder() throws IOException {
+        mMerger = newMerger(0);
+        complete(mSegments.get(0));
+        complete(mSegments.get(2));
+        mMerger.mergeCompletedPrefix();
+        complete(mSegments.get(1));
+        mMerger.mergeCompletedPrefix();
+
+        assertEquals(3 * SEGMENT_LENGTH, mMerger.getMergedLength());
+        byte[] data = readTarget();
+        assertEquals(3 * SEGMENT_LENGTH, data.length);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(i / SEGMENT_LENGTH, data[i]);
+        }
+        assertEquals(2, mRecordedLengths.size());
+        assertEquals(3 * SEGMENT_LENGTH, (long) mRecordedLengths.get(1));
+    }
+
+    @Test
+    public void nothingMergedIsNotRecorded() throws IOException {
+        mMerger = newMerger(0);
+        complete(mSegments.get(1));
+        mMerger.mergeCompletedPrefix();
+        assertEquals(0, mMerger.getMergedLength());
+        assertTrue(mRecordedLengths.isEmpty());
+    }
+
+    @Test
+    public void incompleteSegmentFileIsNotMerged() throws IOException {
+        mMerger = newMerger(0);
+        File file = complete(mSegments.get(0));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(SEGMENT_LENGTH - 1);
+        raf.close();
+
+        mMerger.mergeCompletedPrefix();
+        assertEquals(0, mMerger.getMergedLength());
+        assertTrue(file.exists());
+    }
+
+    @Test
+    public void resumeDropsPartiallyMergedData() throws IOException {
+        mTarget.getParentFile().mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(mTarget, "rw");
+        raf.setLength(SEGMENT_LENGTH + 30);
+        raf.close();
+
+        mMerger = newMerger(SEGMENT_LENGTH);
+        assertEquals(SEGMENT_LENGTH, mMerger.getMergedLength());
+        assertEquals(SEGMENT_LENGTH, mTarget.length());
+        //已经合并的分片按完成处理
+        assertEquals(Segment.STATUS_COMPLETE, mSegments.get(0).getStatus());
+        assertEquals(SEGMENT_LENGTH, mSegments.get(0).getDownloadedLength());
+        assertEquals(Segment.STATUS_RUNNING, mSegments.get(1).getStatus());
+    }
+
+    @Test
+    public void insertedSegmentIsMergedAfterOriginal() throws IOException {
+        mMerger = newMerger(0);
+        DownloadSegment original = mSegments.get(0);
+        original.setSegmentLength(SEGMENT_LENGTH / 2);
+        DownloadSegment newSegment = new DownloadSegment();
+        newSegment.setTaskId("task");
+        newSegment.setNumber(3);
+        newSegment.setOffset(SEGMENT_LENGTH / 2);
+        newSegment.setSegmentLength(SEGMENT_LENGTH / 2);
+        mMerger.insertSegment(original, newSegment);
+
+        complete(original);
+        complete(newSegment);
+        mMerger.mergeCompletedPrefix();
+        assertEquals(SEGMENT_LENGTH, mMerger.getMergedLength());
+        byte[] data = readTarget();
+        assertEquals(0, data[SEGMENT_LENGTH / 2 - 1]);
+        assertEquals(3, data[SEGMENT_LENGTH / 2]);
+    }
+}
@@ -0,0 +1,76 @@
+package com.pei.filedownload.task.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DownloadSegmentTest {
+
+    private static DownloadSegment newSegment(long offset, long length) {
+        DownloadSegment segment = new DownloadSegment();
+        segment.setTaskId("task");
+        segment.setUrl("http://a.com/file");
+        segment.setNumber(0);
+        segment.setTotalLength(offset + length);
+        segment.setOffset(offset);
+        segment.setSegmentLength(length);
+        return segment;
+    }
+
+    @Test
+    public void claimReadStopsAtSegmentEnd() {
+        DownloadSegment segment = newSegment(0, 100);
+        segment.startRead(0);
+        assertEquals(60, segment.claimRead(0, 60));
+        assertEquals(40, segment.claimRead(60, 60));
+        assertEquals(0, segment.claimRead(100, 60));
+    }
+
+    @Test
+    public void cannotSplitBeforeOrAfterReading() {
+        DownloadSegment segment = newSegment(0, 1000);
+        assertEquals(0, segment.getSplittableLength());
+        assertNull(segment.split(10));
+
+        segment.startRead(0);
+        segment.stopRead();
+        assertNull(segment.split(10));
+    }
+
+    @Test
+    public void splitTakesSecondHalfOfUnclaimedRange() {
+        DownloadSegment segment = newSegment(1000, 1000);
+        segment.startRead(0);
+        segment.claimRead(0, 200);
+        assertEquals(800, segment.getSplittableLength());
+
+        DownloadSegment newSegment = segment.split(100);
+        assertNotNull(newSegment);
+        assertEquals(600, segment.getSegmentLength());
+        assertEquals(1600, newSegment.getOffset());
+        assertEquals(400, newSegment.getSegmentLength());
+        assertEquals(segment.getTaskId(), newSegment.getTaskId());
+        assertEquals(segment.getUrl(), newSegment.getUrl());
+
+        //原分片只能读到缩短后的结尾
+        assertEquals(400, segment.claimRead(200, 1000));
+    }
+
+    @Test
+    public void splitRequiresTwiceTheMinimumLength() {
+        DownloadSegment segment = newSegment(0, 1000);
+        segment.startRead(0);
+        segment.claimRead(0, 801);
+        assertNull(segment.split(100));
+    }
+
+    @Test
+    public void equalityIgnoresUrl() {
+        DownloadSegment segment = newSegment(0, 100);
+        DownloadSegment other = newSegment(0, 100);
+        other.setUrl("http://b.com/file?sign=new");
+        //地址刷新后仍然是同一个分片，续传时保留进度
+        assertEquals(segment, other);
+        assertEquals(segment.hashCode(), other.hashCode());
+    }
+}